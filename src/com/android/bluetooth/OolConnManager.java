@@ -28,68 +28,81 @@
  */
 
 package com.android.bluetooth;
-import java.util.UUID;
+import java.util.HashMap;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
-import java.io.IOException;
 import android.bluetooth.SdpOppOpsRecord;
 public class OolConnManager {
 
     private static final String TAG="OolConnManager";
-    static int channel = 0;
-    static boolean sdpDone = false;
-    static String mAddress;
+    private static final int PSM_PENDING = 0;
+    private static final int SDP_WAIT_TIMEOUT_MS = 10000;
 
-    public static BluetoothSocket CreateL2capConnection(BluetoothDevice remBtDev,UUID uuid ) {
+    /* L2CAP PSM discovered per remote address; OPP may connect to several devices at once */
+    private static final HashMap<String, Integer> sPsmByAddress = new HashMap<String, Integer>();
 
-        Log.d(TAG,"createL2cConnection "+remBtDev.getAddress());
-        try {
-            return remBtDev.createL2capSocket(channel);
-        } catch (IOException e) {
-            Log.e(TAG, "BtSocket Connect error " + e.getMessage());
+    public static void setSdpInitiatedAddress(BluetoothDevice remBtDev) {
+
+        if (remBtDev == null)
+            return;
+        synchronized (sPsmByAddress) {
+            sPsmByAddress.put(remBtDev.getAddress(), PSM_PENDING);
         }
-        return null;
+        Log.d(TAG,"setSdpInitiatedAddress "+ remBtDev.getAddress());
+
     }
 
-    public static void setSdpInitiatedAddress(BluetoothDevice remBtDev) {
+    public static void clearSdpInitiatedAddress(BluetoothDevice remBtDev) {
 
-        if (remBtDev != null)
-            mAddress = remBtDev.getAddress();
-        else
-            mAddress = null;
-        Log.d(TAG,"setSdpInitiatedAddress "+ mAddress);
+        if (remBtDev == null)
+            return;
+        synchronized (sPsmByAddress) {
+            sPsmByAddress.remove(remBtDev.getAddress());
+            sPsmByAddress.notifyAll();
+        }
+        Log.d(TAG,"clearSdpInitiatedAddress "+ remBtDev.getAddress());
 
     }
 
     public static int getL2cPSM(BluetoothDevice remBtDev) {
 
-        int waitCount = 0;
+        String address = remBtDev.getAddress();
         int channelNo = -1;
-        while(!sdpDone && waitCount < 100) {
-           try {
-               Thread.sleep(100);
-           } catch (InterruptedException e) {
-               Log.e(TAG, "Interrupted", e);
-           }
-           waitCount++;
+        long deadline = System.currentTimeMillis() + SDP_WAIT_TIMEOUT_MS;
+        synchronized (sPsmByAddress) {
+            Integer psm = sPsmByAddress.get(address);
+            while (psm != null && psm == PSM_PENDING) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                try {
+                    sPsmByAddress.wait(remaining);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Interrupted", e);
+                    break;
+                }
+                psm = sPsmByAddress.get(address);
+            }
+            if (psm != null && psm != PSM_PENDING)
+                channelNo = psm;
+            sPsmByAddress.remove(address);
         }
-        waitCount = 0;
-        sdpDone = false;
 
-        Log.d(TAG,"returning l2c channel as "+channel);
-        channelNo = channel;
-        channel = -1;
+        Log.d(TAG,"returning l2c channel as "+channelNo + " for " + address);
         return channelNo;
     }
 
     public static void saveOppSdpRecord(SdpOppOpsRecord sdpRec, BluetoothDevice btDevice) {
 
         Log.v(TAG,"saveOppSdpRecord"+ btDevice.getAddress());
-        if ((mAddress != null) && mAddress.equalsIgnoreCase(btDevice.getAddress())) {
-           channel = sdpRec.getL2capPsm();
-           sdpDone = true;
-           Log.d(TAG,"saveOppSdpRecord channel "+ channel);
+        synchronized (sPsmByAddress) {
+            if (sPsmByAddress.containsKey(btDevice.getAddress())) {
+                int psm = sdpRec.getL2capPsm();
+                /* a record without L2CAP PSM still completes the SDP wait */
+                sPsmByAddress.put(btDevice.getAddress(), psm > 0 ? psm : -1);
+                sPsmByAddress.notifyAll();
+                Log.d(TAG,"saveOppSdpRecord channel "+ psm);
+            }
         }
     }
 
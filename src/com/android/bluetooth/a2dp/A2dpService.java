@@ -273,7 +273,8 @@ public class A2dpService extends ProfileService {
         }
     }
 
-    synchronized boolean isA2dpPlaying(BluetoothDevice device) {
+    // Served from the state machine's published snapshot, no lock needed
+    boolean isA2dpPlaying(BluetoothDevice device) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM,
                                        "Need BLUETOOTH permission");
         if (DBG) Log.d(TAG, "isA2dpPlaying(" + device + ")");
@@ -62,6 +62,7 @@ import com.android.internal.util.IState;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -142,6 +143,35 @@ final class A2dpStateMachine extends StateMachine {
             new ArrayList<BluetoothDevice>();
     private ArrayList<BluetoothDevice> mPlayingA2dpDevice =
             new ArrayList<BluetoothDevice>();
+    // Immutable copy of the lists above, republished by the state machine
+    // after every change so binder and Avrcp queries never take the lock.
+    private volatile StateSnapshot mStateSnapshot = StateSnapshot.EMPTY;
+
+    /**
+     * Connection and playing state of all A2dp devices at one point in time.
+     * Instances are never modified after construction.
+     */
+    static final class StateSnapshot {
+        static final StateSnapshot EMPTY = new StateSnapshot(
+                new ArrayList<BluetoothDevice>(), new ArrayList<BluetoothDevice>(), false);
+
+        final List<BluetoothDevice> connectedDevices;
+        final List<BluetoothDevice> playingDevices;
+        final boolean multicastEnabled;
+
+        StateSnapshot(List<BluetoothDevice> connected, List<BluetoothDevice> playing,
+                boolean multicast) {
+            connectedDevices = Collections.unmodifiableList(
+                    new ArrayList<BluetoothDevice>(connected));
+            playingDevices = Collections.unmodifiableList(
+                    new ArrayList<BluetoothDevice>(playing));
+            multicastEnabled = multicast;
+        }
+
+        boolean isPlaying(BluetoothDevice device) {
+            return playingDevices.contains(device);
+        }
+    }
 
     static {
         classInitNative();
@@ -333,6 +363,7 @@ final class A2dpStateMachine extends StateMachine {
                     synchronized (A2dpStateMachine.this) {
                         if (!mConnectedDevicesList.contains(device)) {
                             mConnectedDevicesList.add(device);
+                            publishState();
                             log( "device " + device.getAddress() +
                                     " is adding in Disconnected state");
                         }
@@ -440,6 +471,7 @@ final class A2dpStateMachine extends StateMachine {
                                 BluetoothA2dp.STATE_NOT_PLAYING,
                                 BluetoothA2dp.STATE_PLAYING);
                         mPlayingA2dpDevice.remove(device);
+                        publishState();
                     }
                     // Reset scan mode if it set due to multicast
                     Log.i(TAG,"getScanMode " + mAdapter.getScanMode() +
@@ -458,6 +490,7 @@ final class A2dpStateMachine extends StateMachine {
                     if (mConnectedDevicesList.contains(device)) {
                         synchronized (A2dpStateMachine.this) {
                             mConnectedDevicesList.remove(device);
+                            publishState();
                             log( "device " + device.getAddress() +
                                     " is removed in Pending state");
                         }
@@ -550,6 +583,7 @@ final class A2dpStateMachine extends StateMachine {
                     synchronized (A2dpStateMachine.this) {
                         mCurrentDevice = mTargetDevice;
                         mConnectedDevicesList.add(mTargetDevice);
+                        publishState();
                         mTargetDevice = null;
                         log( "device " + device.getAddress() +
                                 " is added in Pending state");
@@ -566,6 +600,7 @@ final class A2dpStateMachine extends StateMachine {
                         synchronized (A2dpStateMachine.this) {
                             mCurrentDevice = mIncomingDevice;
                             mConnectedDevicesList.add(mIncomingDevice);
+                            publishState();
                             mIncomingDevice = null;
                             if (mTargetDevice == null)
                                 transitionTo(mConnected);
@@ -591,6 +626,7 @@ final class A2dpStateMachine extends StateMachine {
                     if (okToConnect(device)) {
                         synchronized (A2dpStateMachine.this) {
                             mConnectedDevicesList.add(device);
+                            publishState();
                             if (mTargetDevice != null) {
                                 log("Waiting for Connected event for mTargetDevice");
                             } else if (mIncomingDevice != null) {
@@ -861,6 +897,7 @@ final class A2dpStateMachine extends StateMachine {
                                     BluetoothA2dp.STATE_NOT_PLAYING,
                                     BluetoothA2dp.STATE_PLAYING);
                             mPlayingA2dpDevice.remove(device);
+                            publishState();
                         }
                         // Reset scan mode if it set due to multicast
                         Log.i(TAG,"getScanMode: " + mAdapter.getScanMode() +
@@ -880,6 +917,7 @@ final class A2dpStateMachine extends StateMachine {
                              BluetoothProfile.STATE_CONNECTED);
                         synchronized (A2dpStateMachine.this) {
                             mConnectedDevicesList.remove(device);
+                            publishState();
                             log( "device " + device.getAddress() +
                                     " is removed in Connected state");
                             if (mConnectedDevicesList.size() == 0) {
@@ -968,6 +1006,7 @@ final class A2dpStateMachine extends StateMachine {
                         synchronized (A2dpStateMachine.this) {
                             mCurrentDevice = mTargetDevice;
                             mConnectedDevicesList.add(mTargetDevice);
+                            publishState();
                             mTargetDevice = null;
                             log( "device " + device.getAddress() +
                                     " is added in Connected state");
@@ -982,6 +1021,7 @@ final class A2dpStateMachine extends StateMachine {
                         synchronized (A2dpStateMachine.this) {
                             mCurrentDevice = device;
                             mConnectedDevicesList.add(device);
+                            publishState();
                             mIncomingDevice= null;
                             log( "device " + device.getAddress() +
                                     " is added in Connected state");
@@ -1050,6 +1090,7 @@ final class A2dpStateMachine extends StateMachine {
                                 mAdapter.setScanMode(BluetoothAdapter.SCAN_MODE_NONE);
                             }
                             mPlayingA2dpDevice.add(device);
+                            publishState();
                             mService.setAvrcpAudioState(BluetoothA2dp.STATE_PLAYING, device);
                             broadcastAudioState(device, BluetoothA2dp.STATE_PLAYING,
                                     BluetoothA2dp.STATE_NOT_PLAYING);
@@ -1070,6 +1111,7 @@ final class A2dpStateMachine extends StateMachine {
                         if (mPlayingA2dpDevice.size() != 0 &&
                                 mPlayingA2dpDevice.contains(device)) {
                             mPlayingA2dpDevice.remove(device);
+                            publishState();
                             mService.setAvrcpAudioState(BluetoothA2dp.STATE_NOT_PLAYING, device);
                             broadcastAudioState(device, BluetoothA2dp.STATE_NOT_PLAYING,
                                      BluetoothA2dp.STATE_PLAYING);
@@ -1180,6 +1222,7 @@ final class A2dpStateMachine extends StateMachine {
                             broadcastAudioState(device, BluetoothA2dp.STATE_NOT_PLAYING,
                                     BluetoothA2dp.STATE_PLAYING);
                             mPlayingA2dpDevice.remove(device);
+                            publishState();
                         }
                         // Reset scan mode if it set due to multicast
                         Log.i(TAG,"getScanMode: " + mAdapter.getScanMode() +
@@ -1200,6 +1243,7 @@ final class A2dpStateMachine extends StateMachine {
                             mMultiDisconnectDevice = null;
                             synchronized (A2dpStateMachine.this) {
                                 mConnectedDevicesList.remove(device);
+                                publishState();
                                 log( "device " + device.getAddress() +
                                         " is removed in MultiConnectionPending state");
                             }
@@ -1238,6 +1282,7 @@ final class A2dpStateMachine extends StateMachine {
                             /* HS disconnected, when other HS is connected */
                             synchronized (A2dpStateMachine.this) {
                                 mConnectedDevicesList.remove(device);
+                                publishState();
 
                                 log( "device " + device.getAddress() +
                                         " is removed in MultiConnectionPending state");
@@ -1359,6 +1404,7 @@ final class A2dpStateMachine extends StateMachine {
                         synchronized (A2dpStateMachine.this) {
                             mCurrentDevice = device;
                             mConnectedDevicesList.add(device);
+                            publishState();
                             log( "device " + device.getAddress() +
                                     " is added in MultiConnectionPending state");
                             mTargetDevice = null;
@@ -1370,6 +1416,7 @@ final class A2dpStateMachine extends StateMachine {
                         synchronized (A2dpStateMachine.this) {
                             mCurrentDevice = device;
                             mConnectedDevicesList.add(device);
+                            publishState();
                             log( "device " + device.getAddress() +
                                     " is added in MultiConnectionPending state");
                             mIncomingDevice = null;
@@ -1384,6 +1431,7 @@ final class A2dpStateMachine extends StateMachine {
                                 (mConnectedDevicesList.size() < maxA2dpConnections)) {
                             mCurrentDevice = device;
                             mConnectedDevicesList.add(device);
+                            publishState();
                             log( "device " + device.getAddress() +
                                     " is added in MultiConnectionPending state");
                             broadcastConnectionState(device, BluetoothProfile.STATE_CONNECTED,
@@ -1440,6 +1488,7 @@ final class A2dpStateMachine extends StateMachine {
                                 mAdapter.setScanMode(BluetoothAdapter.SCAN_MODE_NONE);
                             }
                             mPlayingA2dpDevice.add(device);
+                            publishState();
                             mService.setAvrcpAudioState(BluetoothA2dp.STATE_PLAYING, device);
                             broadcastAudioState(device, BluetoothA2dp.STATE_PLAYING,
                                     BluetoothA2dp.STATE_NOT_PLAYING);
@@ -1460,6 +1509,7 @@ final class A2dpStateMachine extends StateMachine {
                         if (mPlayingA2dpDevice.size() != 0 &&
                                 mPlayingA2dpDevice.contains(device)) {
                             mPlayingA2dpDevice.remove(device);
+                            publishState();
                             mService.setAvrcpAudioState(BluetoothA2dp.STATE_NOT_PLAYING, device);
                             broadcastAudioState(device, BluetoothA2dp.STATE_NOT_PLAYING,
                                     BluetoothA2dp.STATE_PLAYING);
@@ -1553,34 +1603,33 @@ final class A2dpStateMachine extends StateMachine {
         }
     }
 
+    /**
+     * Republishes the connection/playing snapshot. Must be called on the
+     * state machine thread after any change to mConnectedDevicesList,
+     * mPlayingA2dpDevice or the multicast state.
+     */
+    private void publishState() {
+        mStateSnapshot = new StateSnapshot(mConnectedDevicesList,
+                mPlayingA2dpDevice, isMultiCastEnabled);
+    }
+
     List<BluetoothDevice> getConnectedDevices() {
-        List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
-        Log.i(TAG,"mConnectedDevicesList size is " +
-                mConnectedDevicesList.size());
-        synchronized(this) {
-            /* If connected and mCurrentDevice is not null*/
-            for (int i = 0; i < mConnectedDevicesList.size(); i++) {
-                devices.add(mConnectedDevicesList.get(i));
-            }
-        }
-        return devices;
+        List<BluetoothDevice> connected = mStateSnapshot.connectedDevices;
+        Log.i(TAG,"mConnectedDevicesList size is " + connected.size());
+        // Callers own the returned list, so hand out a mutable copy
+        return new ArrayList<BluetoothDevice>(connected);
     }
 
     boolean isPlaying(BluetoothDevice device) {
-        synchronized(this) {
-            if (mPlayingA2dpDevice.contains(device)) {
-                return true;
-            }
-        }
-        return false;
+        return mStateSnapshot.isPlaying(device);
     }
 
     public List<BluetoothDevice> getPlayingDevice() {
-        return mPlayingA2dpDevice;
+        return mStateSnapshot.playingDevices;
     }
 
     public boolean isMulticastEnabled() {
-        return isMultiCastEnabled;
+        return mStateSnapshot.multicastEnabled;
     }
 
     public boolean isMulticastFeatureEnabled() {
@@ -1714,9 +1763,11 @@ final class A2dpStateMachine extends StateMachine {
         if (state == ENABLE_MULTICAST) {
             Log.i(TAG,"A2dp Multicast is Enabled");
             isMultiCastEnabled = true;
+            publishState();
         } else {
             Log.i(TAG,"A2dp Multicast is Disabled");
             isMultiCastEnabled = false;
+            publishState();
         }
     }
 
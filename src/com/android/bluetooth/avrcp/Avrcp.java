@@ -49,6 +49,7 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.view.KeyEvent;
 
 import android.content.BroadcastReceiver;
@@ -62,12 +63,15 @@ import com.android.internal.util.StateMachine;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.Iterator;
 
 import android.provider.MediaStore;
 import android.content.ContentResolver;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
@@ -113,6 +117,10 @@ public final class Avrcp {
     private static boolean updatePlayTime;
     private static boolean updateValues;
     private int mAddressedPlayerId;
+    private AvrcpBrowseCache mBrowseCache;
+    private ContentObserver mMediaObserver;
+    private final AvrcpNotificationRegistry mNotificationRegistry =
+            new AvrcpNotificationRegistry();
 
     /* BTRC features */
     public static final int BTRC_FEAT_METADATA = 0x01;
@@ -168,6 +176,10 @@ public final class Avrcp {
     private static final int MSG_NOW_PLAYING_ENTRIES_RECEIVED = 207;
 
     private MediaPlayerInfo mediaPlayerInfo1;
+    /* Encoded MediaPlayerList items of the available players, rebuilt only when
+     * the list or a player's availability changes */
+    private byte[] mPlayerListItems;
+    private int[] mPlayerListItemLengths;
 
     private static final int BUTTON_TIMEOUT_TIME = 2000;
     private static final int BASE_SKIP_AMOUNT = 2000;
@@ -419,6 +431,21 @@ public final class Avrcp {
         mHandler = new AvrcpMessageHandler(looper);
         mPendingCmds = new ArrayList<Integer>();
         mPendingSetAttributes = new ArrayList<Integer>();
+        mBrowseCache = new AvrcpBrowseCache();
+        mMediaObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // Runs on the handler thread, alongside the browse commands using the cache
+                mBrowseCache.invalidate();
+            }
+        };
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true,
+                mMediaObserver);
+        resolver.registerContentObserver(MediaStore.Audio.Media.INTERNAL_CONTENT_URI, true,
+                mMediaObserver);
+        resolver.registerContentObserver(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, true,
+                mMediaObserver);
         // clear path for all devices
         for (int i = 0; i < maxAvrcpConnections; i++) {
            deviceFeatures[i].mCurrentPath = PATH_INVALID;
@@ -649,6 +676,38 @@ public final class Avrcp {
                     featureMasks);
 
         mMediaPlayers.add(mediaPlayerInfo1);
+        invalidatePlayerList();
+    }
+
+    private void invalidatePlayerList() {
+        mPlayerListItems = null;
+        mPlayerListItemLengths = null;
+    }
+
+    private void buildPlayerList() {
+        int availableMediaPlayers = 0;
+        int totalLength = 0;
+        for (MediaPlayerInfo di : mMediaPlayers) {
+            if (di.GetPlayerAvailablility()) {
+                availableMediaPlayers++;
+                totalLength += di.RetrievePlayerEntryLength();
+            }
+        }
+        byte[] items = new byte[totalLength];
+        int[] lengths = new int[availableMediaPlayers];
+        int index = 0;
+        int position = 0;
+        for (MediaPlayerInfo di : mMediaPlayers) {
+            if (di.GetPlayerAvailablility()) {
+                byte[] playerEntry = di.RetrievePlayerItemEntry();
+                int length = di.RetrievePlayerEntryLength();
+                System.arraycopy(playerEntry, 0, items, position, length);
+                lengths[index++] = length;
+                position += length;
+            }
+        }
+        mPlayerListItems = items;
+        mPlayerListItemLengths = lengths;
     }
 
     public static Avrcp make(Context context, A2dpService svc,
@@ -669,6 +728,7 @@ public final class Avrcp {
             looper.quit();
         }
         mAudioManager.unregisterRemoteController(mRemoteController);
+        mContext.getContentResolver().unregisterContentObserver(mMediaObserver);
         clearDeviceDependentFeature();
         for (int i = 0; i < maxAvrcpConnections; i++) {
             cleanupDeviceFeaturesIndex(i);
@@ -679,6 +739,7 @@ public final class Avrcp {
             Log.e(TAG,"Unable to unregister Avrcp receiver", e);
         }
         mMediaPlayers.clear();
+        invalidatePlayerList();
         if (mHandler.hasMessages(MESSAGE_SET_ADDR_PLAYER_REQ_TIMEOUT)) {
             mHandler.removeMessages(MESSAGE_SET_ADDR_PLAYER_REQ_TIMEOUT);
             if (DEBUG)
@@ -1070,6 +1131,7 @@ public final class Avrcp {
                 break;
 
             case MESSAGE_PLAY_INTERVAL_TIMEOUT:
+                long tickStartNanos = SystemClock.elapsedRealtimeNanos();
                 if (DEBUG)
                     Log.v(TAG, "MESSAGE_PLAY_INTERVAL_TIMEOUT");
                 Log.v(TAG, "event for device address " + (BluetoothDevice)msg.obj);
@@ -1078,12 +1140,13 @@ public final class Avrcp {
                     Log.e(TAG,"invalid index for device");
                     break;
                 }
-                deviceFeatures[deviceIndex].mPlayPosChangedNT =
-                         NOTIFICATION_TYPE_CHANGED;
+                setNotificationType(deviceIndex, EVT_PLAY_POS_CHANGED, NOTIFICATION_TYPE_CHANGED);
                 Log.v(TAG, "event for device address " + (BluetoothDevice) msg.obj);
                 registerNotificationRspPlayPosNative(deviceFeatures[deviceIndex].mPlayPosChangedNT,
                         (int)getPlayPosition((BluetoothDevice) msg.obj) ,
                         getByteAddress((BluetoothDevice) msg.obj));
+                mNotificationRegistry.recordTick(
+                        SystemClock.elapsedRealtimeNanos() - tickStartNanos);
                 break;
 
             case MESSAGE_SET_ADDR_PLAYER_REQ_TIMEOUT:
@@ -1435,15 +1498,13 @@ public final class Avrcp {
             Log.v(TAG,"updateA2dpAudioState: Stream state not active ");
             return;
         }
-        for (int i = 0; i < maxAvrcpConnections; i++) {
-            if ((isPlaying != isPlayingState(deviceFeatures[i].mCurrentPlayState)) &&
-                    (device.equals(deviceFeatures[i].mCurrentDevice))) {
-                updatePlayPauseState(isPlaying ? RemoteControlClient.PLAYSTATE_PLAYING :
-                        RemoteControlClient.PLAYSTATE_PAUSED,
-                        RemoteControlClient.PLAYBACK_POSITION_INVALID,
-                        device);
-                break;
-            }
+        int deviceIndex = getIndexForDevice(device);
+        if ((deviceIndex != INVALID_DEVICE_INDEX) &&
+                (isPlaying != isPlayingState(deviceFeatures[deviceIndex].mCurrentPlayState))) {
+            updatePlayPauseState(isPlaying ? RemoteControlClient.PLAYSTATE_PLAYING :
+                    RemoteControlClient.PLAYSTATE_PAUSED,
+                    RemoteControlClient.PLAYBACK_POSITION_INVALID,
+                    device);
         }
     }
 
@@ -1454,8 +1515,7 @@ public final class Avrcp {
                 NOTIFICATION_TYPE_INTERIM) {
             if (DEBUG)
                 Log.v(TAG, "send Play Position reject to stack");
-            deviceFeatures[index].mPlayPosChangedNT =
-                    NOTIFICATION_TYPE_REJECT;
+            setNotificationType(index, EVT_PLAY_POS_CHANGED, NOTIFICATION_TYPE_REJECT);
             registerNotificationRspPlayPosNative(deviceFeatures[index].mPlayPosChangedNT,
                     -1 ,getByteAddress(device));
             mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
@@ -1506,7 +1566,7 @@ public final class Avrcp {
 
         if ((deviceFeatures[deviceIndex].mPlayStatusChangedNT ==
                 NOTIFICATION_TYPE_INTERIM) && (oldPlayStatus != newPlayStatus)) {
-            deviceFeatures[deviceIndex].mPlayStatusChangedNT = NOTIFICATION_TYPE_CHANGED;
+            setNotificationType(deviceIndex, EVT_PLAY_STATUS_CHANGED, NOTIFICATION_TYPE_CHANGED);
             registerNotificationRspPlayStatusNative(
                     deviceFeatures[deviceIndex].mPlayStatusChangedNT,
                     newPlayStatus,
@@ -1515,6 +1575,7 @@ public final class Avrcp {
     }
 
     private void updatePlayerStateAndPosition(int state, long currentPosMs) {
+        long tickStartNanos = SystemClock.elapsedRealtimeNanos();
         if (DEBUG) Log.v(TAG, "updatePlayerPlayPauseState, old=" +
                             mCurrentPlayerState + ", state=" + state);
         boolean oldPosValid = (mCurrentPosMs !=
@@ -1551,32 +1612,33 @@ public final class Avrcp {
                                RemoteControlClient.PLAYBACK_POSITION_ALWAYS_UNKNOWN);
         long playPosition = getPlayPosition(null);
         mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
-        for (int deviceIndex = 0; deviceIndex < maxAvrcpConnections; deviceIndex++) {
-            if (deviceFeatures[deviceIndex].mCurrentDevice != null &&
-                    ((deviceFeatures[deviceIndex].mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM) &&
-                    ((oldPlayStatus != newPlayStatus) || (oldPosValid != newPosValid) ||
+        /* Only devices with an interim play position registration need a look */
+        for (int mask = mNotificationRegistry.getRegistered(EVT_PLAY_POS_CHANGED); mask != 0;
+                mask &= mask - 1) {
+            int deviceIndex = Integer.numberOfTrailingZeros(mask);
+            if ((oldPlayStatus != newPlayStatus) || (oldPosValid != newPosValid) ||
                     (newPosValid && ((playPosition >= deviceFeatures[deviceIndex].mNextPosMs) ||
-                    (playPosition <= deviceFeatures[deviceIndex].mPrevPosMs)))))) {
-                deviceFeatures[deviceIndex].mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
+                    (playPosition <= deviceFeatures[deviceIndex].mPrevPosMs)))) {
+                setNotificationType(deviceIndex, EVT_PLAY_POS_CHANGED, NOTIFICATION_TYPE_CHANGED);
                 registerNotificationRspPlayPosNative(deviceFeatures[deviceIndex].mPlayPosChangedNT,
                         (int)playPosition,
                         getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-            }
-            if (deviceFeatures[deviceIndex].mCurrentDevice != null &&
-                    ((deviceFeatures[deviceIndex].mPlayPosChangedNT ==
-                    NOTIFICATION_TYPE_INTERIM) && newPosValid &&
-                    (state == RemoteControlClient.PLAYSTATE_PLAYING))) {
+            } else if (newPosValid && (state == RemoteControlClient.PLAYSTATE_PLAYING)) {
                 Message msg = mHandler.obtainMessage(MESSAGE_PLAY_INTERVAL_TIMEOUT,
                     0, 0, deviceFeatures[deviceIndex].mCurrentDevice);
                 mHandler.sendMessageDelayed(msg, deviceFeatures[deviceIndex].mNextPosMs
                                                                             - playPosition);
             }
+        }
+        for (int mask = mNotificationRegistry.getConnected(); mask != 0; mask &= mask - 1) {
+            int deviceIndex = Integer.numberOfTrailingZeros(mask);
             /*Discretion is required only when updating play state changed as playing*/
             if ((state != RemoteControlClient.PLAYSTATE_PLAYING) ||
                                 isPlayStateToBeUpdated(deviceIndex)) {
                 updatePlayStatusForDevice(deviceIndex, state);
             }
         }
+        mNotificationRegistry.recordTick(SystemClock.elapsedRealtimeNanos() - tickStartNanos);
     }
 
     private boolean isPlayStateToBeUpdated(int deviceIndex) {
@@ -1622,12 +1684,7 @@ public final class Avrcp {
     }
 
     private boolean areMultipleDevicesConnected() {
-        for (int deviceIndex = 0; deviceIndex < maxAvrcpConnections; deviceIndex++) {
-            if (deviceFeatures[deviceIndex].mCurrentDevice == null) {
-                return false;
-            }
-        }
-        return true;
+        return mNotificationRegistry.getConnectedCount() == maxAvrcpConnections;
     }
 
     private void updateTransportControls(int transportControlFlags) {
@@ -1686,8 +1743,7 @@ public final class Avrcp {
                 case PLAY_STATUS_CHANGE_NOTIFICATION:
                     if (deviceFeatures[i].mPlayStatusChangedNT ==
                             NOTIFICATION_TYPE_INTERIM) {
-                        deviceFeatures[i].mPlayStatusChangedNT =
-                                NOTIFICATION_TYPE_REJECT;
+                        setNotificationType(i, EVT_PLAY_STATUS_CHANGED, NOTIFICATION_TYPE_REJECT);
                         registerNotificationRspPlayStatusNative(
                                 deviceFeatures[i].mPlayStatusChangedNT,
                                 PLAYSTATUS_STOPPED,
@@ -1702,8 +1758,7 @@ public final class Avrcp {
                             NOTIFICATION_TYPE_INTERIM) {
                         if (DEBUG)
                             Log.v(TAG, "send Play Position reject to stack");
-                        deviceFeatures[i].mPlayPosChangedNT =
-                                NOTIFICATION_TYPE_REJECT;
+                        setNotificationType(i, EVT_PLAY_POS_CHANGED, NOTIFICATION_TYPE_REJECT);
                         registerNotificationRspPlayPosNative(
                                 deviceFeatures[i].mPlayPosChangedNT,
                                 -1 ,getByteAddress(deviceFeatures[i].mCurrentDevice));
@@ -1719,8 +1774,7 @@ public final class Avrcp {
                             NOTIFICATION_TYPE_INTERIM) {
                              if (DEBUG)
                                 Log.v(TAG, "send Track Changed reject to stack");
-                             deviceFeatures[i].mTrackChangedNT =
-                                    NOTIFICATION_TYPE_REJECT;
+                             setNotificationType(i, EVT_TRACK_CHANGED, NOTIFICATION_TYPE_REJECT);
                              byte[] track = new byte[TRACK_ID_SIZE];
                              /* track is stored in big endian format */
                              for (int j = 0; j < TRACK_ID_SIZE; ++j) {
@@ -1783,8 +1837,8 @@ public final class Avrcp {
         deviceFeatures[deviceIndex].mMediaUri = mMediaUriStatic;
         mMediaUriStatic = null;
 
-        setBrowsedPlayerRspNative((byte)status, 0x0, numOfItems, 0x0, CHAR_SET_UTF8,
-                                   folderNames, getByteAddress(device));
+        setBrowsedPlayerRspNative((byte)status, mBrowseCache.getUidCounter(), numOfItems, 0x0,
+                                   CHAR_SET_UTF8, folderNames, getByteAddress(device));
         mBrowserDevice = null;
     }
 
@@ -1885,17 +1939,31 @@ public final class Avrcp {
             reqItems = availableItems;
         Log.i(TAG, "reqItems: " + reqItems);
 
-        for (index = 0; index < reqItems; index++) {
-            try {
-                cursor = mContext.getContentResolver().query(
-                     deviceFeatures[deviceIndex].mMediaUri, mCursorCols,
-                     MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" +
-                         playList[index + (int)mCachedRequest.mStart], null, null);
-                if (cursor != null) {
+        // One query for the whole range; the rows are mapped back to playlist order below
+        long[] trackIds = new long[(int)reqItems];
+        System.arraycopy(playList, (int)mCachedRequest.mStart, trackIds, 0, (int)reqItems);
+        index = 0;
+        try {
+            cursor = mContext.getContentResolver().query(
+                 deviceFeatures[deviceIndex].mMediaUri, mCursorCols,
+                 MediaStore.Audio.Media.IS_MUSIC + "=1 AND " + buildIdInClause("_id", trackIds),
+                 null, null);
+            if (cursor != null) {
+                LongSparseArray<Integer> rowById = new LongSparseArray<Integer>(cursor.getCount());
+                final int idColumn = cursor.getColumnIndexOrThrow("_id");
+                while (cursor.moveToNext()) {
+                    rowById.put(cursor.getLong(idColumn), cursor.getPosition());
+                }
+                for (int track = 0; track < reqItems; track++) {
+                    Integer row = rowById.get(trackIds[track]);
+                    if (row == null) {
+                        Log.w(TAG, "Now playing track " + trackIds[track] + " not found");
+                        continue;
+                    }
+                    cursor.moveToPosition(row);
                     int validAttrib = 0;
-                    cursor.moveToFirst();
                     itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                    uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
+                    uid[index] = trackIds[track];
                     type[index] = MEDIA_TYPE_AUDIO;
                     playable[index] = 0;
                     displayName[index] = cursor.getString(cursor.getColumnIndexOrThrow(
@@ -1910,18 +1978,21 @@ public final class Avrcp {
                         }
                     }
                     numAtt[index] = (byte)validAttrib;
-                }
-            } catch(Exception e) {
-                Log.i(TAG, "Exception e"+ e);
-                getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                        numItems, itemType, uid, type,
-                        playable, displayName, numAtt, attValues, attIds,
-                        getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+                    index++;
                 }
             }
+        } catch(Exception e) {
+            Log.i(TAG, "Exception e"+ e);
+            getFolderItemsRspNative((byte)INTERNAL_ERROR ,
+                    numItems, itemType, uid, type,
+                    playable, displayName, numAtt, attValues, attIds,
+                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
+            mBrowserDevice = null;
+            return;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
         numItems = index;
         getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL ,
@@ -1931,6 +2002,20 @@ public final class Avrcp {
         mBrowserDevice = null;
     }
 
+    /**
+     * Build a selection matching any of the given ids, so a range of items is
+     * fetched in one query instead of one query per item.
+     */
+    private static String buildIdInClause(String column, long[] ids) {
+        StringBuilder sb = new StringBuilder(column.length() + 6 + ids.length * 8);
+        sb.append(column).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(ids[i]);
+        }
+        return sb.append(')').toString();
+    }
+
     class CachedRequest {
         long mStart;
         long mEnd;
@@ -2009,20 +2094,20 @@ public final class Avrcp {
 
         if (!oldMetadata.equals(mMetadata.toString())) {
             Log.v(TAG,"new mMetadata, mTrackNumber update to " + mTrackNumber);
-            for (int i = 0; i < maxAvrcpConnections; i++) {
-                if ((deviceFeatures[i].mCurrentDevice != null) &&
-                    (deviceFeatures[i].mTrackChangedNT == NOTIFICATION_TYPE_INTERIM)) {
-                    deviceFeatures[i].mTrackChangedNT = NOTIFICATION_TYPE_CHANGED;
-                    Log.v(TAG,"sending track change for device " + i);
-                    sendTrackChangedRsp(deviceFeatures[i].mCurrentDevice);
-                }
+            for (int mask = mNotificationRegistry.getRegistered(EVT_TRACK_CHANGED); mask != 0;
+                    mask &= mask - 1) {
+                int i = Integer.numberOfTrailingZeros(mask);
+                setNotificationType(i, EVT_TRACK_CHANGED, NOTIFICATION_TYPE_CHANGED);
+                Log.v(TAG,"sending track change for device " + i);
+                sendTrackChangedRsp(deviceFeatures[i].mCurrentDevice);
             }
             if (mCurrentPosMs != RemoteControlClient.PLAYBACK_POSITION_ALWAYS_UNKNOWN) {
                 mCurrentPosMs = 0L;
-                for (int i = 0; i < maxAvrcpConnections; i++) {
-                    if ((deviceFeatures[i].mCurrentDevice != null) &&
-                        (deviceFeatures[i].mCurrentPlayState ==
-                                RemoteControlClient.PLAYSTATE_PLAYING)) {
+                for (int mask = mNotificationRegistry.getConnected(); mask != 0;
+                        mask &= mask - 1) {
+                    int i = Integer.numberOfTrailingZeros(mask);
+                    if (deviceFeatures[i].mCurrentPlayState ==
+                                RemoteControlClient.PLAYSTATE_PLAYING) {
                         Log.i(TAG,"updated mPlayStartTimeMs");
                         mPlayStartTimeMs = SystemClock.elapsedRealtime();
                         break;
@@ -2030,13 +2115,14 @@ public final class Avrcp {
                 }
             }
             /* need send play position changed notification when track is changed */
-            for (int i = 0; i < maxAvrcpConnections; i++) {
+            for (int mask = mNotificationRegistry.getRegistered(EVT_PLAY_POS_CHANGED); mask != 0;
+                    mask &= mask - 1) {
+                int i = Integer.numberOfTrailingZeros(mask);
                 Log.v(TAG,i + " mCurrentPlayState " + deviceFeatures[i].mCurrentPlayState);
-                if (deviceFeatures[i].mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM &&
-                        deviceFeatures[i].mCurrentPlayState ==
+                if (deviceFeatures[i].mCurrentPlayState ==
                         RemoteControlClient.PLAYSTATE_PLAYING) {
                     Log.v(TAG,"sending play pos change for device " + i);
-                    deviceFeatures[i].mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
+                    setNotificationType(i, EVT_PLAY_POS_CHANGED, NOTIFICATION_TYPE_CHANGED);
                     registerNotificationRspPlayPosNative(deviceFeatures[i].mPlayPosChangedNT,
                             (int)getPlayPosition(deviceFeatures[i].mCurrentDevice) ,
                             getByteAddress(deviceFeatures[i].mCurrentDevice));
@@ -2221,7 +2307,7 @@ public final class Avrcp {
                             MediaStore.Audio.Media.ARTIST_ID, deviceIndex);
                     } else if (folderUid == UID_PLAYLIST) {
                         deviceFeatures[deviceIndex].mCurrentPath = PATH_PLAYLISTS;
-                        numberOfItems = getNumPlaylistItems();
+                        numberOfItems = getNumPlaylistItems(deviceIndex);
                     } else {
                         status = DOES_NOT_EXIST;
                     }
@@ -2278,30 +2364,16 @@ public final class Avrcp {
                     break;
                 case FOLDER_DOWN:
                     if (deviceFeatures[deviceIndex].mCurrentPathUid == null) { // Path @ Album
-                        Cursor cursor = null;
-                        try {
-                            cursor = mContext.getContentResolver().query(
-                                deviceFeatures[deviceIndex].mMediaUri,
-                                new String[] {MediaStore.Audio.Media.ALBUM},
-                                MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
-                                MediaStore.Audio.Media.ALBUM_ID + "=" + folderUid,
-                                null, null);
-                            if ((cursor == null) || (cursor.getCount() == 0)) {
-                                status = DOES_NOT_EXIST;
-                            } else{
-                                numberOfItems = cursor.getCount();
-                                deviceFeatures[deviceIndex].mCurrentPathUid =
-                                        String.valueOf(folderUid);
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Exception " + e);
-                            changePathRspNative(INTERNAL_ERROR ,
-                                    numberOfItems ,
-                                    getByteAddress(device));
-                        } finally {
-                            if (cursor != null) {
-                                cursor.close();
-                            }
+                        long count = getNumFolderItems(PATH_ALBUMS,
+                                MediaStore.Audio.Media.ALBUM_ID, folderUid, deviceIndex);
+                        if (count < 0) {
+                            status = INTERNAL_ERROR;
+                        } else if (count == 0) {
+                            status = DOES_NOT_EXIST;
+                        } else {
+                            numberOfItems = count;
+                            deviceFeatures[deviceIndex].mCurrentPathUid =
+                                    String.valueOf(folderUid);
                         }
                     } else { // Path @ Individual Album id
                         Cursor cursor = null;
@@ -2349,31 +2421,17 @@ public final class Avrcp {
                     break;
                 case FOLDER_DOWN:
                     if (deviceFeatures[deviceIndex].mCurrentPathUid == null) {
-                        Cursor cursor = null;
-                        try {
-                            cursor = mContext.getContentResolver().query(
-                                deviceFeatures[deviceIndex].mMediaUri,
-                                new String[] {MediaStore.Audio.Media.ARTIST},
-                                MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
-                                MediaStore.Audio.Media.ARTIST_ID + "=" + folderUid,
-                                null, null);
-                            if ((cursor == null) || (cursor.getCount() == 0)) {
-                                status = DOES_NOT_EXIST;
-                            } else{
-                                numberOfItems = cursor.getCount();
-                                deviceFeatures[deviceIndex].mCurrentPathUid =
-                                        String.valueOf(folderUid);
-                                deviceFeatures[deviceIndex].mCurrentPath = PATH_ARTISTS;
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Exception " + e);
-                            changePathRspNative(INTERNAL_ERROR ,
-                                    numberOfItems ,
-                                    getByteAddress(device));
-                        } finally {
-                            if (cursor != null) {
-                                cursor.close();
-                            }
+                        long count = getNumFolderItems(PATH_ARTISTS,
+                                MediaStore.Audio.Media.ARTIST_ID, folderUid, deviceIndex);
+                        if (count < 0) {
+                            status = INTERNAL_ERROR;
+                        } else if (count == 0) {
+                            status = DOES_NOT_EXIST;
+                        } else {
+                            numberOfItems = count;
+                            deviceFeatures[deviceIndex].mCurrentPathUid =
+                                    String.valueOf(folderUid);
+                            deviceFeatures[deviceIndex].mCurrentPath = PATH_ARTISTS;
                         }
                     } else {
                         Cursor cursor = null;
@@ -2412,7 +2470,7 @@ public final class Avrcp {
                     } else {
                         deviceFeatures[deviceIndex].mCurrentPath = PATH_PLAYLISTS;
                         deviceFeatures[deviceIndex].mCurrentPathUid = null;
-                        numberOfItems = getNumPlaylistItems();
+                        numberOfItems = getNumPlaylistItems(deviceIndex);
                     }
                     break;
                 case FOLDER_DOWN:
@@ -2470,7 +2528,13 @@ public final class Avrcp {
                 getByteAddress(device));
     }
 
-    private long getNumPlaylistItems() {
+    private long getNumPlaylistItems(int deviceIndex) {
+        String folderKey = AvrcpBrowseCache.folderKey(deviceFeatures[deviceIndex].mMediaUri,
+                PATH_PLAYLISTS, null);
+        long cached = mBrowseCache.getFolderSize(folderKey);
+        if (cached >= 0) {
+            return cached;
+        }
         Cursor cursor = null;
         String[] cols = new String[] {
                 MediaStore.Audio.Playlists._ID,
@@ -2486,6 +2550,7 @@ public final class Avrcp {
                 return 0;
             } else {
                 long count = cursor.getCount();
+                mBrowseCache.putFolderSize(folderKey, count);
                 return count;
             }
         } catch (Exception e) {
@@ -2501,6 +2566,12 @@ public final class Avrcp {
     private long getNumItems(String path, String element, int deviceIndex) {
         if (path == null || element == null)
             return 0;
+        String folderKey = AvrcpBrowseCache.folderKey(deviceFeatures[deviceIndex].mMediaUri,
+                path, null);
+        long cached = mBrowseCache.getFolderSize(folderKey);
+        if (cached >= 0) {
+            return cached;
+        }
         Cursor cursor = null;
         try {
             cursor = mContext.getContentResolver().query(
@@ -2512,6 +2583,7 @@ public final class Avrcp {
                 return 0;
             } else if (path.equals(PATH_TITLES)) {
                 long count = cursor.getCount();
+                mBrowseCache.putFolderSize(folderKey, count);
                 return count;
             } else if (path.equals(PATH_ALBUMS) || path.equals(PATH_ARTISTS)){
                 long elemCount = 0;
@@ -2521,7 +2593,6 @@ public final class Avrcp {
                 long curElem = 0;
                 while (count > 0) {
                     curElem = cursor.getLong(cursor.getColumnIndexOrThrow(element));
-                    Log.i(TAG, "curElem "+ curElem + "preElem " + prevElem);
                     if (curElem != prevElem) {
                         elemCount++;
                     }
@@ -2530,6 +2601,7 @@ public final class Avrcp {
                     count--;
                 }
                 Log.i(TAG, "element Count is "+ elemCount);
+                mBrowseCache.putFolderSize(folderKey, elemCount);
                 return elemCount;
             }
         } catch (Exception e) {
@@ -2542,6 +2614,38 @@ public final class Avrcp {
         return 0;
     }
 
+    /* Tracks in one album or artist folder, -1 if MediaStore could not be read */
+    private long getNumFolderItems(String path, String element, long folderUid,
+            int deviceIndex) {
+        String folderKey = AvrcpBrowseCache.folderKey(deviceFeatures[deviceIndex].mMediaUri,
+                path, String.valueOf(folderUid));
+        long cached = mBrowseCache.getFolderSize(folderKey);
+        if (cached >= 0) {
+            return cached;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(
+                deviceFeatures[deviceIndex].mMediaUri,
+                new String[] {element},
+                MediaStore.Audio.Media.IS_MUSIC + "=1 AND " + element + "=" + folderUid,
+                null, null);
+            if (cursor == null) {
+                return 0;
+            }
+            long count = cursor.getCount();
+            mBrowseCache.putFolderSize(folderKey, count);
+            return count;
+        } catch (Exception e) {
+            Log.e(TAG, "Exception " + e);
+            return -1;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     private void playItem(byte scope, long uid, byte[] address) {
         if (DEBUG)
             Log.v(TAG, "playItem: scope: " + scope + " uid:" + uid);
@@ -2950,31 +3054,24 @@ public final class Avrcp {
 
     private void processGetMediaPlayerItems(byte scope, long start, long end, int size,
             int numAttr, int[] attrs, String deviceAddress) {
-        byte[] folderItems = new byte[size];
-        int[] folderItemLengths = new int[32];
-        int availableMediaPlayers = 0;
-        int count = 0;
-        int positionItemStart = 0;
         BluetoothDevice device = mAdapter.getRemoteDevice(deviceAddress);
-        if (mMediaPlayers.size() > 0) {
-            final Iterator<MediaPlayerInfo> rccIterator = mMediaPlayers.iterator();
-            while (rccIterator.hasNext()) {
-                final MediaPlayerInfo di = rccIterator.next();
-                if (di.GetPlayerAvailablility()) {
-                    if (start == 0) {
-                        byte[] playerEntry = di.RetrievePlayerItemEntry();
-                        int length = di.RetrievePlayerEntryLength();
-                        folderItemLengths[availableMediaPlayers ++] = length;
-                        for (count = 0; count < length; count ++) {
-                            folderItems[positionItemStart + count] = playerEntry[count];
-                        }
-                        positionItemStart += length; // move start to next item start
-                    } else if (start > 0) {
-                        --start;
-                    }
-                }
+        if (mPlayerListItems == null) {
+            buildPlayerList();
+        }
+        byte[] folderItems = mPlayerListItems;
+        int[] folderItemLengths = mPlayerListItemLengths;
+        /* the list starts at the start'th available player */
+        int skip = (int)Math.min(Math.max(start, 0), folderItemLengths.length);
+        if (skip > 0) {
+            int offset = 0;
+            for (int i = 0; i < skip; i++) {
+                offset += folderItemLengths[i];
             }
+            folderItems = Arrays.copyOfRange(folderItems, offset, folderItems.length);
+            folderItemLengths = Arrays.copyOfRange(folderItemLengths, skip,
+                    folderItemLengths.length);
         }
+        int availableMediaPlayers = folderItemLengths.length;
         if (DEBUG)
             Log.v(TAG, "Number of available MediaPlayers = " +
                     availableMediaPlayers);
@@ -2994,6 +3091,153 @@ public final class Avrcp {
         return false;
     }
 
+    /* Rows of the current browse folder, from the cache or read afresh from MediaStore */
+    private AvrcpBrowseCache.Item[] getBrowseListing(int deviceIndex, byte numAttr, int[] attrs) {
+        DeviceDependentFeature feature = deviceFeatures[deviceIndex];
+        boolean tracks = feature.mCurrentPath.equals(PATH_TITLES) ||
+                (feature.mCurrentPathUid != null);
+        if (!tracks) {
+            // Folder items carry no attributes, share one listing for every request
+            numAttr = 0;
+        }
+        String folderKey = AvrcpBrowseCache.folderKey(feature.mMediaUri,
+                feature.mCurrentPath, feature.mCurrentPathUid);
+        AvrcpBrowseCache.Item[] listing = mBrowseCache.getListing(folderKey, numAttr, attrs);
+        if (listing != null) {
+            if (DEBUG)
+                Log.v(TAG, "getBrowseListing: cached " + folderKey);
+            return listing;
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = queryBrowseFolder(feature);
+            if (cursor == null) {
+                Log.i(TAG, "Error: could not fetch the elements");
+                return null;
+            }
+            listing = tracks ? readTrackListing(cursor, feature, numAttr, attrs, deviceIndex)
+                    : readFolderListing(cursor, feature);
+        } catch (Exception e) {
+            Log.e(TAG, "Exception " + e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        mBrowseCache.putListing(folderKey, numAttr, attrs, listing);
+        return listing;
+    }
+
+    private Cursor queryBrowseFolder(DeviceDependentFeature feature) {
+        ContentResolver resolver = mContext.getContentResolver();
+        String path = feature.mCurrentPath;
+        String pathUid = feature.mCurrentPathUid;
+        if (path.equals(PATH_TITLES)) {
+            return resolver.query(feature.mMediaUri, mCursorCols,
+                    MediaStore.Audio.Media.IS_MUSIC + "=1", null,
+                    MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
+        } else if (path.equals(PATH_ALBUMS)) {
+            String where = MediaStore.Audio.Media.IS_MUSIC + "=1";
+            if (pathUid != null) {
+                where += " AND " + MediaStore.Audio.Media.ALBUM_ID + "=" + Long.valueOf(pathUid);
+            }
+            return resolver.query(feature.mMediaUri, mCursorCols, where, null,
+                    MediaStore.Audio.Albums.DEFAULT_SORT_ORDER);
+        } else if (path.equals(PATH_ARTISTS)) {
+            String where = MediaStore.Audio.Media.IS_MUSIC + "=1";
+            if (pathUid != null) {
+                where += " AND " + MediaStore.Audio.Media.ARTIST_ID + "=" + Long.valueOf(pathUid);
+            }
+            return resolver.query(feature.mMediaUri, mCursorCols, where, null,
+                    MediaStore.Audio.Artists.DEFAULT_SORT_ORDER);
+        } else if (path.equals(PATH_PLAYLISTS)) {
+            if (pathUid == null) {
+                String[] cols = new String[] {
+                        MediaStore.Audio.Playlists._ID,
+                        MediaStore.Audio.Playlists.NAME
+                };
+                return resolver.query(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
+                        cols, MediaStore.Audio.Playlists.NAME + " != ''", null,
+                        MediaStore.Audio.Playlists.DEFAULT_SORT_ORDER);
+            }
+            String[] playlistMemberCols = new String[] {
+                    MediaStore.Audio.Playlists.Members._ID,
+                    MediaStore.Audio.Media.TITLE,
+                    MediaStore.Audio.Media.DATA,
+                    MediaStore.Audio.Media.ALBUM,
+                    MediaStore.Audio.Media.ARTIST,
+                    MediaStore.Audio.Media.DURATION,
+                    MediaStore.Audio.Playlists.Members.PLAY_ORDER,
+                    MediaStore.Audio.Playlists.Members.AUDIO_ID,
+                    MediaStore.Audio.Media.IS_MUSIC
+            };
+            Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external",
+                    Long.valueOf(pathUid));
+            return resolver.query(uri, playlistMemberCols,
+                    MediaStore.Audio.Media.TITLE + " != ''", null,
+                    MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER);
+        }
+        return null;
+    }
+
+    /* Album, artist and playlist folders, one item per distinct folder id */
+    private AvrcpBrowseCache.Item[] readFolderListing(Cursor cursor,
+            DeviceDependentFeature feature) {
+        int idColumn;
+        int nameColumn;
+        int folderType;
+        if (feature.mCurrentPath.equals(PATH_ALBUMS)) {
+            idColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID);
+            nameColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM);
+            folderType = FOLDER_TYPE_ALBUMS;
+        } else if (feature.mCurrentPath.equals(PATH_ARTISTS)) {
+            idColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST_ID);
+            nameColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST);
+            folderType = FOLDER_TYPE_ARTISTS;
+        } else {
+            idColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Playlists._ID);
+            nameColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Playlists.NAME);
+            folderType = FOLDER_TYPE_PLAYLISTS;
+        }
+        ArrayList<AvrcpBrowseCache.Item> items = new ArrayList<AvrcpBrowseCache.Item>();
+        HashSet<Long> seen = new HashSet<Long>();
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            long id = cursor.getLong(idColumn);
+            if (seen.add(id)) {
+                items.add(new AvrcpBrowseCache.Item(TYPE_FOLDER_ITEM, id, folderType,
+                        cursor.getString(nameColumn), null));
+            }
+        }
+        return items.toArray(new AvrcpBrowseCache.Item[items.size()]);
+    }
+
+    private AvrcpBrowseCache.Item[] readTrackListing(Cursor cursor,
+            DeviceDependentFeature feature, byte numAttr, int[] attrs, int deviceIndex) {
+        int uidColumn = (feature.mCurrentPath.equals(PATH_PLAYLISTS)) ?
+                cursor.getColumnIndexOrThrow(MediaStore.Audio.Playlists.Members.AUDIO_ID) :
+                cursor.getColumnIndexOrThrow("_id");
+        int titleColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE);
+        AvrcpBrowseCache.Item[] items = new AvrcpBrowseCache.Item[cursor.getCount()];
+        int index = 0;
+        for (cursor.moveToFirst(); !cursor.isAfterLast() && index < items.length;
+                cursor.moveToNext()) {
+            String[] values = new String[numAttr];
+            for (int attIndex = 0; attIndex < numAttr; attIndex++) {
+                if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
+                        (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
+                    values[attIndex] = getAttributeStringFromCursor(
+                            cursor, attrs[attIndex], deviceIndex);
+                }
+            }
+            items[index++] = new AvrcpBrowseCache.Item(TYPE_MEDIA_ELEMENT_ITEM,
+                    cursor.getLong(uidColumn), MEDIA_TYPE_AUDIO,
+                    cursor.getString(titleColumn), values);
+        }
+        return (index == items.length) ? items : Arrays.copyOf(items, index);
+    }
+
     private void processGetFolderItemsInternal(byte scope, long start, long end, int size,
             byte numAttr, int[] attrs, String deviceAddress) {
         int status = OPERATION_SUCCESSFUL;
@@ -3130,655 +3374,61 @@ public final class Avrcp {
                         numItems, itemType, uid, type,
                         playable, displayName, numAtt, attValues, attIds,
                         getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-            } else if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_TITLES)) {
-                long availableItems = 0;
-                Cursor cursor = null;
-                try {
-                    cursor = mContext.getContentResolver().query(
-                            deviceFeatures[deviceIndex].mMediaUri,
-                            mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                            MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
-                    if (cursor != null) {
-                        availableItems = cursor.getCount();
-                        if (start >= availableItems) {
-                            Log.i(TAG, "startIteam exceeds the available item index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                            return;
-                        }
-                        cursor.moveToFirst();
-                        for (int i = 0; i < start; i++) {
-                            cursor.moveToNext();
-                        }
-                    } else {
-                        Log.i(TAG, "Error: could not fetch the elements");
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                numItems, itemType, uid, type,
-                                playable, displayName, numAtt, attValues, attIds,
-                                getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                        return;
-                    }
-                    if (DEBUG)
-                        Log.v(TAG, "availableItems: " + availableItems);
-                    if (DEBUG)
-                        Log.v(TAG, "reqItems: " + reqItems);
-                    availableItems = availableItems - start;
-                    if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                        availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                    if (reqItems > availableItems)
-                        reqItems = availableItems;
-                    if (DEBUG)
-                        Log.v(TAG, "revised reqItems: " + reqItems);
-                    int attIndex;
-                    int index;
-                    for (index = 0; index < reqItems; index++) {
-                        itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                        uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-                        type[index] = MEDIA_TYPE_AUDIO;
-                        playable[index] = 0;
-                        displayName[index] =
-                            cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                    Audio.Media.TITLE));
-                        int validAttrib = 0;
-                        for (attIndex = 0; attIndex < numAttr; attIndex++) {
-                            if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
-                                        (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
-                                attValues[(7 * index) + attIndex] =
-                                        getAttributeStringFromCursor(
-                                        cursor, attrs[attIndex], deviceIndex);
-                                attIds[(7 * index) + attIndex] = attrs[attIndex];
-                                validAttrib ++;
-                            }
-                        }
-                        numAtt[index] = (byte)validAttrib;
-                        cursor.moveToNext();
-                    }
-                    numItems = index;
-                    getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL ,
+            } else {
+                AvrcpBrowseCache.Item[] listing = getBrowseListing(deviceIndex, numAttr, attrs);
+                if (listing == null) {
+                    getFolderItemsRspNative((byte)INTERNAL_ERROR ,
                             numItems, itemType, uid, type,
                             playable, displayName, numAtt, attValues, attIds,
                             getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                } catch(Exception e) {
-                    Log.i(TAG, "Exception e" + e);
-                    getFolderItemsRspNative((byte)INTERNAL_ERROR ,
+                    return;
+                }
+                long availableItems = listing.length;
+                if (start >= availableItems) {
+                    Log.i(TAG, "startIteam exceeds the available item index");
+                    getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS ,
                             numItems, itemType, uid, type,
                             playable, displayName, numAtt, attValues, attIds,
                             getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
-                }
-            } else if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_ALBUMS)) {
-                if (deviceFeatures[deviceIndex].mCurrentPathUid == null) {
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        availableItems = getNumItems(PATH_ALBUMS,
-                                MediaStore.Audio.Media.ALBUM_ID, deviceIndex);
-                        if (start >= availableItems) {
-                            Log.i(TAG, "startIteam exceeds the available item index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                            return;
-                        }
-                        if (DEBUG)
-                            Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG)
-                            Log.v(TAG, "reqItems: " + reqItems);
-
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = (int)availableItems;
-                        Log.i(TAG, "revised reqItems: " + reqItems);
-
-                        cursor = mContext.getContentResolver().query(
-                                            deviceFeatures[deviceIndex].mMediaUri, mCursorCols,
-                                            MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                                            MediaStore.Audio.Albums.DEFAULT_SORT_ORDER);
-
-                        int count = 0;
-                        if (cursor != null) {
-                            count = cursor.getCount();
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                            return;
-                        }
-                        if (count < reqItems) {
-                            reqItems = count;
-                        }
-                        cursor.moveToFirst();
-                        int index = 0;
-                        long prevElem = -1;
-                        long curElem = -1;
-                        while ((reqItems > 0) && (count > 0)) {
-                            curElem = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                    MediaStore.Audio.Media.ALBUM_ID));
-                            if (curElem != prevElem) {
-                                if (start > 0) {
-                                    --start;
-                                } else {
-                                    itemType[index] = TYPE_FOLDER_ITEM;
-                                    uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                        MediaStore.Audio.Media.ALBUM_ID));
-                                    type[index] = FOLDER_TYPE_ALBUMS;
-                                    playable[index] = 0;
-                                    displayName[index] = cursor.getString(
-                                                cursor.getColumnIndexOrThrow(
-                                                MediaStore.Audio.Media.ALBUM));
-                                    numAtt[index] = 0;
-                                    index++;
-                                    reqItems--;
-                                }
-                            }
-                            prevElem = curElem;
-                            cursor.moveToNext();
-                            count--;
-                        }
-                        if (index > 0) {
-                            numItems = index;
-                            getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                        } else {
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                        }
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                numItems, itemType, uid, type,
-                                playable, displayName, numAtt, attValues, attIds,
-                                getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                } else {
-                    long folderUid = Long.valueOf(deviceFeatures[deviceIndex].mCurrentPathUid);
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        cursor = mContext.getContentResolver().query(
-                            deviceFeatures[deviceIndex].mMediaUri,
-                            mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
-                            MediaStore.Audio.Media.ALBUM_ID + "=" + folderUid, null,
-                                            MediaStore.Audio.Albums.DEFAULT_SORT_ORDER);
-
-                        if (cursor != null) {
-                            availableItems = cursor.getCount();
-                            if (start >= availableItems) {
-                                Log.i(TAG, "startIteam exceeds the available item index");
-                                getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS ,
-                                        numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds,
-                                        getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                                return;
-                            }
-                            cursor.moveToFirst();
-                            for (int i = 0; i < start; i++) {
-                                cursor.moveToNext();
-                            }
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                            return;
-                        }
-
-                        if (DEBUG)
-                            Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG)
-                            Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = availableItems;
-                        if (DEBUG)
-                            Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        int attIndex;
-                        int index;
-                        for (index = 0; index < reqItems; index++) {
-                            itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                            uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-                            type[index] = MEDIA_TYPE_AUDIO;
-                            playable[index] = 0;
-                            displayName[index] =
-                                cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                        Audio.Media.TITLE));                            
-                            int validAttrib = 0;
-                            for (attIndex = 0; attIndex < numAttr; attIndex++) {
-                                if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
-                                            (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
-                                    attValues[(7 * index) + attIndex] =
-                                            getAttributeStringFromCursor(
-                                            cursor, attrs[attIndex], deviceIndex);
-                                    attIds[(7 * index) + attIndex] = attrs[attIndex];
-                                    validAttrib ++;
-                                }
-                            }
-                            numAtt[index] = (byte)validAttrib;
-                            cursor.moveToNext();
-                        }
-                        numItems = index;
-                        getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL ,
-                                numItems, itemType, uid, type,
-                                playable, displayName, numAtt, attValues, attIds,
-                                getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                numItems, itemType, uid, type,
-                                playable, displayName, numAtt, attValues, attIds,
-                                getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                }
-            } else if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_ARTISTS)) {
-                if (deviceFeatures[deviceIndex].mCurrentPathUid == null) {
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        availableItems = getNumItems(PATH_ARTISTS,
-                                    MediaStore.Audio.Media.ARTIST_ID, deviceIndex);
-                        if (start >= availableItems) {
-                            Log.i(TAG, "startIteam exceeds the available item index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                            return;
-                        }
-
-                        if (DEBUG)
-                            Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG)
-                            Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = (int)availableItems;
-                        if (DEBUG)
-                            Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        cursor = mContext.getContentResolver().query(
-                            deviceFeatures[deviceIndex].mMediaUri, mCursorCols,
-                            MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                            MediaStore.Audio.Artists.DEFAULT_SORT_ORDER);
-
-                        int count = 0;
-                        if (cursor != null) {
-                            count = cursor.getCount();
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                            return;
-                        }
-                        if (count < reqItems) {
-                            reqItems = count;
-                        }
-                        cursor.moveToFirst();
-                        int index = 0;
-                        long prevElem = -1;
-                        long curElem = -1;
-                        while ((reqItems > 0) && (count > 0)) {
-                            curElem = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                    MediaStore.Audio.Media.ARTIST_ID));
-                            if (curElem != prevElem) {
-                                if (start > 0) {
-                                    --start;
-                                } else {
-                                    itemType[index] = TYPE_FOLDER_ITEM;
-                                    uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                        MediaStore.Audio.Media.ARTIST_ID));
-                                    type[index] = FOLDER_TYPE_ARTISTS;
-                                    playable[index] = 0;
-                                    displayName[index] = cursor.getString(
-                                        cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST));
-                                    numAtt[index] = 0;
-                                    index++;
-                                    reqItems--;
-                                }
-                            }
-                            prevElem = curElem;
-                            cursor.moveToNext();
-                            count--;
-                        }
-                        if (index > 0) {
-                            numItems = index;
-                            getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                        } else {
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                        }
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                numItems, itemType, uid, type,
-                                playable, displayName, numAtt, attValues, attIds,
-                                getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                } else {
-                    long folderUid = Long.valueOf(deviceFeatures[deviceIndex].mCurrentPathUid);
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        cursor = mContext.getContentResolver().query(
-                            deviceFeatures[deviceIndex].mMediaUri,
-                            mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
-                            MediaStore.Audio.Media.ARTIST_ID + "=" + folderUid, null,
-                            MediaStore.Audio.Artists.DEFAULT_SORT_ORDER);
-
-                        if (cursor != null) {
-                            availableItems = cursor.getCount();
-                            if (start >= availableItems) {
-                                Log.i(TAG, "startIteam exceeds the available item index");
-                                getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS ,
-                                        numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds,
-                                        getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                                return;
-                            }
-                            cursor.moveToFirst();
-                            for (int i = 0; i < start; i++) {
-                                cursor.moveToNext();
-                            }
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                            return;
-                        }
-
-                        if (DEBUG)
-                            Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG)
-                            Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = availableItems;
-                        if (DEBUG)
-                            Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        int attIndex;
-                        int index;
-                        for (index = 0; index < reqItems; index++) {
-                            itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                            uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-                            type[index] = MEDIA_TYPE_AUDIO;
-                            playable[index] = 0;
-                            displayName[index] =
-                                cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                        Audio.Media.TITLE));
-                            int validAttrib = 0;
-                            for (attIndex = 0; attIndex < numAttr; attIndex++) {
-                                if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
-                                            (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
-                                    attValues[(7 * index) + attIndex] =
-                                                getAttributeStringFromCursor(
-                                                cursor, attrs[attIndex], deviceIndex);
-                                    attIds[(7 * index) + attIndex] = attrs[attIndex];
-                                    validAttrib ++;
-                                }
-                            }
-                            numAtt[index] = (byte)validAttrib;
-                            cursor.moveToNext();
-                        }
-                        numItems = index;
-                        getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL ,
-                                numItems, itemType, uid, type,
-                                playable, displayName, numAtt, attValues, attIds,
-                                getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                numItems, itemType, uid, type,
-                                playable, displayName, numAtt, attValues, attIds,
-                                getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
+                    return;
                 }
-            } else if (deviceFeatures[deviceIndex].mCurrentPath.equals(PATH_PLAYLISTS)) {
-                if (deviceFeatures[deviceIndex].mCurrentPathUid == null) {
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        availableItems = getNumPlaylistItems();
-                        if (start >= availableItems) {
-                            Log.i(TAG, "startIteam exceeds the available item index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                            return;
-                        }
-                        if (DEBUG)
-                            Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG)
-                            Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = (int)availableItems;
-                        if (DEBUG)
-                            Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        String[] cols = new String[] {
-                                MediaStore.Audio.Playlists._ID,
-                                MediaStore.Audio.Playlists.NAME
-                        };
-
-                        cursor = mContext.getContentResolver().query(
-                            MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
-                            cols, MediaStore.Audio.Playlists.NAME + " != ''", null,
-                            MediaStore.Audio.Playlists.DEFAULT_SORT_ORDER);
-
-                        int count = 0;
-                        if (cursor != null) {
-                            count = cursor.getCount();
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                            return;
-                        }
-                        if (count < reqItems) {
-                            reqItems = count;
-                        }
-                        cursor.moveToFirst();
-                        for (int i = 0; i < start; i++) {
-                            cursor.moveToNext();
-                        }
-                        int index = 0;
-                        for (index = 0; index < reqItems; index++) {
-                            itemType[index] = TYPE_FOLDER_ITEM;
-                            uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                        MediaStore.Audio.Playlists._ID));
-                            type[index] = FOLDER_TYPE_PLAYLISTS;
-                            playable[index] = 0;
-                            displayName[index] =
-                                cursor.getString(cursor.getColumnIndexOrThrow(
-                                                MediaStore.Audio.Playlists.NAME));
-                            cursor.moveToNext();
-                        }
-                        numItems = index;
-
-                        if (index > 0) {
-                            numItems = index;
-                            getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                        } else {
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                        }
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                numItems, itemType, uid, type,
-                                playable, displayName, numAtt, attValues, attIds,
-                                getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                } else {
-                    long folderUid = Long.valueOf(deviceFeatures[deviceIndex].mCurrentPathUid);
-                    long availableItems = 0;
-                    Cursor cursor = null;
-
-                    String[] playlistMemberCols = new String[] {
-                            MediaStore.Audio.Playlists.Members._ID,
-                            MediaStore.Audio.Media.TITLE,
-                            MediaStore.Audio.Media.DATA,
-                            MediaStore.Audio.Media.ALBUM,
-                            MediaStore.Audio.Media.ARTIST,
-                            MediaStore.Audio.Media.DURATION,
-                            MediaStore.Audio.Playlists.Members.PLAY_ORDER,
-                            MediaStore.Audio.Playlists.Members.AUDIO_ID,
-                            MediaStore.Audio.Media.IS_MUSIC
-                    };
-
-                    try {
-                        Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external",
-                                                                                    folderUid);
-                        StringBuilder where = new StringBuilder();
-                        where.append(MediaStore.Audio.Media.TITLE + " != ''");
-                        cursor = mContext.getContentResolver().query(uri, playlistMemberCols,
-                                        where.toString(), null,
-                                        MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER);
-
-                        if (cursor != null) {
-                            availableItems = cursor.getCount();
-                            if (start >= availableItems) {
-                                Log.i(TAG, "startIteam exceeds the available item index");
-                                getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS ,
-                                        numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds,
-                                        getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                                return;
-                            }
-                            cursor.moveToFirst();
-                            for (int i = 0; i < start; i++) {
-                                cursor.moveToNext();
-                            }
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                    numItems, itemType, uid, type,
-                                    playable, displayName, numAtt, attValues, attIds,
-                                    getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                            return;
-                        }
+                if (DEBUG)
+                    Log.v(TAG, "availableItems: " + availableItems);
+                if (DEBUG)
+                    Log.v(TAG, "reqItems: " + reqItems);
+                availableItems = availableItems - start;
+                if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
+                    availableItems = MAX_BROWSE_ITEM_TO_SEND;
+                if (reqItems > availableItems)
+                    reqItems = availableItems;
+                if (DEBUG)
+                    Log.v(TAG, "revised reqItems: " + reqItems);
 
-                        if (DEBUG)
-                            Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG)
-                            Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = availableItems;
-                        if (DEBUG)
-                            Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        int attIndex;
-                        int index;
-                        for (index = 0; index < reqItems; index++) {
-                            itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                            uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                Audio.Playlists.Members.AUDIO_ID));
-                            type[index] = MEDIA_TYPE_AUDIO;
-                            playable[index] = 0;
-                            displayName[index] =
-                                cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                        Audio.Media.TITLE));
-                            int validAttrib = 0;
-                            for (attIndex = 0; attIndex < numAttr; attIndex++) {
-                                if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
-                                            (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
-                                    attValues[(7 * index) + attIndex] =
-                                            getAttributeStringFromCursor(
-                                            cursor, attrs[attIndex], deviceIndex);
-                                    attIds[(7 * index) + attIndex] = attrs[attIndex];
-                                    validAttrib ++;
-                                }
+                int index;
+                for (index = 0; index < reqItems; index++) {
+                    AvrcpBrowseCache.Item item = listing[(int)start + index];
+                    itemType[index] = item.itemType;
+                    uid[index] = item.uid;
+                    type[index] = item.type;
+                    playable[index] = 0;
+                    displayName[index] = item.displayName;
+                    int validAttrib = 0;
+                    if (item.attValues != null) {
+                        for (int attIndex = 0; attIndex < numAttr; attIndex++) {
+                            if (item.attValues[attIndex] != null) {
+                                attValues[(7 * index) + attIndex] = item.attValues[attIndex];
+                                attIds[(7 * index) + attIndex] = attrs[attIndex];
+                                validAttrib ++;
                             }
-                            numAtt[index] = (byte)validAttrib;
-                            cursor.moveToNext();
-                        }
-                        numItems = index;
-                        getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL ,
-                                numItems, itemType, uid, type,
-                                playable, displayName, numAtt, attValues, attIds,
-                                getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                    } catch(Exception e) {
-                        Log.e(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR ,
-                                numItems, itemType, uid, type,
-                                playable, displayName, numAtt, attValues, attIds,
-                                getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
                         }
                     }
+                    numAtt[index] = (byte)validAttrib;
                 }
-            } else {
-                getFolderItemsRspNative((byte)DOES_NOT_EXIST ,
+                numItems = index;
+                getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL ,
                         numItems, itemType, uid, type,
                         playable, displayName, numAtt, attValues, attIds,
                         getByteAddress(deviceFeatures[deviceIndex].mCurrentDevice));
-                Log.v(TAG, "GetFolderItems fail as player is not browsable");
             }
         } else if (scope == SCOPE_NOW_PLAYING) {
             if (mMediaPlayers.size() > 0) {
@@ -3864,6 +3514,7 @@ public final class Avrcp {
                     isResetFocusRequired = false;
                     if (di.GetPlayerAvailablility() != available) {
                         di.SetPlayerAvailablility(available);
+                        invalidatePlayerList();
                         if (DEBUG)
                             Log.v(TAG, "setting " + callingPackageName +
                                     " availability: " + available);
@@ -3935,8 +3586,8 @@ public final class Avrcp {
         }
         switch (eventId) {
             case EVT_PLAY_STATUS_CHANGED:
-                deviceFeatures[deviceIndex].mPlayStatusChangedNT =
-                        NOTIFICATION_TYPE_INTERIM;
+                setNotificationType(deviceIndex, EVT_PLAY_STATUS_CHANGED,
+                        NOTIFICATION_TYPE_INTERIM);
                 registerNotificationRspPlayStatusNative(
                         deviceFeatures[deviceIndex].mPlayStatusChangedNT,
                         convertPlayStateToPlayStatus(
@@ -3945,14 +3596,13 @@ public final class Avrcp {
                 break;
 
             case EVT_TRACK_CHANGED:
-                deviceFeatures[deviceIndex].mTrackChangedNT =
-                        NOTIFICATION_TYPE_INTERIM;
+                setNotificationType(deviceIndex, EVT_TRACK_CHANGED, NOTIFICATION_TYPE_INTERIM);
                 sendTrackChangedRsp(device);
                 break;
 
             case EVT_PLAY_POS_CHANGED:
                 long songPosition = getPlayPosition(deviceFeatures[deviceIndex].mCurrentDevice);
-                deviceFeatures[deviceIndex].mPlayPosChangedNT = NOTIFICATION_TYPE_INTERIM;
+                setNotificationType(deviceIndex, EVT_PLAY_POS_CHANGED, NOTIFICATION_TYPE_INTERIM);
                 deviceFeatures[deviceIndex].mPlaybackIntervalMs = (long)param * 1000L;
                 if (mCurrentPosMs != RemoteControlClient.PLAYBACK_POSITION_ALWAYS_UNKNOWN) {
                     deviceFeatures[deviceIndex].mNextPosMs = songPosition +
@@ -4582,6 +4232,7 @@ public final class Avrcp {
         for (int i = 0; i < maxAvrcpConnections; i++ ) {
             if (deviceFeatures[i].mCurrentDevice == null) {
                 deviceFeatures[i].mCurrentDevice = device;
+                mNotificationRegistry.addDevice(device.getAddress(), i);
                 /*Playstate is explicitly updated here to take care of cases
                         where play state update is missed because of that happening
                         even before Avrcp connects*/
@@ -4607,20 +4258,41 @@ public final class Avrcp {
     }
 
     private int getIndexForDevice(BluetoothDevice device) {
-        for (int i = 0; i < maxAvrcpConnections; i++) {
-            if (deviceFeatures[i].mCurrentDevice != null &&
-                    deviceFeatures[i].mCurrentDevice.equals(device)) {
-                Log.i(TAG,"device found at index " + i);
-                return i;
-            }
+        int index = (device == null) ? -1 : mNotificationRegistry.getIndex(device.getAddress());
+        if (index < 0) {
+            Log.e(TAG, "returning invalid index");
+            return INVALID_DEVICE_INDEX;
+        }
+        if (DEBUG) Log.v(TAG,"device found at index " + index);
+        return index;
+    }
+
+    /**
+     * Sets the play status, track or play position notification type of a
+     * device and keeps mNotificationRegistry in step with it.
+     */
+    private void setNotificationType(int deviceIndex, int eventId, int type) {
+        switch (eventId) {
+            case EVT_PLAY_STATUS_CHANGED:
+                deviceFeatures[deviceIndex].mPlayStatusChangedNT = type;
+                break;
+            case EVT_TRACK_CHANGED:
+                deviceFeatures[deviceIndex].mTrackChangedNT = type;
+                break;
+            case EVT_PLAY_POS_CHANGED:
+                deviceFeatures[deviceIndex].mPlayPosChangedNT = type;
+                break;
+            default:
+                return;
         }
-        Log.e(TAG, "returning invalid index");
-        return INVALID_DEVICE_INDEX;
+        mNotificationRegistry.setRegistered(eventId, deviceIndex,
+                type == NOTIFICATION_TYPE_INTERIM);
     }
 
     public void cleanupDeviceFeaturesIndex (int index) {
         Log.i(TAG,"cleanupDeviceFeaturesIndex index:" + index);
         deviceFeatures[index].mCurrentDevice = null;
+        mNotificationRegistry.removeDevice(index);
         deviceFeatures[index].mCurrentPlayState = RemoteControlClient.PLAYSTATE_NONE;
         deviceFeatures[index].mPlayStatusChangedNT = NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].mPlayerStatusChangeNT = NOTIFICATION_TYPE_CHANGED;
@@ -4702,6 +4374,8 @@ public final class Avrcp {
 
     public void dump(StringBuilder sb) {
         sb.append("AVRCP:\n");
+        ProfileService.println(sb, "play position ticks: "
+                + mNotificationRegistry.getTickStats());
         for (int i = 0; i < maxAvrcpConnections; i++) {
             Log.v(TAG,"for index " + i);
             ProfileService.println(sb, "mMetadata: " + mMetadata);
@@ -5147,6 +4821,8 @@ public final class Avrcp {
         private int[] mFeatureMask;
         private short mItemLength;
         private short mEntryLength;
+        /* None of the encoded fields change after construction */
+        private byte[] mPlayerEntry;
         public MediaPlayerInfo(short playerId, byte majorPlayerType,
                     int playerSubType, byte playState, short charsetId,
                     short displayableNameLength, byte[] displayableName,
@@ -5260,6 +4936,13 @@ public final class Avrcp {
         }
 
         public byte[] RetrievePlayerItemEntry () {
+            if (mPlayerEntry == null) {
+                mPlayerEntry = encodePlayerItemEntry();
+            }
+            return mPlayerEntry;
+        }
+
+        private byte[] encodePlayerItemEntry () {
             byte[] playerEntry = new byte[mEntryLength];
             int position =0;
             int count;
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoded cover art kept for BIP GetImageThumbnail and GetImage requests.
+ *
+ * Images are keyed by album, art file version and requested variant. Recently
+ * used ones stay in memory, and every encoded image is also kept in a bounded
+ * disk directory so that it survives the memory tier and BIP restarts.
+ * Encoding runs on a single background thread, which also serializes a
+ * request with a prefetch of the same image, so an image is encoded once.
+ *
+ * @hide
+ */
+public final class AvrcpBipCoverArtCache {
+    private static final String TAG = "AvrcpBipCoverArtCache";
+    private static final boolean V = AvrcpBipRsp.V;
+
+    private static final String SUFFIX = ".img";
+    private static final int ENCODER_KEEP_ALIVE_SEC = 30;
+
+    /** Writes one encoded image into the given file. */
+    public interface Encoder {
+        /** Returns false if there is no image to encode. */
+        boolean encode(File out) throws IOException;
+    }
+
+    private final File mDir;
+    private final long mMaxDiskBytes;
+    private final LruCache<String, byte[]> mMemory;
+    private final ThreadPoolExecutor mExecutor;
+
+    public AvrcpBipCoverArtCache(File dir, int maxMemoryBytes, long maxDiskBytes) {
+        mDir = dir;
+        mMaxDiskBytes = maxDiskBytes;
+        mMemory = new LruCache<String, byte[]>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(1, 1, ENCODER_KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread("BtAvrcp CoverArt") {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                };
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDir);
+        }
+    }
+
+    /** Builds the cache key of one image variant of an album's art. */
+    public static String key(long albumId, long artVersion, String variant) {
+        return albumId + "_" + artVersion + "_" + variant.replace('*', 'x');
+    }
+
+    /** Returns the cached image, or null if it has not been encoded yet. */
+    public byte[] get(String key) {
+        byte[] data = mMemory.get(key);
+        if (data != null) {
+            return data;
+        }
+        File file = new File(mDir, key + SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        data = readFile(file);
+        if (data != null) {
+            file.setLastModified(System.currentTimeMillis());
+            mMemory.put(key, data);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the cached image, encoding it first if needed.
+     * Returns null if the image could not be encoded.
+     */
+    public byte[] getOrEncode(String key, Encoder encoder) {
+        byte[] data = get(key);
+        if (data != null) {
+            if (V) Log.v(TAG, "getOrEncode: hit " + key);
+            return data;
+        }
+        try {
+            return submit(key, encoder).get();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "getOrEncode: interrupted " + key);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "getOrEncode: unable to encode " + key, e.getCause());
+        }
+        return null;
+    }
+
+    /** Encodes the image in the background unless it is already cached. */
+    public void prefetch(String key, Encoder encoder) {
+        if (mMemory.get(key) == null && !new File(mDir, key + SUFFIX).isFile()) {
+            submit(key, encoder);
+        }
+    }
+
+    /** Drops every cached image, in memory and on disk. */
+    public void clear() {
+        mMemory.evictAll();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private Future<byte[]> submit(final String key, final Encoder encoder) {
+        return mExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                // An earlier request may have encoded it while this one was queued
+                byte[] data = get(key);
+                return (data != null) ? data : encode(key, encoder);
+            }
+        });
+    }
+
+    private byte[] encode(String key, Encoder encoder) throws IOException {
+        long start = System.currentTimeMillis();
+        File tmp = File.createTempFile(key, ".tmp", mDir);
+        try {
+            if (!encoder.encode(tmp)) {
+                return null;
+            }
+            byte[] data = readFile(tmp);
+            if (data == null) {
+                return null;
+            }
+            File file = new File(mDir, key + SUFFIX);
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "encode: unable to store " + file);
+            }
+            mMemory.put(key, data);
+            trimDisk();
+            if (V) Log.v(TAG, "encode: " + key + " " + data.length + " bytes in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return data;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /* Deletes the least recently used images once the directory is over budget */
+    private void trimDisk() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= mMaxDiskBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length && total > mMaxDiskBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    return null;
+                }
+                offset += read;
+            }
+            return data;
+        } catch (IOException e) {
+            Log.w(TAG, "readFile: " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "readFile: exception in closing file");
+                }
+            }
+        }
+    }
+}
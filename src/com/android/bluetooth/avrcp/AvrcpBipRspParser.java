@@ -68,7 +68,6 @@ import java.io.ByteArrayOutputStream;
 import android.os.Environment;
 import android.media.ExifInterface;
 import java.util.Objects;
-import android.graphics.Color;
 import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
@@ -94,20 +93,15 @@ public class AvrcpBipRspParser {
     private static int MAX_SUPPORTED_HEIGHT = 1080;
     private static int MAX_IMG_HANDLE = 10000000;
     private static int COMPRESSION_QUALITY_HIGH = 100;
-    /* Constants used for converting RGB -> YUV */
-    private static final int COEFF1 = 19595;
-    private static final int COEFF2 = 38470;
-    private static final int COEFF3 = 7471;
-    private static final int COEFF4 = -11059;
-    private static final int COEFF5 = -21709;
-    private static final int COEFF6 = 32768;
-    private static final int COEFF7 = 32768;
-    private static final int COEFF8 = -27439;
-    private static final int COEFF9 = -5329;
-    /* Tmp path for storing file before compressing and sending to obex.
-     * This file is deleted after the operation */
+    /* Tmp path earlier versions encoded images into, deleted if left behind */
     private String mTmpFilePath = Environment.getExternalStorageDirectory() +
                 "/tmpBtBip.jpg";
+    /* Encoded images are cached in memory and in the app cache directory */
+    private static final String COVER_ART_CACHE_DIR = "bip_cover_art";
+    private static final int COVER_ART_MEMORY_BYTES = 2 * 1024 * 1024;
+    private static final long COVER_ART_DISK_BYTES = 16 * 1024 * 1024;
+    private static final String THUMB_VARIANT = "thumb";
+    private static AvrcpBipCoverArtCache sCoverArtCache;
 
     public AvrcpBipRspParser(Context context) {
         mContext = context;
@@ -119,6 +113,13 @@ public class AvrcpBipRspParser {
             // delete the file now, may be due to battery removal or some exception
             f.delete();
         }
+        synchronized (AvrcpBipRspParser.class) {
+            if (sCoverArtCache == null) {
+                sCoverArtCache = new AvrcpBipCoverArtCache(
+                        new File(context.getCacheDir(), COVER_ART_CACHE_DIR),
+                        COVER_ART_MEMORY_BYTES, COVER_ART_DISK_BYTES);
+            }
+        }
     }
 
     private class AvrcpBipRspCoverArtAttributes {
@@ -177,35 +178,6 @@ public class AvrcpBipRspParser {
         }
     };
 
-    private void rgb2yuv(int rgb, byte[] convArray) {
-        int a = Color.red(rgb);
-        int b = Color.green(rgb);
-        int c = Color.blue(rgb);
-        convArray[0] = (byte) ((COEFF1 * a + COEFF2 * b + COEFF3 * c) >> 16);
-        convArray[1] = (byte) (((COEFF4 * a + COEFF5 * b + COEFF6 * c) >> 16) + 128);
-        convArray[2] = (byte) (((COEFF7 * a + COEFF8 * b + COEFF9 * c) >> 16) + 128);
-    }
-
-    private byte[] convertToYuv(int[] rgb, int w, int h) {
-        byte[] convArray = new byte[w * h * ImageFormat.getBitsPerPixel(ImageFormat.YUY2)];
-        byte[] col0 = new byte[3];
-        byte[] co11 = new byte[3];
-        for (int i = 0; i < h; ++i) {
-            for (int j = 0; j < w; j += 2) {
-                int id = i * w + j;
-                rgb2yuv(rgb[id], col0);
-                rgb2yuv(rgb[id + 1], co11);
-                int index = id / 2 * 4;
-                convArray[index] = col0[0];
-                convArray[index + 1] = col0[1];
-                convArray[index + 2] = co11[0];
-                convArray[index + 3] = col0[2];
-           }
-        }
-
-        return convArray;
-    }
-
     private Bitmap getScaledBitmap(long album_id, int w, int h) {
         ContentResolver res = mContext.getContentResolver();
 
@@ -336,22 +308,13 @@ public class AvrcpBipRspParser {
         }
     }
 
-    private void updateExifHeader(String imgHandle, int width, int height) {
-
-        AvrcpBipRspCoverArtAttributes artAttributes;
-        artAttributes = mCoverArtAttributesMap.get(imgHandle);
-
-        if (artAttributes == null)
-            return;
-
-        String artPath = artAttributes.getArtPath();
-
+    private void updateExifHeader(String artPath, String imgPath, int width, int height) {
         if (artPath == null)
             return;
 
         try {
             ExifInterface oldexif = new ExifInterface(artPath);
-            ExifInterface newexif = new ExifInterface(mTmpFilePath);
+            ExifInterface newexif = new ExifInterface(imgPath);
 
             if (oldexif == null || newexif == null) {
                 Log.e(TAG,"updateExifHeader: oldexif = " + oldexif +
@@ -624,96 +587,113 @@ public class AvrcpBipRspParser {
         return imgDes;
     }
 
-    public boolean getImgThumb(OutputStream out, String imgHandle) {
-        OutputStream outStream = null;
-        boolean retVal = false;
-        FileOutputStream tmp = null;
-        FileInputStream tmp1 = null;
-
-        if (mCoverArtAttributesMap.get(imgHandle) == null) {
-            Log.w(TAG, "getImgThumb: imageHandle =" +  imgHandle + " is not in hashmap");
-            return false;
-        }
-
-        if (D) Log.d(TAG,"getImgThumb: imgHandle = " + imgHandle);
-        long albumId = mCoverArtAttributesMap.get(imgHandle).getAlbumId();
-        if (D) Log.d(TAG,"getImgThumb: getScaledBitmap +");
-        Bitmap bm = getScaledBitmap(albumId, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT);
-        if (D) Log.d(TAG,"getImgThumb: getScaledBitmap -");
-        if (bm != null) {
-            try {
+    /* Cache key of an image variant, changes when the album art file is replaced */
+    private static String getCoverArtKey(AvrcpBipRspCoverArtAttributes artAttributes,
+            String variant) {
+        String artPath = artAttributes.getArtPath();
+        long artVersion = (artPath != null) ? new File(artPath).lastModified() : 0;
+        return AvrcpBipCoverArtCache.key(artAttributes.getAlbumId(), artVersion, variant);
+    }
 
+    private AvrcpBipCoverArtCache.Encoder getThumbEncoder(final long albumId,
+            final String artPath) {
+        return new AvrcpBipCoverArtCache.Encoder() {
+            @Override
+            public boolean encode(File out) throws IOException {
+                if (D) Log.d(TAG,"getImgThumb: getScaledBitmap +");
+                Bitmap bm = getScaledBitmap(albumId, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT);
+                if (D) Log.d(TAG,"getImgThumb: getScaledBitmap -");
+                if (bm == null)
+                    return false;
                 int[] pixelArray = new int[BIP_THUMB_WIDTH * BIP_THUMB_HEIGHT];
                 // Copy pixel data from the Bitmap into integer pixelArray
                 bm.getPixels(pixelArray, 0, BIP_THUMB_WIDTH, 0, 0, BIP_THUMB_WIDTH,
                     BIP_THUMB_HEIGHT);
-                byte[] yuvArray = convertToYuv(pixelArray, BIP_THUMB_WIDTH,
+                byte[] yuvArray = AvrcpBipYuvConverter.argbToYuy2(pixelArray, BIP_THUMB_WIDTH,
                         BIP_THUMB_HEIGHT);
                 /* Convert Pixel Array to YuvImage */
                 YuvImage yuvImg = new YuvImage(yuvArray, ImageFormat.YUY2,
                             BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT, null);
-                // Use temp file as ExifInterface requires absolute path of storage
+                // Use a file as ExifInterface requires absolute path of storage
                 // file to update headers
+                FileOutputStream tmp = new FileOutputStream(out);
                 try {
-                    tmp = new FileOutputStream(mTmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG,"getImgThumb: unable to open tmp File for writing");
-                    return retVal;
+                    if (D) Log.d(TAG,"getImgThumb: compress +");
+                    /* Compress YuvImage in YCC422 sampling using JPEG compression */
+                    yuvImg.compressToJpeg(new Rect(0, 0, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT),
+                        COMPRESSION_QUALITY_HIGH, tmp);
+                    if (D) Log.d(TAG,"getImgThumb: compress -");
+                    tmp.flush();
+                } finally {
+                    tmp.close();
                 }
-                if (D) Log.d(TAG,"getImgThumb: compress +");
-                /* Compress YuvImage in YCC422 sampling using JPEG compression */
-                yuvImg.compressToJpeg(new Rect(0, 0, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT),
-                    COMPRESSION_QUALITY_HIGH, tmp);
-                if (D) Log.d(TAG,"getImgThumb: compress -");
-                tmp.flush();
                 /* replace JFIF header with EXIF header and update new pixel size */
-                updateExifHeader(imgHandle, BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT);
-                /* Copy the new updated header file to OutputStream */
+                updateExifHeader(artPath, out.getPath(), BIP_THUMB_WIDTH, BIP_THUMB_HEIGHT);
+                return true;
+            }
+        };
+    }
+
+    private AvrcpBipCoverArtCache.Encoder getImgEncoder(final long albumId, final int width,
+            final int height, final Bitmap.CompressFormat cmpFormat) {
+        return new AvrcpBipCoverArtCache.Encoder() {
+            @Override
+            public boolean encode(File out) throws IOException {
+                if (D) Log.d(TAG,"getImg: getScaledBitmap +");
+                Bitmap bm = getScaledBitmap(albumId, width, height);
+                if (D) Log.d(TAG,"getImg: getScaledBitmap -");
+                if (bm == null)
+                    return false;
+                FileOutputStream tmp = new FileOutputStream(out);
                 try {
-                    tmp1 = new FileInputStream(mTmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG,"getImgThumb: unable to open tmp File for reading");
-                    return retVal;
+                    if (D) Log.d(TAG,"getImg: compress +");
+                    bm.compress(cmpFormat, COMPRESSION_QUALITY_HIGH, tmp);
+                    if (D) Log.d(TAG,"getImg: compress -");
+                    tmp.flush();
+                } finally {
+                    tmp.close();
                 }
-                byte[] buffer = new byte[4096]; // To hold file contents
-                int bytes_read;
-                while ((bytes_read = tmp1.read(buffer)) != -1)
-                    out.write(buffer, 0, bytes_read);
-                /* Flush the data to output stream */
-                out.flush();
-                retVal = true;
-            } catch (Exception e) {
+                return true;
+            }
+        };
+    }
+
+    /* Copies an encoded image to the OBEX stream and closes it */
+    private boolean writeImg(OutputStream out, byte[] data) {
+        boolean retVal = false;
+        try {
+            out.write(data);
+            /* Flush the data to output stream */
+            out.flush();
+            retVal = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Exception = " + e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
                 Log.w(TAG, "Exception = " + e);
-            } finally {
-                try {
-                    try {
-                        if (tmp != null) {
-                            tmp.close();
-                        }
-                    } catch (IOException e) {
-                        Log.w(TAG,"getImgThumb: exception in closing file");
-                    }
-                    try {
-                        if (tmp1 != null) {
-                            tmp1.close();
-                        }
-                    } catch (IOException e) {
-                        Log.w(TAG,"getImgThumb: exception in closing file");
-                    }
-                    if (out != null) {
-                        out.close();
-                    }
-                    /* Delete the tmp file now */
-                    File f = new File(mTmpFilePath);
-                    if (f != null && f.isFile() && f.exists()) {
-                        if (D) Log.d(TAG, "getImgThumb: File Size = " + f.length());
-                        f.delete();
-                    }
-                } catch (IOException e) {
-                    Log.w(TAG, "Exception = " + e);
-                }
             }
         }
+        return retVal;
+    }
+
+    public boolean getImgThumb(OutputStream out, String imgHandle) {
+        boolean retVal = false;
+        AvrcpBipRspCoverArtAttributes artAttributes = mCoverArtAttributesMap.get(imgHandle);
+
+        if (artAttributes == null) {
+            Log.w(TAG, "getImgThumb: imageHandle =" +  imgHandle + " is not in hashmap");
+            return false;
+        }
+
+        if (D) Log.d(TAG,"getImgThumb: imgHandle = " + imgHandle);
+        byte[] data = sCoverArtCache.getOrEncode(getCoverArtKey(artAttributes, THUMB_VARIANT),
+                getThumbEncoder(artAttributes.getAlbumId(), artAttributes.getArtPath()));
+        if (data != null) {
+            if (D) Log.d(TAG, "getImgThumb: File Size = " + data.length);
+            retVal = writeImg(out, data);
+        }
         if (D) Log.d(TAG,"getImg: returning " + retVal);
         return retVal;
     }
@@ -749,8 +729,6 @@ public class AvrcpBipRspParser {
         Bitmap.CompressFormat cmpFormat;
         int width;
         int height;
-        FileOutputStream tmp = null;
-        FileInputStream tmp1 = null;
 
         if (V) Log.v(TAG,"getImg: imgDesc.mPixel = " + imgDesc.mPixel);
         if (imgDesc.mPixel.equals("")) {
@@ -796,77 +774,21 @@ public class AvrcpBipRspParser {
                 return retVal;
         }
 
-        long albumId = mCoverArtAttributesMap.get(imgHandle).getAlbumId();
-        if (D) Log.d(TAG,"getImg: getScaledBitmap +");
-        Bitmap bm = getScaledBitmap(albumId, width, height);
-        if (D) Log.d(TAG,"getImg: getScaledBitmap -");
-        if (bm != null) {
-            try {
-                if (D) Log.d(TAG,"getImg: compress +");
-                // Use temp file as ExifInterface requires absolute path of storage
-                // file to update headers
-                try {
-                    tmp = new FileOutputStream(mTmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG,"getImgThumb: unable to open tmp File for writing");
-                    return retVal;
-                }
-                bm.compress(cmpFormat, COMPRESSION_QUALITY_HIGH, tmp);
-                if (D) Log.d(TAG,"getImg: compress -");
-                tmp.flush();
-                /* Copy the new updated header file to OutputStream */
-                try {
-                    tmp1 = new FileInputStream(mTmpFilePath);
-                } catch (FileNotFoundException e) {
-                    Log.w(TAG,"getImgThumb: unable to open tmp File for reading");
-                    return retVal;
-                }
-                byte[] buffer = new byte[4096]; // To hold file contents
-                int bytes_read;
-                while ((bytes_read = tmp1.read(buffer)) != -1)
-                    out.write(buffer, 0, bytes_read);
-                /* Flush the data to output stream */
-                out.flush();
-                retVal = true;
-            } catch (Exception e) {
-                Log.e(TAG, "Exception = " + e);
-            } finally {
-                try {
-                    try {
-                        if (tmp != null) {
-                            tmp.close();
-                        }
-                    } catch (IOException e) {
-                         Log.e(TAG,"getImg: exception in closing file");
-                    }
-                    try {
-                        if (tmp1 != null) {
-                            tmp1.close();
-                        }
-                    } catch (IOException e) {
-                         Log.e(TAG,"getImg: exception in closing file");
-                    }
-                    if (out != null) {
-                        out.close();
-                    }
-                    /* Delete the tmp file now */
-                    File f = new File(mTmpFilePath);
-                    if (f != null && f.isFile() && f.exists()) {
-                        if (D) Log.d(TAG, "getImg: File Size = " + f.length());
-                        /* check if the size of compressed file is within range of maxsize */
-                        if (imgDesc.mMaxSize != null &&
-                            f.length() > Long.valueOf(imgDesc.mMaxSize)) {
-                            Log.w(TAG, "getImg: Image can't be compressed into  " +
-                                Long.valueOf(imgDesc.mMaxSize) +
-                                " bytes. Minimum size using current values is" +
-                                f.length());
-                            retVal = false;
-                        }
-                        f.delete();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Exception = " + e);
-                }
+        AvrcpBipRspCoverArtAttributes artAttributes = mCoverArtAttributesMap.get(imgHandle);
+        String variant = width + "*" + height + "." + cmpFormat;
+        byte[] data = sCoverArtCache.getOrEncode(getCoverArtKey(artAttributes, variant),
+                getImgEncoder(artAttributes.getAlbumId(), width, height, cmpFormat));
+        if (data != null) {
+            if (D) Log.d(TAG, "getImg: File Size = " + data.length);
+            /* check if the size of compressed file is within range of maxsize */
+            if (imgDesc.mMaxSize != null &&
+                data.length > Long.valueOf(imgDesc.mMaxSize)) {
+                Log.w(TAG, "getImg: Image can't be compressed into  " +
+                    Long.valueOf(imgDesc.mMaxSize) +
+                    " bytes. Minimum size using current values is" +
+                    data.length);
+            } else {
+                retVal = writeImg(out, data);
             }
         }
         if (D) Log.d(TAG,"getImg: returning " + retVal);
@@ -893,6 +815,7 @@ public class AvrcpBipRspParser {
                 if (artHandle != null) {
                     String imgHandle = getImgHandleFromArtHandle(artHandle);
                     if (D) Log.d(TAG,"getImgHandle: imgHandle = " + imgHandle);
+                    prefetchImgThumb(imgHandle);
                     return imgHandle;
                 }
             }
@@ -904,6 +827,16 @@ public class AvrcpBipRspParser {
         return null;
     }
 
+    /* Handles are requested on track change, encode the thumbnail before the
+     * controller asks for it */
+    private void prefetchImgThumb(String imgHandle) {
+        AvrcpBipRspCoverArtAttributes artAttributes = mCoverArtAttributesMap.get(imgHandle);
+        if (artAttributes == null)
+            return;
+        sCoverArtCache.prefetch(getCoverArtKey(artAttributes, THUMB_VARIANT),
+                getThumbEncoder(artAttributes.getAlbumId(), artAttributes.getArtPath()));
+    }
+
     /* Encode the Image Properties into the StringBuilder reference.
      * */
     public byte[] encode(String imgHandle)
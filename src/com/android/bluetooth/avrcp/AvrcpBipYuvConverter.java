@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+/**
+ * Converts ARGB pixels into the packed YUY2 (YUV 4:2:2) layout that BIP
+ * thumbnails are JPEG compressed from.
+ *
+ * Each pair of pixels becomes Y0 U0 Y1 V0, with the chroma of the pair
+ * taken from its first pixel, using 16.16 fixed point coefficients.
+ *
+ * @hide
+ */
+public final class AvrcpBipYuvConverter {
+    /* Constants used for converting RGB -> YUV */
+    private static final int COEFF1 = 19595;
+    private static final int COEFF2 = 38470;
+    private static final int COEFF3 = 7471;
+    private static final int COEFF4 = -11059;
+    private static final int COEFF5 = -21709;
+    private static final int COEFF6 = 32768;
+    private static final int COEFF7 = 32768;
+    private static final int COEFF8 = -27439;
+    private static final int COEFF9 = -5329;
+
+    private AvrcpBipYuvConverter() {
+    }
+
+    /**
+     * Returns the YUY2 image of {@code width * height} ARGB pixels stored row
+     * by row. YUY2 packs pixels in pairs, so the width must be even.
+     */
+    public static byte[] argbToYuy2(int[] argb, int width, int height) {
+        if ((width & 1) != 0) {
+            throw new IllegalArgumentException("YUY2 needs an even width: " + width);
+        }
+        int pixels = width * height;
+        byte[] yuy2 = new byte[pixels * 2];
+        // Rows are contiguous in both arrays, so the whole image is one run of pairs
+        for (int p = 0, o = 0; p < pixels; p += 2, o += 4) {
+            int c0 = argb[p];
+            int c1 = argb[p + 1];
+            int r0 = (c0 >> 16) & 0xff;
+            int g0 = (c0 >> 8) & 0xff;
+            int b0 = c0 & 0xff;
+            int r1 = (c1 >> 16) & 0xff;
+            int g1 = (c1 >> 8) & 0xff;
+            int b1 = c1 & 0xff;
+            yuy2[o] = (byte) ((COEFF1 * r0 + COEFF2 * g0 + COEFF3 * b0) >> 16);
+            yuy2[o + 1] = (byte) (((COEFF4 * r0 + COEFF5 * g0 + COEFF6 * b0) >> 16) + 128);
+            yuy2[o + 2] = (byte) ((COEFF1 * r1 + COEFF2 * g1 + COEFF3 * b1) >> 16);
+            yuy2[o + 3] = (byte) (((COEFF7 * r0 + COEFF8 * g0 + COEFF9 * b0) >> 16) + 128);
+        }
+        return yuy2;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the virtual file system browse tree served to AVRCP controllers.
+ *
+ * Folder listings are kept per folder and requested attribute set, and
+ * folder sizes per folder, so that scrolling back and forth through a
+ * folder does not go to MediaStore again. Everything is dropped when the
+ * media database changes, and the UID counter is bumped so that
+ * controllers know previously fetched UIDs may be stale.
+ *
+ * Only accessed from the AVRCP message handler thread.
+ */
+final class AvrcpBrowseCache {
+    private static final String TAG = "AvrcpBrowseCache";
+    private static final boolean V = Log.isLoggable(TAG, Log.VERBOSE);
+
+    /* Listings hold every row of a folder, keep only a few of them around */
+    private static final int MAX_LISTINGS = 8;
+
+    private static final int MAX_UID_COUNTER = 0xFFFF;
+
+    /** One row of a folder listing, as sent in a GetFolderItems response. */
+    static final class Item {
+        final int itemType;
+        final long uid;
+        final int type;
+        final String displayName;
+        /* Aligned with the requested attribute ids, null for unsupported ids */
+        final String[] attValues;
+
+        Item(int itemType, long uid, int type, String displayName, String[] attValues) {
+            this.itemType = itemType;
+            this.uid = uid;
+            this.type = type;
+            this.displayName = displayName;
+            this.attValues = attValues;
+        }
+    }
+
+    private final LinkedHashMap<String, Item[]> mListings =
+            new LinkedHashMap<String, Item[]>(MAX_LISTINGS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Item[]> eldest) {
+            return size() > MAX_LISTINGS;
+        }
+    };
+    private final HashMap<String, Long> mFolderSizes = new HashMap<String, Long>();
+    /* Database-aware players start at 1, 0 is reserved for database-unaware ones */
+    private int mUidCounter = 1;
+
+    static String folderKey(Uri mediaUri, String path, String pathUid) {
+        return mediaUri + "/" + path + "/" + pathUid;
+    }
+
+    private static String listingKey(String folderKey, int numAttr, int[] attrs) {
+        int[] ids = Arrays.copyOf(attrs, numAttr);
+        return folderKey + Arrays.toString(ids);
+    }
+
+    Item[] getListing(String folderKey, int numAttr, int[] attrs) {
+        return mListings.get(listingKey(folderKey, numAttr, attrs));
+    }
+
+    void putListing(String folderKey, int numAttr, int[] attrs, Item[] items) {
+        mListings.put(listingKey(folderKey, numAttr, attrs), items);
+        mFolderSizes.put(folderKey, (long) items.length);
+    }
+
+    /** Returns the cached size of a folder, or -1 if it is not known. */
+    long getFolderSize(String folderKey) {
+        Long size = mFolderSizes.get(folderKey);
+        return size != null ? size : -1;
+    }
+
+    void putFolderSize(String folderKey, long size) {
+        mFolderSizes.put(folderKey, size);
+    }
+
+    int getUidCounter() {
+        return mUidCounter;
+    }
+
+    /** Drops every cached folder and moves the UID counter on. */
+    void invalidate() {
+        mListings.clear();
+        mFolderSizes.clear();
+        mUidCounter = (mUidCounter >= MAX_UID_COUNTER) ? 1 : mUidCounter + 1;
+        if (V) Log.v(TAG, "invalidate: uid counter " + mUidCounter);
+    }
+}
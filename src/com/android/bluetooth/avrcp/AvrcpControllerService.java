@@ -47,7 +47,6 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
 import android.util.Log;
-import java.nio.charset.Charset;
 import java.nio.ByteBuffer;
 /**
  * Provides Bluetooth AVRCP Controller profile, as a service in the Bluetooth application.
@@ -72,6 +71,7 @@ public class AvrcpControllerService extends ProfileService {
     private static final int MESSAGE_GET_PLAY_STATUS = 9;
     private static final int MESSAGE_DEINIT_AVRCP_DATABASE = 10;
     private static final int MESSAGE_REGISTER_NOTIFICATION = 11;
+    private static final int MESSAGE_PERSIST_AVRCP_DATABASE = 12;
 
     private static final int MESSAGE_CMD_TIMEOUT = 100;
     /* Timeout Defined as per Spec */
@@ -327,9 +327,17 @@ public class AvrcpControllerService extends ProfileService {
     int[] requestedElementAttribs;
 
     private AvrcpMessageHandler mHandler;
+    /* Only used on the handler thread */
+    private final AvrcpElementAttributeParser mAttributeParser =
+            new AvrcpElementAttributeParser();
     private static AvrcpControllerService sAvrcpControllerService;
     private static AudioManager mAudioManager;
     private static boolean mDbInitialized = false;
+    /*
+     * Play position notifications arrive every second. They only update the
+     * in-memory row; SQLite sees the latest position at most this often.
+     */
+    private static final int PERSIST_PLAY_TIME_INTERVAL_MS = 5000;
 
     private final ArrayList<BluetoothDevice> mConnectedDevices
             = new ArrayList<BluetoothDevice>();
@@ -696,9 +704,7 @@ public class AvrcpControllerService extends ProfileService {
         sAvrcpControllerService.getContentResolver().notifyChange(avrcpDataUri, null);
     }
     private boolean isMetaDataPresent(int attributeId) {
-        Uri avrcpDataUri = BluetoothAvrcpInfo.CONTENT_URI;
-        Cursor cursor = sAvrcpControllerService.getContentResolver().query(avrcpDataUri,
-                                               null, null, null,BluetoothAvrcpInfo._ID);
+        Cursor cursor = AvrcpControllerState.getInstance().query(null);
         if ((cursor == null) || (!cursor.moveToFirst())) {
             Log.d(TAG," isMetaDataPresent cursor not valid, returing");
             /*Fix for below klockworks issue */
@@ -1144,6 +1150,7 @@ public class AvrcpControllerService extends ProfileService {
     private void deinitDatabase()
     {
         mDbInitialized = false;
+        mHandler.removeMessages(MESSAGE_PERSIST_AVRCP_DATABASE);
         int rows_deleted = sAvrcpControllerService.getContentResolver().
                                delete(BluetoothAvrcpInfo.CONTENT_URI, null, null);
         Log.d(TAG, " DeinitDatabase rows_deleted "+ rows_deleted);
@@ -1242,6 +1249,35 @@ public class AvrcpControllerService extends ProfileService {
         return  BluetoothAvrcpInfo.REPEAT_STATUS_INVALID;
     }
 
+    /**
+     * Applies values to the in-memory controller row. Anything beyond a new
+     * play position is written to the database right away; other updates
+     * just notify observers and a changed position is persisted on a timer.
+     */
+    private void updateDatabase(ContentValues values)
+    {
+        ContentValues changed = AvrcpControllerState.getInstance().apply(values);
+        boolean playTimeChanged = changed.containsKey(BluetoothAvrcpInfo.PLAYING_TIME);
+        changed.remove(BluetoothAvrcpInfo.PLAYING_TIME);
+        if (changed.size() > 0) {
+            persistDatabase();
+            return;
+        }
+        triggerNotification();
+        if (playTimeChanged && !mHandler.hasMessages(MESSAGE_PERSIST_AVRCP_DATABASE))
+            mHandler.sendEmptyMessageDelayed(MESSAGE_PERSIST_AVRCP_DATABASE,
+                                             PERSIST_PLAY_TIME_INTERVAL_MS);
+    }
+    private void persistDatabase()
+    {
+        mHandler.removeMessages(MESSAGE_PERSIST_AVRCP_DATABASE);
+        ContentValues values = AvrcpControllerState.getInstance().takeDirty();
+        if (values == null)
+            return;
+        int rowsUpdated = sAvrcpControllerService.getContentResolver().
+                                  update(BluetoothAvrcpInfo.CONTENT_URI, values, null, null);
+        Log.d(TAG," persistDatabase num_rows_updated " + rowsUpdated);
+    }
     private void updateElementAttribute()
     {
         Log.d(TAG," updateElementAttribute " + mRemoteData.mMetadata.toString());
@@ -1254,25 +1290,19 @@ public class AvrcpControllerService extends ProfileService {
         values.put(BluetoothAvrcpInfo.GENRE, mRemoteData.mMetadata.genre);
         values.put(BluetoothAvrcpInfo.PLAYING_TIME, mRemoteData.mMetadata.playTime);
         values.put(BluetoothAvrcpInfo.TOTAL_TRACK_TIME, mRemoteData.mMetadata.totalTrackLen);
-        int rowsUpdated = sAvrcpControllerService.getContentResolver().
-                                  update(BluetoothAvrcpInfo.CONTENT_URI, values, null, null);
-        Log.d(TAG," updateElementAttribute num_rows_updated " + rowsUpdated);
+        updateDatabase(values);
     }
     private void updateTrackNum()
     {
         ContentValues values = new ContentValues();
         values.put(BluetoothAvrcpInfo.TRACK_NUM, mRemoteData.mMetadata.trackNum);
-        int rowsUpdated = sAvrcpControllerService.getContentResolver().
-                                  update(BluetoothAvrcpInfo.CONTENT_URI, values, null, null);
-        Log.d(TAG," updateTrackNum num_rows_updated " + rowsUpdated);
+        updateDatabase(values);
     }
     private void updatePlayTime()
     {
         ContentValues values = new ContentValues();
         values.put(BluetoothAvrcpInfo.PLAYING_TIME, mRemoteData.mMetadata.playTime);
-        int rowsUpdated = sAvrcpControllerService.getContentResolver().
-                                  update(BluetoothAvrcpInfo.CONTENT_URI, values, null, null);
-        Log.d(TAG," updatePlayTime num_rows_updated " + rowsUpdated);
+        updateDatabase(values);
     }
     private void updatePlayerApplicationSettings()
     {
@@ -1281,9 +1311,7 @@ public class AvrcpControllerService extends ProfileService {
         values.put(BluetoothAvrcpInfo.SHUFFLE_STATUS, getShuffleStatusString());
         values.put(BluetoothAvrcpInfo.SCAN_STATUS, getScanStatusString());
         values.put(BluetoothAvrcpInfo.EQUALIZER_STATUS, getEqualizerStatusString());
-        int rowsUpdated = sAvrcpControllerService.getContentResolver().
-                                    update(BluetoothAvrcpInfo.CONTENT_URI,values, null, null);
-        Log.d(TAG," updatePlayerApplicationSettings num_rows_updated " + rowsUpdated);
+        updateDatabase(values);
     }
     private void updatePlayStatus()
     {
@@ -1300,9 +1328,7 @@ public class AvrcpControllerService extends ProfileService {
                           getPlayStatusString(mRemoteData.mMetadata.playStatus));
         values.put(BluetoothAvrcpInfo.PLAYING_TIME, mRemoteData.mMetadata.playTime);
         values.put(BluetoothAvrcpInfo.TOTAL_TRACK_TIME, mRemoteData.mMetadata.totalTrackLen);
-        int rowsUpdated = sAvrcpControllerService.getContentResolver().
-                                   update(BluetoothAvrcpInfo.CONTENT_URI,values, null, null);
-        Log.d(TAG," updatePlayStatus num_rows_updated " + rowsUpdated);
+        updateDatabase(values);
     }
     private boolean isEventSupported(byte eventId)
     {
@@ -1379,15 +1405,6 @@ public class AvrcpControllerService extends ProfileService {
             break;
         }
     }
-    private String utf8ToString(byte[] input)
-    {
-        Charset UTF8_CHARSET = Charset.forName("UTF-8");
-        return new String(input,UTF8_CHARSET);
-    }
-    private int asciiToInt(int len, byte[] array)
-    {
-        return Integer.parseInt(utf8ToString(array));
-    }
     private void resetElementAttribute(int attributeId, int asciiStringLen) {
         if(asciiStringLen == 0) {
             switch(attributeId)
@@ -1416,54 +1433,50 @@ public class AvrcpControllerService extends ProfileService {
             }
         }
     }
-    private int parseElementAttributes(int currentIndex, int attributeId, ByteBuffer attribBuffer)
+    private void parseElementAttributes(int attributeId)
     {
         Log.d(TAG,"parseElementAttributes Id = " + attributeId);
-        currentIndex += 2; // for character set
-        int asciiStringLen = attribBuffer.getChar(currentIndex);
+        int asciiStringLen = mAttributeParser.getValueLength();
         Log.d(TAG," asciiStringLen "+ asciiStringLen);
-        currentIndex += 2;// for string len
-        if((asciiStringLen <= 0) || ((currentIndex + asciiStringLen) > attribBuffer.capacity()))
+        if (!mAttributeParser.hasValue())
         {
             Log.d(TAG," parseElementAttribute wrong buffer");
             resetElementAttribute(attributeId, asciiStringLen);
-            return currentIndex;
+            return;
         }
-        byte[] asciiString = new byte[asciiStringLen];
-        attribBuffer.position(currentIndex);
-        attribBuffer.get(asciiString, 0, asciiStringLen);
-        currentIndex += asciiStringLen;
         switch(attributeId)
         {
         case MEDIA_ATTRIBUTE_TITLE:
-            mRemoteData.mMetadata.trackTitle = utf8ToString(asciiString);
+            mRemoteData.mMetadata.trackTitle = mAttributeParser.getString();
             break;
         case MEDIA_ATTRIBUTE_ARTIST_NAME:
-            mRemoteData.mMetadata.artist = utf8ToString(asciiString);
+            mRemoteData.mMetadata.artist = mAttributeParser.getString();
             break;
         case MEDIA_ATTRIBUTE_ALBUM_NAME:
-            mRemoteData.mMetadata.albumTitle = utf8ToString(asciiString);
+            mRemoteData.mMetadata.albumTitle = mAttributeParser.getString();
             break;
         case MEDIA_ATTRIBUTE_GENRE:
-            mRemoteData.mMetadata.genre = utf8ToString(asciiString);
+            mRemoteData.mMetadata.genre = mAttributeParser.getString();
             break;
         case MEDIA_ATTRIBUTE_TRACK_NUMBER:
-            mRemoteData.mMetadata.trackNum = asciiToInt(asciiStringLen,asciiString);
+            mRemoteData.mMetadata.trackNum =
+                    mAttributeParser.getInt(BluetoothAvrcpInfo.TRACK_NUM_INVALID);
             break;
         case MEDIA_ATTRIBUTE_TOTAL_TRACK_NUMBER:
-            mRemoteData.mMetadata.totalTrackNum = asciiToInt(asciiStringLen,asciiString);
+            mRemoteData.mMetadata.totalTrackNum =
+                    mAttributeParser.getInt(BluetoothAvrcpInfo.TOTAL_TRACKS_INVALID);
             break;
         case MEDIA_ATTRIBUTE_PLAYING_TIME:
-            mRemoteData.mMetadata.totalTrackLen = asciiToInt(asciiStringLen,asciiString);
+            mRemoteData.mMetadata.totalTrackLen =
+                    mAttributeParser.getInt(BluetoothAvrcpInfo.TOTAL_TRACK_TIME_INVALID);
             break;
         }
-        return currentIndex;
     }
     private void handleProcessGetElementAttribute(int numAttributes, ByteBuffer attribBuffer)
     {
         Log.d(TAG,"handleProcessGetElementAttribute numAttrib ="+ numAttributes);
         int attributeId = 0;
-        int currentIndex = 0;
+        mAttributeParser.reset(attribBuffer);
         for (int count = 0; count < numAttributes; count++)
         {
             /*
@@ -1472,14 +1485,18 @@ public class AvrcpControllerService extends ProfileService {
              */
             if (mRemoteData.mMetadata.attributesFetchedId >= requestedElementAttribs.length)
                 continue;
-            attributeId = attribBuffer.getInt(currentIndex);
+            if (!mAttributeParser.next())
+            {
+                Log.e(TAG," Rsp truncated after " + count + " attributes");
+                break;
+            }
+            attributeId = mAttributeParser.getAttributeId();
             if (requestedElementAttribs[mRemoteData.mMetadata.attributesFetchedId] != attributeId)
             {
                 Log.e(TAG," Received Rsp for attributeId "+ attributeId +" Requested ID = " +
                        requestedElementAttribs[mRemoteData.mMetadata.attributesFetchedId]);
                 break;
             }
-            currentIndex += 4; // 4 bytes for Int
             Log.d(TAG," attributeID = "+ attributeId);
             /*
              * remove timeout message if it is present already in que.
@@ -1489,7 +1506,7 @@ public class AvrcpControllerService extends ProfileService {
                 mHandler.removeMessages(GET_ELEMENT_ATTR_TIMEOUT_BASE + attributeId);
                 Log.d(TAG," Timeout CMD = " + attributeId + "dequed");
             }
-            currentIndex = parseElementAttributes(currentIndex,attributeId,attribBuffer);
+            parseElementAttributes(attributeId);
         }
         getFurtherElementAttribute(ATTRIBUTE_FETCH_CONTINUE);
     }
@@ -1685,6 +1702,9 @@ public class AvrcpControllerService extends ProfileService {
             case MESSAGE_DEINIT_AVRCP_DATABASE:
                 deinitDatabase();
                 break;
+            case MESSAGE_PERSIST_AVRCP_DATABASE:
+                persistDatabase();
+                break;
             case MESSAGE_CMD_TIMEOUT:
                 int cmd = (Integer)msg.obj;
                 handleCmdTimeout(cmd);
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.bluetooth.BluetoothAvrcpInfo;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory copy of the single AVRCP controller row served by
+ * {@link BluetoothAvrcpDataProvider}.
+ *
+ * AvrcpControllerService applies every remote notification here first and
+ * the provider answers unfiltered queries from it, so play position updates
+ * no longer cost an SQLite write each. Columns changed since the last write
+ * are kept until {@link #takeDirty} hands them out for persisting.
+ */
+final class AvrcpControllerState {
+
+    static final String[] COLUMNS = {
+        BluetoothAvrcpInfo._ID,
+        BluetoothAvrcpInfo.TRACK_NUM,
+        BluetoothAvrcpInfo.TITLE,
+        BluetoothAvrcpInfo.ARTIST_NAME,
+        BluetoothAvrcpInfo.ALBUM_NAME,
+        BluetoothAvrcpInfo.TOTAL_TRACKS,
+        BluetoothAvrcpInfo.GENRE,
+        BluetoothAvrcpInfo.PLAYING_TIME,
+        BluetoothAvrcpInfo.TOTAL_TRACK_TIME,
+        BluetoothAvrcpInfo.PLAY_STATUS,
+        BluetoothAvrcpInfo.REPEAT_STATUS,
+        BluetoothAvrcpInfo.SHUFFLE_STATUS,
+        BluetoothAvrcpInfo.SCAN_STATUS,
+        BluetoothAvrcpInfo.EQUALIZER_STATUS
+    };
+
+    private static final AvrcpControllerState sInstance = new AvrcpControllerState();
+
+    /* null while the provider holds no row */
+    private HashMap<String, Object> mRow;
+    private final HashMap<String, Object> mDirty = new HashMap<String, Object>();
+
+    private AvrcpControllerState() {
+    }
+
+    static AvrcpControllerState getInstance() {
+        return sInstance;
+    }
+
+    /** Replaces the row with one that has just been written to or read from SQLite. */
+    synchronized void reset(long rowId, ContentValues values) {
+        mRow = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            mRow.put(entry.getKey(), entry.getValue());
+        }
+        mRow.put(BluetoothAvrcpInfo._ID, rowId);
+        mDirty.clear();
+    }
+
+    synchronized void clear() {
+        mRow = null;
+        mDirty.clear();
+    }
+
+    synchronized boolean isLoaded() {
+        return mRow != null;
+    }
+
+    /**
+     * Applies values to the row and remembers the ones that differ as not yet
+     * persisted. Returns the columns that changed; empty if there is no row.
+     */
+    synchronized ContentValues apply(ContentValues values) {
+        ContentValues changed = new ContentValues();
+        if (mRow == null) {
+            return changed;
+        }
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            String column = entry.getKey();
+            Object value = entry.getValue();
+            if (!sameValue(mRow.get(column), value)) {
+                mRow.put(column, value);
+                mDirty.put(column, value);
+                putValue(changed, column, value);
+            }
+        }
+        return changed;
+    }
+
+    /** Applies values that were written to SQLite by someone else. */
+    synchronized void applyPersisted(ContentValues values) {
+        if (mRow == null) {
+            return;
+        }
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            mRow.put(entry.getKey(), entry.getValue());
+            mDirty.remove(entry.getKey());
+        }
+    }
+
+    /** Returns and forgets the columns not yet persisted, or null if there are none. */
+    synchronized ContentValues takeDirty() {
+        if (mRow == null || mDirty.isEmpty()) {
+            return null;
+        }
+        ContentValues dirty = new ContentValues();
+        for (Map.Entry<String, Object> entry : mDirty.entrySet()) {
+            putValue(dirty, entry.getKey(), entry.getValue());
+        }
+        mDirty.clear();
+        return dirty;
+    }
+
+    /** Returns the row as a cursor; the cursor is empty if there is no row. */
+    synchronized Cursor query(String[] projection) {
+        String[] columns = (projection != null) ? projection : COLUMNS;
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        if (mRow == null) {
+            return cursor;
+        }
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (!isColumn(columns[i])) {
+                throw new IllegalArgumentException("Unknown column " + columns[i]);
+            }
+            row[i] = mRow.get(columns[i]);
+        }
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    synchronized long getRowId() {
+        if (mRow == null) {
+            return -1;
+        }
+        return ((Number) mRow.get(BluetoothAvrcpInfo._ID)).longValue();
+    }
+
+    private static boolean isColumn(String name) {
+        for (String column : COLUMNS) {
+            if (column.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* SQLite hands numbers back as Long, the service writes Integer or Long. */
+    private static boolean sameValue(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return ((Number) a).longValue() == ((Number) b).longValue();
+        }
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    private static void putValue(ContentValues values, String column, Object value) {
+        if (value == null) {
+            values.putNull(column);
+        } else if (value instanceof String) {
+            values.put(column, (String) value);
+        } else if (value instanceof Integer) {
+            values.put(column, (Integer) value);
+        } else if (value instanceof Long) {
+            values.put(column, (Long) value);
+        } else {
+            values.put(column, value.toString());
+        }
+    }
+}
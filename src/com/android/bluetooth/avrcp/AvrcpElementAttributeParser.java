@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Walks the attribute entries of a GetElementAttributes response in place.
+ *
+ * Each entry is a 4 octet attribute id, a 2 octet character set, a 2 octet
+ * value length and the value itself. Values are decoded straight from the
+ * response buffer with one reused decoder; text values are interned in a
+ * small table so the artist and album strings repeated by every track of an
+ * album are only decoded once.
+ *
+ * Not thread safe, use one instance per handler thread.
+ *
+ * @hide
+ */
+public final class AvrcpElementAttributeParser {
+    private static final int HEADER_LENGTH = 8;
+
+    /* 16 sets of 4, a miss replaces the least recently used value of its set */
+    private static final int INTERN_SETS = 16;
+    private static final int INTERN_WAYS = 4;
+    private static final int INTERN_MAX_LENGTH = 256;
+
+    private final CharsetDecoder mDecoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer mChars = CharBuffer.allocate(INTERN_MAX_LENGTH);
+
+    private final byte[][] mInternBytes = new byte[INTERN_SETS * INTERN_WAYS][];
+    private final String[] mInternValues = new String[INTERN_SETS * INTERN_WAYS];
+    private final long[] mInternLastUse = new long[INTERN_SETS * INTERN_WAYS];
+    private long mInternTick;
+
+    private ByteBuffer mBuffer;
+    private int mLimit;
+    private int mNextOffset;
+    private int mAttributeId;
+    private int mCharset;
+    private int mValueOffset;
+    private int mValueLength;
+
+    /** Starts walking the entries of response, beginning at offset 0. */
+    public void reset(ByteBuffer response) {
+        mBuffer = response.duplicate();
+        mLimit = response.limit();
+        mNextOffset = 0;
+        mAttributeId = 0;
+        mCharset = 0;
+        mValueOffset = 0;
+        mValueLength = 0;
+    }
+
+    /**
+     * Moves to the next entry. Returns false if the response does not hold
+     * another complete entry header.
+     */
+    public boolean next() {
+        if (mBuffer == null || mNextOffset + HEADER_LENGTH > mLimit) {
+            return false;
+        }
+        mAttributeId = mBuffer.getInt(mNextOffset);
+        mCharset = mBuffer.getChar(mNextOffset + 4);
+        mValueLength = mBuffer.getChar(mNextOffset + 6);
+        mValueOffset = mNextOffset + HEADER_LENGTH;
+        mNextOffset = Math.min(mValueOffset + mValueLength, mLimit);
+        return true;
+    }
+
+    public int getAttributeId() {
+        return mAttributeId;
+    }
+
+    public int getCharset() {
+        return mCharset;
+    }
+
+    /** Value length as announced by the entry header. */
+    public int getValueLength() {
+        return mValueLength;
+    }
+
+    /** True if the current entry has a non-empty value that fits in the response. */
+    public boolean hasValue() {
+        return mValueLength > 0 && mValueOffset + mValueLength <= mLimit;
+    }
+
+    /** Returns the current value as text, or null if there is none. */
+    public String getString() {
+        if (!hasValue()) {
+            return null;
+        }
+        if (mValueLength > INTERN_MAX_LENGTH) {
+            return decode(mValueOffset, mValueLength);
+        }
+        int hash = hash(mValueOffset, mValueLength);
+        int first = ((hash ^ (hash >>> 16)) & (INTERN_SETS - 1)) * INTERN_WAYS;
+        int slot = first;
+        mInternTick++;
+        for (int i = first; i < first + INTERN_WAYS; i++) {
+            byte[] interned = mInternBytes[i];
+            if (interned != null && matches(interned, mValueOffset, mValueLength)) {
+                mInternLastUse[i] = mInternTick;
+                return mInternValues[i];
+            }
+            if (mInternLastUse[i] < mInternLastUse[slot]) {
+                slot = i;
+            }
+        }
+        String value = decode(mValueOffset, mValueLength);
+        byte[] bytes = new byte[mValueLength];
+        for (int i = 0; i < mValueLength; i++) {
+            bytes[i] = mBuffer.get(mValueOffset + i);
+        }
+        mInternBytes[slot] = bytes;
+        mInternValues[slot] = value;
+        mInternLastUse[slot] = mInternTick;
+        return value;
+    }
+
+    /**
+     * Returns the current value as a decimal number, or invalid if there is
+     * no value or it is not a number.
+     */
+    public int getInt(int invalid) {
+        if (!hasValue()) {
+            return invalid;
+        }
+        int offset = mValueOffset;
+        int end = mValueOffset + mValueLength;
+        boolean negative = false;
+        byte first = mBuffer.get(offset);
+        if (first == '-' || first == '+') {
+            negative = (first == '-');
+            if (++offset == end) {
+                return invalid;
+            }
+        }
+        long value = 0;
+        for (; offset < end; offset++) {
+            int digit = mBuffer.get(offset) - '0';
+            if (digit < 0 || digit > 9) {
+                return invalid;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return invalid;
+            }
+        }
+        if (negative) {
+            value = -value;
+        }
+        if (value > Integer.MAX_VALUE) {
+            return invalid;
+        }
+        return (int) value;
+    }
+
+    private String decode(int offset, int length) {
+        if (mChars.capacity() < length) {
+            mChars = CharBuffer.allocate(length);
+        }
+        mChars.clear();
+        mBuffer.limit(offset + length).position(offset);
+        mDecoder.reset();
+        mDecoder.decode(mBuffer, mChars, true);
+        mDecoder.flush(mChars);
+        mBuffer.limit(mLimit);
+        return new String(mChars.array(), 0, mChars.position());
+    }
+
+    private int hash(int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + mBuffer.get(i);
+        }
+        return hash;
+    }
+
+    private boolean matches(byte[] bytes, int offset, int length) {
+        if (bytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != mBuffer.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
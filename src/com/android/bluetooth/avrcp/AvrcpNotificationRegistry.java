@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import java.util.HashMap;
+
+/**
+ * Per-device AVRCP notification registrations.
+ *
+ * Maps connected device addresses to their slot in Avrcp's deviceFeatures
+ * array and keeps, for each event, a bit mask of the slots that currently
+ * hold an interim registration. Play state and position updates then only
+ * visit the devices that asked for them instead of scanning every slot.
+ *
+ * Also keeps the handler thread time spent per play position tick.
+ */
+final class AvrcpNotificationRegistry {
+    /* Event ids are defined by the AVRCP specification, 0x01 - 0x0d */
+    private static final int MAX_EVENT_ID = 0x0f;
+
+    private final HashMap<String, Integer> mIndexByAddress = new HashMap<String, Integer>();
+    private final int[] mRegistered = new int[MAX_EVENT_ID + 1];
+    private int mConnected;
+
+    private long mTickCount;
+    private long mTickTotalNanos;
+    private long mTickMaxNanos;
+
+    /** Returns the slot of the device with address, or -1 if it is not connected. */
+    synchronized int getIndex(String address) {
+        Integer index = mIndexByAddress.get(address);
+        return (index == null) ? -1 : index;
+    }
+
+    synchronized void addDevice(String address, int index) {
+        mIndexByAddress.put(address, index);
+        mConnected |= (1 << index);
+    }
+
+    synchronized void removeDevice(int index) {
+        int bit = 1 << index;
+        mIndexByAddress.values().remove(index);
+        mConnected &= ~bit;
+        for (int i = 0; i < mRegistered.length; i++) {
+            mRegistered[i] &= ~bit;
+        }
+    }
+
+    /** Bit mask of the occupied slots. */
+    synchronized int getConnected() {
+        return mConnected;
+    }
+
+    synchronized int getConnectedCount() {
+        return Integer.bitCount(mConnected);
+    }
+
+    synchronized void setRegistered(int eventId, int index, boolean registered) {
+        if (registered) {
+            mRegistered[eventId] |= (1 << index);
+        } else {
+            mRegistered[eventId] &= ~(1 << index);
+        }
+    }
+
+    /** Bit mask of the slots holding an interim registration for eventId. */
+    synchronized int getRegistered(int eventId) {
+        return mRegistered[eventId];
+    }
+
+    synchronized boolean isRegistered(int eventId, int index) {
+        return (mRegistered[eventId] & (1 << index)) != 0;
+    }
+
+    synchronized void recordTick(long elapsedNanos) {
+        mTickCount++;
+        mTickTotalNanos += elapsedNanos;
+        mTickMaxNanos = Math.max(mTickMaxNanos, elapsedNanos);
+    }
+
+    synchronized String getTickStats() {
+        long averageMicros = (mTickCount == 0) ? 0 : mTickTotalNanos / mTickCount / 1000;
+        return "ticks=" + mTickCount + " avg=" + averageMicros + "us max="
+                + (mTickMaxNanos / 1000) + "us";
+    }
+}
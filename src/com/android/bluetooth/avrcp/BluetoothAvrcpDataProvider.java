@@ -206,6 +206,7 @@ public final class BluetoothAvrcpDataProvider extends ContentProvider {
         Context context = getContext();
 
         if (rowID != -1) {
+            AvrcpControllerState.getInstance().reset(rowID, filteredValues);
             ret = Uri.parse(BluetoothAvrcpInfo.CONTENT_URI + "/" + rowID);
             context.getContentResolver().notifyChange(uri, null);
         } else {
@@ -221,14 +222,64 @@ public final class BluetoothAvrcpDataProvider extends ContentProvider {
         return true;
     }
 
+    /**
+     * Reads the controller row back from SQLite, e.g. when it was written
+     * by an earlier instance of the process.
+     */
+    private void loadState(SQLiteDatabase db) {
+        Cursor cursor = db.query(DB_TABLE, null, null, null, null, null,
+                BluetoothAvrcpInfo._ID);
+        try {
+            if (!cursor.moveToFirst()) {
+                return;
+            }
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < cursor.getColumnCount(); i++) {
+                String column = cursor.getColumnName(i);
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        values.putNull(column);
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values.put(column, cursor.getLong(i));
+                        break;
+                    default:
+                        values.put(column, cursor.getString(i));
+                        break;
+                }
+            }
+            AvrcpControllerState.getInstance().reset(
+                    values.getAsLong(BluetoothAvrcpInfo._ID), values);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Writes columns that so far only changed in memory through to SQLite. */
+    private void flushState(SQLiteDatabase db) {
+        ContentValues dirty = AvrcpControllerState.getInstance().takeDirty();
+        if (dirty != null) {
+            db.update(DB_TABLE, dirty, null, null);
+        }
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        AvrcpControllerState state = AvrcpControllerState.getInstance();
+        int match = sURIMatcher.match(uri);
+        if (selection == null && state.isLoaded() && (match == TRACKS || (match == TRACK_ID
+                && Long.parseLong(uri.getPathSegments().get(1)) == state.getRowId()))) {
+            Cursor ret = state.query(projection);
+            ret.setNotificationUri(getContext().getContentResolver(), uri);
+            return ret;
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        flushState(db);
 
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
 
-        int match = sURIMatcher.match(uri);
         switch (match) {
             case TRACKS: {
                 qb.setTables(DB_TABLE);
@@ -328,10 +379,19 @@ public final class BluetoothAvrcpDataProvider extends ContentProvider {
                 }
 
                 if (values.size() > 0) {
+                    flushState(db);
                     count = db.update(DB_TABLE, values, myWhere, selectionArgs);
                 } else {
                     count = 0;
                 }
+                if (count > 0) {
+                    AvrcpControllerState state = AvrcpControllerState.getInstance();
+                    if (state.isLoaded()) {
+                        state.applyPersisted(values);
+                    } else {
+                        loadState(db);
+                    }
+                }
                 break;
             }
             default: {
@@ -368,7 +428,12 @@ public final class BluetoothAvrcpDataProvider extends ContentProvider {
                     myWhere += " ( " + BluetoothAvrcpInfo._ID + " = " + rowId + " ) ";
                 }
 
+                flushState(db);
                 count = db.delete(DB_TABLE, myWhere, selectionArgs);
+                if (count > 0) {
+                    AvrcpControllerState.getInstance().clear();
+                    loadState(db);
+                }
                 break;
             }
             default: {
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.hfp;
+
+import java.util.Arrays;
+
+/**
+ * Splits the comma separated arguments of an AT command in place.
+ *
+ * Commas inside double quotes don't separate arguments, like in
+ * {@code AT+XAPL="ABCD-1234-0100",7}. Numbers are parsed into preallocated
+ * slots when the tokenizer is reset, so reading an int or long argument does
+ * not allocate; only {@link #getString} and {@link #toObjectArray} create
+ * objects. An argument is an int or a long exactly when
+ * {@link Integer#parseInt} or {@link Long#parseLong} would accept it.
+ *
+ * Not thread safe; each state machine keeps its own instance.
+ * @hide
+ */
+public final class AtArgumentTokenizer {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final int FLAG_LONG = 1;
+    private static final int FLAG_INT = 2;
+
+    private String mInput;
+    private int mCount;
+    private int[] mStarts = new int[INITIAL_CAPACITY];
+    private int[] mEnds = new int[INITIAL_CAPACITY];
+    private int[] mFlags = new int[INITIAL_CAPACITY];
+    private long[] mValues = new long[INITIAL_CAPACITY];
+    private final long[] mTrimmedValue = new long[1];
+
+    /** Tokenize all of input */
+    public AtArgumentTokenizer reset(String input) {
+        return reset(input, 0, input.length());
+    }
+
+    /**
+     * Tokenize input from start up to end. An empty range still has one, empty,
+     * argument, and a trailing comma adds another one.
+     */
+    public AtArgumentTokenizer reset(String input, int start, int end) {
+        mInput = input;
+        mCount = 0;
+        int i = start;
+        while (i <= end) {
+            int j = findComma(input, i, end);
+            add(i, j);
+            i = j + 1; // move past comma
+        }
+        return this;
+    }
+
+    public int count() {
+        return mCount;
+    }
+
+    /**
+     * Number of arguments without the empty ones at the end, the way
+     * {@link String#split} counts them: "1," and "1,," have one argument.
+     */
+    public int countWithoutTrailingEmpty() {
+        int count = mCount;
+        while (count > 0 && mStarts[count - 1] == mEnds[count - 1]) {
+            count--;
+        }
+        return count;
+    }
+
+    public boolean isInt(int index) {
+        checkIndex(index);
+        return (mFlags[index] & FLAG_INT) != 0;
+    }
+
+    public boolean isLong(int index) {
+        checkIndex(index);
+        return (mFlags[index] & FLAG_LONG) != 0;
+    }
+
+    /** The argument as an int; only valid if {@link #isInt} */
+    public int getInt(int index) {
+        if (!isInt(index)) {
+            throw new NumberFormatException("Not an int: " + getString(index));
+        }
+        return (int) mValues[index];
+    }
+
+    /** The argument as a long; only valid if {@link #isLong} */
+    public long getLong(int index) {
+        if (!isLong(index)) {
+            throw new NumberFormatException("Not a long: " + getString(index));
+        }
+        return mValues[index];
+    }
+
+    /**
+     * Whether the argument is an int once white space and ';' around it are
+     * dropped, which is how AT+CPBR indexes have always been read.
+     */
+    public boolean isTrimmedInt(int index) {
+        return (parseTrimmed(index) & FLAG_INT) != 0;
+    }
+
+    /** The argument as an int; only valid if {@link #isTrimmedInt} */
+    public int getTrimmedInt(int index) {
+        if (!isTrimmedInt(index)) {
+            throw new NumberFormatException("Not an int: " + getString(index));
+        }
+        return (int) mTrimmedValue[0];
+    }
+
+    public String getString(int index) {
+        checkIndex(index);
+        return mInput.substring(mStarts[index], mEnds[index]);
+    }
+
+    /** The argument without any double quotes and surrounding white space */
+    public String getUnquotedString(int index) {
+        checkIndex(index);
+        int start = mStarts[index];
+        int end = mEnds[index];
+        StringBuilder sb = null;
+        for (int i = start; i < end; i++) {
+            if (mInput.charAt(i) == '"') {
+                if (sb == null) {
+                    sb = new StringBuilder(end - start);
+                    sb.append(mInput, start, i);
+                }
+            } else if (sb != null) {
+                sb.append(mInput.charAt(i));
+            }
+        }
+        return (sb != null ? sb.toString() : mInput.substring(start, end)).trim();
+    }
+
+    /**
+     * The arguments boxed the way vendor specific AT command intents carry
+     * them: ints as Integer, everything else as String.
+     */
+    public Object[] toObjectArray() {
+        Object[] out = new Object[mCount];
+        for (int i = 0; i < mCount; i++) {
+            out[i] = isInt(i) ? (Object) getInt(i) : getString(i);
+        }
+        return out;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Argument " + index + " of " + mCount);
+        }
+    }
+
+    private int parseTrimmed(int index) {
+        checkIndex(index);
+        int start = mStarts[index];
+        int end = mEnds[index];
+        while (start < end && isTrimmable(mInput.charAt(start))) start++;
+        while (end > start && isTrimmable(mInput.charAt(end - 1))) end--;
+        return parseNumber(mInput, start, end, mTrimmedValue, 0);
+    }
+
+    private static boolean isTrimmable(char c) {
+        return c <= ' ' || c == ';';
+    }
+
+    /* Same as the old findChar(): an unmatched quote runs to the end */
+    private static int findComma(String input, int from, int end) {
+        for (int i = from; i < end; i++) {
+            char c = input.charAt(i);
+            if (c == '"') {
+                i = input.indexOf('"', i + 1);
+                if (i == -1 || i >= end) {
+                    return end;
+                }
+            } else if (c == ',') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private void add(int start, int end) {
+        if (mCount == mStarts.length) {
+            final int capacity = mCount * 2;
+            mStarts = Arrays.copyOf(mStarts, capacity);
+            mEnds = Arrays.copyOf(mEnds, capacity);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+            mValues = Arrays.copyOf(mValues, capacity);
+        }
+        mStarts[mCount] = start;
+        mEnds[mCount] = end;
+        mFlags[mCount] = parseNumber(mInput, start, end, mValues, mCount);
+        mCount++;
+    }
+
+    /*
+     * Parse like Long.parseLong(s, 10), accumulating negatively so that
+     * Long.MIN_VALUE fits. Returns the FLAG_ bits that apply.
+     */
+    private static int parseNumber(String s, int start, int end, long[] values, int slot) {
+        if (start >= end) return 0;
+        int i = start;
+        boolean negative = false;
+        long limit = -Long.MAX_VALUE;
+        char first = s.charAt(i);
+        if (first < '0') {
+            if (first == '-') {
+                negative = true;
+                limit = Long.MIN_VALUE;
+            } else if (first != '+') {
+                return 0;
+            }
+            if (++i == end) return 0; // a lone sign
+        }
+        final long multmin = limit / 10;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(s.charAt(i), 10);
+            if (digit < 0 || result < multmin) return 0;
+            result *= 10;
+            if (result < limit + digit) return 0;
+            result -= digit;
+        }
+        long value = negative ? result : -result;
+        values[slot] = value;
+        int flags = FLAG_LONG;
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            flags |= FLAG_INT;
+        }
+        return flags;
+    }
+}
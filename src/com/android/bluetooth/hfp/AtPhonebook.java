@@ -23,9 +23,13 @@ import android.bluetooth.BluetoothDevice;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
@@ -33,8 +37,14 @@ import android.util.Log;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.util.DevicePolicyUtils;
+import com.android.bluetooth.util.SimPhonebook;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Helper for managing phonebook presentation over AT commands
@@ -68,14 +78,46 @@ public class AtPhonebook {
     private static final String MISSED_CALL_WHERE = Calls.TYPE + "=" + Calls.MISSED_TYPE;
     private static final String VISIBLE_PHONEBOOK_WHERE = Phone.IN_VISIBLE_GROUP + "=1";
 
+    /** The projection to use when resolving the caller ids of a whole AT+CPBR
+     *  range in one pass over the contact phone numbers.
+     */
+    private static final String[] CALLER_ID_PROJECTION = new String[] {
+        Phone.NUMBER, Phone.DISPLAY_NAME, Phone.TYPE
+    };
+
+    /** Up to this many unknown numbers are looked up one by one; more than
+     *  that are cheaper to match in a single pass over all phone numbers. */
+    private static final int MAX_SINGLE_CALLER_ID_LOOKUPS = 8;
+
+    private static final int CALLER_ID_CACHE_SIZE = 512;
+
+    /** A phonebook query result is reused by the AT+CPBS and AT+CPBR commands
+     *  that follow within this time, unless the phonebook changed. */
+    private static final long PHONEBOOK_RESULT_TTL_MS = 10000;
+
     private class PhonebookResult {
         public Cursor  cursor; // result set of last query
         public int     numberColumn;
         public int     numberPresentationColumn;
         public int     typeColumn;
         public int     nameColumn;
+        public long    queryTime; // elapsed realtime of the query
+        public int     generation; // generation of the source when queried
     };
 
+    private static class CallerId {
+        public final String name;
+        public final int    type;
+
+        CallerId(String name, int type) {
+            this.name = name;
+            this.type = type;
+        }
+    };
+
+    /** A number that matched no contact, cached so it is not looked up again */
+    private static final CallerId NO_CALLER_ID = new CallerId(null, -1);
+
     private Context mContext;
     private ContentResolver mContentResolver;
     private HeadsetStateMachine mStateMachine;
@@ -83,6 +125,7 @@ public class AtPhonebook {
     private String mCharacterSet = "UTF-8";
 
     private int mCpbrIndex1, mCpbrIndex2;
+    private final AtArgumentTokenizer mAtArgs = new AtArgumentTokenizer();
     private boolean mCheckingAccessPermission;
 
     // package and class name to which we send intent to check phone book access permission
@@ -94,6 +137,39 @@ public class AtPhonebook {
     private final HashMap<String, PhonebookResult> mPhonebooks =
             new HashMap<String, PhonebookResult>(4);
 
+    /** Caller ids of call log numbers, least recently used first */
+    private final LinkedHashMap<String, CallerId> mCallerIdCache =
+            new LinkedHashMap<String, CallerId>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CallerId> eldest) {
+                    return size() > CALLER_ID_CACHE_SIZE;
+                }
+            };
+
+    /* Bumped on every change notification; results of an older generation are stale */
+    private final AtomicInteger mContactsGeneration = new AtomicInteger();
+
+    private final AtomicInteger mCallLogGeneration = new AtomicInteger();
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            log("Contacts changed, clearing caller id cache");
+            mContactsGeneration.incrementAndGet();
+            synchronized (mCallerIdCache) {
+                mCallerIdCache.clear();
+            }
+        }
+    };
+
+    private final ContentObserver mCallLogObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            log("Call log changed");
+            mCallLogGeneration.incrementAndGet();
+        }
+    };
+
     final int TYPE_UNKNOWN = -1;
     final int TYPE_READ = 0;
     final int TYPE_SET = 1;
@@ -112,30 +188,38 @@ public class AtPhonebook {
 
         mCpbrIndex1 = mCpbrIndex2 = -1;
         mCheckingAccessPermission = false;
+
+        mContentResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                mContactsObserver);
+        mContentResolver.registerContentObserver(Calls.CONTENT_URI, true, mCallLogObserver);
     }
 
     public void cleanup() {
+        closePhonebookResults();
         mPhonebooks.clear();
+        mContentResolver.unregisterContentObserver(mContactsObserver);
+        mContentResolver.unregisterContentObserver(mCallLogObserver);
+        synchronized (mCallerIdCache) {
+            mCallerIdCache.clear();
+        }
     }
 
     /** Returns the last dialled number, or null if no numbers have been called */
     public String getLastDialledNumber() {
         String[] projection = {Calls.NUMBER};
-        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true);
-        if (pbr == null) return null;
-        pbr.cursor = mContentResolver.query(Calls.CONTENT_URI, projection,
+        Cursor cursor = mContentResolver.query(Calls.CONTENT_URI, projection,
                 Calls.TYPE + "=" + Calls.OUTGOING_TYPE, null, Calls.DEFAULT_SORT_ORDER +
                 " LIMIT 1");
-        if (pbr.cursor == null) return null;
+        if (cursor == null) return null;
 
-        if (pbr.cursor.getCount() < 1) {
-            pbr.cursor.close();
+        if (cursor.getCount() < 1) {
+            cursor.close();
             return null;
         }
-        pbr.cursor.moveToNext();
-        int column = pbr.cursor.getColumnIndexOrThrow(Calls.NUMBER);
-        String number = pbr.cursor.getString(column);
-        pbr.cursor.close();
+        cursor.moveToNext();
+        int column = cursor.getColumnIndexOrThrow(Calls.NUMBER);
+        String number = cursor.getString(column);
+        cursor.close();
         return number;
     }
 
@@ -175,14 +259,14 @@ public class AtPhonebook {
                 break;
             case TYPE_SET: // Set
                 log("handleCscsCommand - Set Command");
-                String[] args = atString.split("=");
-                if (args.length < 2 || !(args[1] instanceof String)) {
+                int equals = atString.indexOf('=');
+                if (equals == -1 || equals + 1 == atString.length()) {
                     mStateMachine.atResponseCodeNative(atCommandResult,
                            atCommandErrorCode, getByteAddress(device));
                     break;
                 }
-                String characterSet = ((atString.split("="))[1]);
-                characterSet = characterSet.replace("\"", "");
+                String characterSet = mAtArgs.reset(atString, equals + 1, atString.length())
+                        .getUnquotedString(0);
                 if (characterSet.equals("GSM") || characterSet.equals("IRA") ||
                     characterSet.equals("UTF-8") || characterSet.equals("UTF8")) {
                     mCharacterSet = characterSet;
@@ -213,19 +297,19 @@ public class AtPhonebook {
                 log("handleCpbsCommand - read command");
                 // Return current size and max size
                 if ("SM".equals(mCurrentPhonebook)) {
-                    atCommandResponse = "+CPBS: \"SM\",0," + getMaxPhoneBookSize(0);
+                    int simSize = getSimPhonebook().size();
+                    atCommandResponse = "+CPBS: \"SM\"," + simSize + ","
+                            + getMaxPhoneBookSize(simSize);
                     atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                     break;
                 }
-                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true);
+                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
                 if (pbr == null) {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_SUPPORTED;
                     break;
                 }
                 int size = pbr.cursor.getCount();
                 atCommandResponse = "+CPBS: \"" + mCurrentPhonebook + "\"," + size + "," + getMaxPhoneBookSize(size);
-                pbr.cursor.close();
-                pbr.cursor = null;
                 atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                 break;
             case TYPE_TEST: // Test
@@ -235,15 +319,14 @@ public class AtPhonebook {
                 break;
             case TYPE_SET: // Set
                 log("handleCpbsCommand - set command");
-                String[] args = atString.split("=");
+                int equals = atString.indexOf('=');
                 // Select phonebook memory
-                if (args.length < 2 || !(args[1] instanceof String)) {
+                if (equals == -1 || equals + 1 == atString.length()) {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_SUPPORTED;
                     break;
                 }
-                String pb = args[1].trim();
-                while (pb.endsWith("\"")) pb = pb.substring(0, pb.length() - 1);
-                while (pb.startsWith("\"")) pb = pb.substring(1, pb.length());
+                String pb = mAtArgs.reset(atString, equals + 1, atString.length())
+                        .getUnquotedString(0);
                 if (getPhonebookResult(pb, false) == null && !"SM".equals(pb)) {
                    log("Dont know phonebook: '" + pb + "'");
                    atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
@@ -278,9 +361,9 @@ public class AtPhonebook {
                 log("handleCpbrCommand - test command");
                 int size;
                 if ("SM".equals(mCurrentPhonebook)) {
-                    size = 0;
+                    size = getSimPhonebook().size();
                 } else {
-                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
                     if (pbr == null) {
                         atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
                         mStateMachine.atResponseCodeNative(atCommandResult,
@@ -289,8 +372,6 @@ public class AtPhonebook {
                     }
                     size = pbr.cursor.getCount();
                     log("handleCpbrCommand - size = "+size);
-                    pbr.cursor.close();
-                    pbr.cursor = null;
                 }
                 if (size == 0) {
                     /* Sending "+CPBR: (1-0)" can confused some carkits, send "1-1" * instead */
@@ -320,25 +401,22 @@ public class AtPhonebook {
                 // Parse indexes
                 int index1;
                 int index2;
-                if ((atString.split("=")).length < 2) {
+                int equals = atString.indexOf('=');
+                if (equals == -1 || equals + 1 == atString.length()) {
                     mStateMachine.atResponseCodeNative(atCommandResult, atCommandErrorCode,
                                          getByteAddress(remoteDevice));
                     break;
                 }
-                String atCommand = (atString.split("="))[1];
-                String[] indices = atCommand.split(",");
-                for(int i = 0; i < indices.length; i++)
-                    //replace AT command separator ';' from the index if any
-                    indices[i] = indices[i].replace(';', ' ').trim();
-                try {
-                    index1 = Integer.parseInt(indices[0]);
-                    if (indices.length == 1)
-                        index2 = index1;
-                    else
-                        index2 = Integer.parseInt(indices[1]);
-                }
-                catch (Exception e) {
-                    log("handleCpbrCommand - exception - invalid chars: " + e.toString());
+                //ignore spaces and AT command separator ';' around the indexes if any
+                //an empty second index, as in AT+CPBR=1, is the same as none
+                mAtArgs.reset(atString, equals + 1, atString.length());
+                int count = mAtArgs.countWithoutTrailingEmpty();
+                if (count > 0 && mAtArgs.isTrimmedInt(0)
+                        && (count == 1 || mAtArgs.isTrimmedInt(1))) {
+                    index1 = mAtArgs.getTrimmedInt(0);
+                    index2 = count == 1 ? index1 : mAtArgs.getTrimmedInt(1);
+                } else {
+                    log("handleCpbrCommand - invalid chars: " + atString);
                     atCommandErrorCode = BluetoothCmeError.TEXT_HAS_INVALID_CHARS;
                     mStateMachine.atResponseCodeNative(atCommandResult, atCommandErrorCode,
                                          getByteAddress(remoteDevice));
@@ -378,7 +456,8 @@ public class AtPhonebook {
 
     /** Get the most recent result for the given phone book,
      *  with the cursor ready to go.
-     *  If force then re-query that phonebook
+     *  If force, or the result is older than PHONEBOOK_RESULT_TTL_MS or the
+     *  phonebook changed since, then re-query that phonebook
      *  Returns null if the cursor is not ready
      */
     private synchronized PhonebookResult getPhonebookResult(String pb, boolean force) {
@@ -389,15 +468,32 @@ public class AtPhonebook {
         if (pbr == null) {
             pbr = new PhonebookResult();
         }
-        if (force || pbr.cursor == null) {
+        if (force || pbr.cursor == null || pbr.cursor.isClosed()
+                || pbr.generation != getGeneration(pb)
+                || SystemClock.elapsedRealtime() - pbr.queryTime > PHONEBOOK_RESULT_TTL_MS) {
             if (!queryPhonebook(pb, pbr)) {
                 return null;
             }
+        } else {
+            log("Reusing phonebook " + pb + " result");
         }
 
         return pbr;
     }
 
+    private int getGeneration(String pb) {
+        return pb.equals("ME") ? mContactsGeneration.get() : mCallLogGeneration.get();
+    }
+
+    private synchronized void closePhonebookResults() {
+        for (PhonebookResult pbr : mPhonebooks.values()) {
+            if (pbr.cursor != null) {
+                pbr.cursor.close();
+                pbr.cursor = null;
+            }
+        }
+    }
+
     private synchronized boolean queryPhonebook(String pb, PhonebookResult pbr) {
         String where;
         boolean ancillaryPhonebook = true;
@@ -420,6 +516,9 @@ public class AtPhonebook {
             pbr.cursor = null;
         }
 
+        // Read before the query, so a change during it makes the result stale
+        pbr.generation = getGeneration(pb);
+        pbr.queryTime = SystemClock.elapsedRealtime();
         if (ancillaryPhonebook) {
             pbr.cursor = mContentResolver.query(
                     Calls.CONTENT_URI, CALLS_PROJECTION, where, null,
@@ -450,6 +549,7 @@ public class AtPhonebook {
         mCharacterSet = "UTF-8";
         mCpbrIndex1 = mCpbrIndex2 = -1;
         mCheckingAccessPermission = false;
+        closePhonebookResults();
     }
 
     private synchronized int getMaxPhoneBookSize(int currSize) {
@@ -481,17 +581,16 @@ public class AtPhonebook {
         int atCommandResult = HeadsetHalConstants.AT_RESPONSE_ERROR;
         int atCommandErrorCode = -1;
         String atCommandResponse = null;
-        StringBuilder response = new StringBuilder();
+        AtResponseBuffer response = new AtResponseBuffer();
         String record;
 
-        // Shortcut SM phonebook
+        // SM phonebook is served from the SIM snapshot shared with PBAP
         if ("SM".equals(mCurrentPhonebook)) {
-            atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
-            return atCommandResult;
+            return processSimCpbrCommand(device);
         }
 
         // Check phonebook
-        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
         if (pbr == null) {
             atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
             return atCommandResult;
@@ -510,6 +609,10 @@ public class AtPhonebook {
         // Process
         atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
         int errorDetected = -1; // no error
+        HashMap<String, CallerId> callerIds = null;
+        if (pbr.nameColumn == -1) {
+            callerIds = resolveCallerIds(pbr, mCpbrIndex1, mCpbrIndex2);
+        }
         pbr.cursor.moveToPosition(mCpbrIndex1 - 1);
         log("mCpbrIndex1 = "+mCpbrIndex1+ " and mCpbrIndex2 = "+mCpbrIndex2);
         for (int index = mCpbrIndex1; index <= mCpbrIndex2; index++) {
@@ -517,20 +620,11 @@ public class AtPhonebook {
             String name = null;
             int type = -1;
             if (pbr.nameColumn == -1 && number != null && number.length() > 0) {
-                // try caller id lookup
-                // TODO: This code is horribly inefficient. I saw it
-                // take 7 seconds to process 100 missed calls.
-                Cursor c = mContentResolver.query(
-                        Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
-                        new String[] {
-                                PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE
-                        }, null, null, null);
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        name = c.getString(0);
-                        type = c.getInt(1);
-                    }
-                    c.close();
+                // caller id resolved for the whole range above
+                CallerId callerId = callerIds.get(number);
+                if (callerId != null) {
+                    name = callerId.name;
+                    type = callerId.type;
                 }
                 if (name == null) log("Caller ID lookup failed for " + number);
 
@@ -565,30 +659,185 @@ public class AtPhonebook {
                 name = mContext.getString(R.string.unknownNumber);
             }
 
-            // TODO(): Handle IRA commands. It's basically
-            // a 7 bit ASCII character set.
-            if (!name.equals("") && mCharacterSet.equals("GSM")) {
-                byte[] nameByte = GsmAlphabet.stringToGsm8BitPacked(name);
-                if (nameByte == null) {
-                    name = mContext.getString(R.string.unknownNumber);
+            record = buildCpbrRecord(index, number, regionType, name);
+            appendCpbrRecord(response, record, device);
+            if (!pbr.cursor.moveToNext()) {
+                break;
+            }
+        }
+        flushCpbrRecords(response, device);
+        // The cursor stays open for the AT+CPBR commands that read the next range
+        return atCommandResult;
+    }
+
+    private SimPhonebook.Snapshot getSimPhonebook() {
+        return SimPhonebook.getInstance(mContext).getSnapshot();
+    }
+
+    // process CPBR command for the SM phonebook, which has no caller id or
+    // number presentation to resolve
+    private int processSimCpbrCommand(BluetoothDevice device) {
+        SimPhonebook.Snapshot sim = getSimPhonebook();
+        // Send OK instead of ERROR for an invalid range, like for the other phonebooks
+        if (sim.size() == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1 ||
+            mCpbrIndex1 > sim.size()) {
+            return HeadsetHalConstants.AT_RESPONSE_OK;
+        }
+        final int lastIndex = Math.min(mCpbrIndex2, sim.size());
+        log("SM mCpbrIndex1 = " + mCpbrIndex1 + " and mCpbrIndex2 = " + lastIndex);
+        AtResponseBuffer response = new AtResponseBuffer();
+        for (int index = mCpbrIndex1; index <= lastIndex; index++) {
+            String name = sim.getName(index - 1);
+            if (name == null) name = "";
+            name = name.trim();
+            if (name.length() > 28) name = name.substring(0, 28);
+
+            String number = sim.getNumber(index - 1);
+            if (number == null) number = "";
+            int regionType = PhoneNumberUtils.toaFromString(number);
+            number = PhoneNumberUtils.stripSeparators(number.trim());
+            if (number.length() > 30) number = number.substring(0, 30);
+
+            appendCpbrRecord(response, buildCpbrRecord(index, number, regionType, name), device);
+        }
+        flushCpbrRecords(response, device);
+        return HeadsetHalConstants.AT_RESPONSE_OK;
+    }
+
+    private String buildCpbrRecord(int index, String number, int regionType, String name) {
+        // TODO(): Handle IRA commands. It's basically
+        // a 7 bit ASCII character set.
+        if (!name.equals("") && mCharacterSet.equals("GSM")) {
+            byte[] nameByte = GsmAlphabet.stringToGsm8BitPacked(name);
+            if (nameByte == null) {
+                name = mContext.getString(R.string.unknownNumber);
+            } else {
+                name = new String(nameByte);
+            }
+        }
+
+        return "+CPBR: " + index + ",\"" + number + "\"," + regionType + ",\"" + name + "\""
+                + "\r\n\r\n";
+    }
+
+    // Queue a +CPBR record, sending the queued ones first if it would not fit
+    // in the result buffer of the stack
+    private void appendCpbrRecord(AtResponseBuffer response, String record,
+            BluetoothDevice device) {
+        String full = response.append(record);
+        if (full != null) {
+            mStateMachine.atResponseStringNative(full, getByteAddress(device));
+        }
+    }
+
+    private void flushCpbrRecords(AtResponseBuffer response, BluetoothDevice device) {
+        String rest = response.flush();
+        if (rest != null) {
+            mStateMachine.atResponseStringNative(rest, getByteAddress(device));
+        }
+    }
+
+    /**
+     * Resolve the caller ids of the numbers in the given AT+CPBR range of a
+     * call log phonebook, using the cache and then at most one query for the
+     * numbers not seen before. Leaves the cursor at an undefined position.
+     */
+    private HashMap<String, CallerId> resolveCallerIds(PhonebookResult pbr, int index1,
+            int index2) {
+        HashMap<String, CallerId> callerIds = new HashMap<String, CallerId>();
+        HashSet<String> unknown = new HashSet<String>();
+        synchronized (mCallerIdCache) {
+            for (int index = index1; index <= index2 && pbr.cursor.moveToPosition(index - 1);
+                    index++) {
+                String number = pbr.cursor.getString(pbr.numberColumn);
+                if (number == null || number.length() == 0 || callerIds.containsKey(number)) {
+                    continue;
+                }
+                CallerId callerId = mCallerIdCache.get(number);
+                if (callerId != null) {
+                    callerIds.put(number, callerId);
                 } else {
-                    name = new String(nameByte);
+                    unknown.add(number);
                 }
             }
+        }
+        if (unknown.isEmpty()) return callerIds;
 
-            record = "+CPBR: " + index + ",\"" + number + "\"," + regionType + ",\"" + name + "\"";
-            record = record + "\r\n\r\n";
-            atCommandResponse = record;
-            mStateMachine.atResponseStringNative(atCommandResponse, getByteAddress(device));
-            if (!pbr.cursor.moveToNext()) {
-                break;
+        HashMap<String, CallerId> resolved = new HashMap<String, CallerId>(unknown.size() * 2);
+        if (unknown.size() <= MAX_SINGLE_CALLER_ID_LOOKUPS) {
+            for (String number : unknown) {
+                lookupCallerId(number, resolved);
             }
+        } else {
+            matchCallerIds(unknown, resolved);
         }
-        if(pbr != null && pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
+        log("Resolved " + resolved.size() + " of " + unknown.size() + " caller ids");
+
+        synchronized (mCallerIdCache) {
+            for (String number : unknown) {
+                CallerId callerId = resolved.get(number);
+                if (callerId == null) callerId = NO_CALLER_ID;
+                mCallerIdCache.put(number, callerId);
+                callerIds.put(number, callerId);
+            }
+        }
+        return callerIds;
+    }
+
+    private void lookupCallerId(String number, HashMap<String, CallerId> resolved) {
+        Cursor c = mContentResolver.query(
+                Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
+                new String[] {
+                        PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE
+                }, null, null, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                resolved.put(number, new CallerId(c.getString(0), c.getInt(1)));
+            }
+            c.close();
+        }
+    }
+
+    // One pass over all contact phone numbers, matched by caller id min match
+    private void matchCallerIds(HashSet<String> numbers, HashMap<String, CallerId> resolved) {
+        HashMap<String, ArrayList<String>> numbersByMinMatch =
+                new HashMap<String, ArrayList<String>>(numbers.size() * 2);
+        for (String number : numbers) {
+            String minMatch = PhoneNumberUtils.toCallerIDMinMatch(number);
+            if (minMatch == null) continue;
+            ArrayList<String> sameMinMatch = numbersByMinMatch.get(minMatch);
+            if (sameMinMatch == null) {
+                sameMinMatch = new ArrayList<String>(1);
+                numbersByMinMatch.put(minMatch, sameMinMatch);
+            }
+            sameMinMatch.add(number);
+        }
+
+        Cursor c = null;
+        try {
+            c = mContentResolver.query(DevicePolicyUtils.getEnterprisePhoneUri(mContext),
+                    CALLER_ID_PROJECTION, null, null, Phone.CONTACT_ID);
+            if (c == null) return;
+            while (c.moveToNext()) {
+                String contactNumber = c.getString(0);
+                String minMatch = PhoneNumberUtils.toCallerIDMinMatch(contactNumber);
+                ArrayList<String> candidates =
+                        minMatch != null ? numbersByMinMatch.get(minMatch) : null;
+                if (candidates == null) continue;
+                for (String number : candidates) {
+                    if (!resolved.containsKey(number)
+                            && PhoneNumberUtils.compare(contactNumber, number)) {
+                        resolved.put(number, new CallerId(c.getString(1), c.getInt(2)));
+                    }
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "SQLite exception while matching caller ids: " + e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
         }
-        return atCommandResult;
     }
 
     /**
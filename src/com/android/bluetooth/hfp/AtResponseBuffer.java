@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.hfp;
+
+/**
+ * Coalesces several AT result records, such as +CPBR lines, into responses
+ * that fit the AT result buffer of the stack.
+ *
+ * The limit is counted in the modified UTF-8 bytes that
+ * GetStringUTFChars() hands to the stack, not in Java chars: a non-ASCII
+ * character takes up to three bytes, and anything past the end of the
+ * buffer would be cut off silently.
+ *
+ * Not thread safe.
+ * @hide
+ */
+public final class AtResponseBuffer {
+    /** Size of the AT result buffer of the stack, including the terminating NUL */
+    private static final int AT_RESULT_BUFFER_SIZE = 256;
+
+    /** The stack frames each response with "\r\n" before and after it */
+    private static final int AT_RESPONSE_FRAMING = 4;
+
+    /** Most bytes of records sent in one response */
+    public static final int MAX_RESPONSE_BYTES =
+            AT_RESULT_BUFFER_SIZE - AT_RESPONSE_FRAMING - 1;
+
+    private final StringBuilder mResponse = new StringBuilder();
+    private final int mMaxBytes;
+    private int mBytes;
+
+    public AtResponseBuffer() {
+        this(MAX_RESPONSE_BYTES);
+    }
+
+    public AtResponseBuffer(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Queue a record. If it doesn't fit after the queued ones, those are
+     * returned to be sent first. A record that is too long on its own is
+     * still queued, and sent alone.
+     * @return the response to send before the record, or null
+     */
+    public String append(String record) {
+        int length = encodedLength(record);
+        String full = null;
+        if (mBytes > 0 && mBytes + length > mMaxBytes) {
+            full = flush();
+        }
+        mResponse.append(record);
+        mBytes += length;
+        return full;
+    }
+
+    /** @return the queued records as one response, or null if there are none */
+    public String flush() {
+        if (mResponse.length() == 0) {
+            return null;
+        }
+        String response = mResponse.toString();
+        mResponse.setLength(0);
+        mBytes = 0;
+        return response;
+    }
+
+    /** Bytes of the queued records */
+    public int getEncodedLength() {
+        return mBytes;
+    }
+
+    /** Length of s in modified UTF-8, as returned by GetStringUTFChars() */
+    public static int encodedLength(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+}
@@ -179,6 +179,8 @@ final class HeadsetStateMachine extends StateMachine {
     private boolean mDialingOut = false;
     private AudioManager mAudioManager;
     private AtPhonebook mPhonebook;
+    // Reused for the arguments of every AT command handled on the state machine thread
+    private final AtArgumentTokenizer mAtArgs = new AtArgumentTokenizer();
 
     private static Intent sVoiceCommandIntent;
 
@@ -2798,16 +2800,15 @@ final class HeadsetStateMachine extends StateMachine {
     private int getAtCommandType(String atCommand)
     {
         int commandType = mPhonebook.TYPE_UNKNOWN;
-        String atString = null;
         atCommand = atCommand.trim();
         if (atCommand.length() > 5)
         {
-            atString = atCommand.substring(5);
-            if (atString.startsWith("?"))     // Read
+            // Look past the 5 character command name without slicing it off
+            if (atCommand.startsWith("?", 5))     // Read
                 commandType = mPhonebook.TYPE_READ;
-            else if (atString.startsWith("=?"))   // Test
+            else if (atCommand.startsWith("=?", 5))   // Test
                 commandType = mPhonebook.TYPE_TEST;
-            else if (atString.startsWith("="))   // Set
+            else if (atCommand.startsWith("=", 5))   // Set
                 commandType = mPhonebook.TYPE_SET;
             else
                 commandType = mPhonebook.TYPE_UNKNOWN;
@@ -3418,75 +3419,6 @@ final class HeadsetStateMachine extends StateMachine {
         }
     }
 
-    /**
-     * Find a character ch, ignoring quoted sections.
-     * Return input.length() if not found.
-     */
-    static private int findChar(char ch, String input, int fromIndex) {
-        for (int i = fromIndex; i < input.length(); i++) {
-            char c = input.charAt(i);
-            if (c == '"') {
-                i = input.indexOf('"', i + 1);
-                if (i == -1) {
-                    return input.length();
-                }
-            } else if (c == ch) {
-                return i;
-            }
-        }
-        return input.length();
-    }
-
-    /**
-     * Break an argument string into individual arguments (comma delimited).
-     * Integer arguments are turned into Integer objects. Otherwise a String
-     * object is used.
-     */
-    static private Object[] generateArgs(String input) {
-        int i = 0;
-        int j;
-        ArrayList<Object> out = new ArrayList<Object>();
-        while (i <= input.length()) {
-            j = findChar(',', input, i);
-
-            String arg = input.substring(i, j);
-            try {
-                out.add(new Integer(arg));
-            } catch (NumberFormatException e) {
-                out.add(arg);
-            }
-
-            i = j + 1; // move past comma
-        }
-        return out.toArray();
-    }
-
-    /**
-     * Break an argument string into individual arguments (comma delimited).
-     * First argument is turned into integer object and second into long object.
-     * Otherwise a String object is used.
-     */
-    static private Object[] generateArgsBiev(String input) {
-        int i = 0;
-        int j;
-        ArrayList<Object> out = new ArrayList<Object>();
-        while (i <= input.length()) {
-            j = findChar(',', input, i);
-            String arg = input.substring(i, j);
-            try {
-                if (i == 0)
-                    out.add(new Integer(arg));
-                else
-                    out.add(new Long(arg));
-            } catch (NumberFormatException e) {
-                out.add(arg);
-            }
-
-            i = j + 1; // move past comma
-        }
-        return out.toArray();
-    }
-
     /**
      * @return {@code true} if the given string is a valid vendor-specific AT command.
      */
@@ -3507,13 +3439,14 @@ final class HeadsetStateMachine extends StateMachine {
             return false;
         }
 
-        String arg = atString.substring(indexOfEqual + 1);
-        if (arg.startsWith("?")) {
+        if (atString.startsWith("?", indexOfEqual + 1)) {
             Log.e(TAG, "processVendorSpecificAt: command type error in " + atString);
             return false;
         }
 
-        Object[] args = generateArgs(arg);
+        // The intent API takes boxed arguments
+        Object[] args = mAtArgs.reset(atString, indexOfEqual + 1, atString.length())
+                .toObjectArray();
         broadcastVendorSpecificEventIntent(command,
                                            companyId,
                                            BluetoothHeadset.AT_CMD_TYPE_SET,
@@ -3606,9 +3539,13 @@ final class HeadsetStateMachine extends StateMachine {
             atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK, 0, getByteAddress(device));
         } else if (type == 0) {
             Log.d(TAG, "hf_ind " + hf_ind);
-            Object[] args = generateArgs(hf_ind);
-            for (int i = 0; i < args.length; i++) {
-                mHfIndicatorHfList.add((int)args[i]);
+            mAtArgs.reset(hf_ind);
+            for (int i = 0; i < mAtArgs.count(); i++) {
+                if (mAtArgs.isInt(i)) {
+                    mHfIndicatorHfList.add(mAtArgs.getInt(i));
+                } else {
+                    Log.w(TAG, "Ignoring invalid HF indicator " + mAtArgs.getString(i));
+                }
             }
         }
         else {
@@ -3639,9 +3576,14 @@ final class HeadsetStateMachine extends StateMachine {
             Log.w(TAG, "processAtBiev device is null");
             return;
         }
-        Object[] args = generateArgsBiev(hf_ind_value);
-        anum = (int)args[0];
-        value = (long)args[1];
+        mAtArgs.reset(hf_ind_value);
+        if (mAtArgs.count() < 2 || !mAtArgs.isInt(0) || !mAtArgs.isLong(1)) {
+            Log.w(TAG, "processAtBiev: invalid arguments " + hf_ind_value);
+            atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
+            return;
+        }
+        anum = mAtArgs.getInt(0);
+        value = mAtArgs.getLong(1);
         Log.d(TAG, "processAtBiev for device:" + device + " anum = " + anum + " value = " + value);
         for (Iterator<Pair<Integer, Boolean>> iter =
                 mHfIndicatorAgList.iterator(); iter.hasNext(); ) {
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.hfpclient;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothHeadsetClientCall;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Calls known to HeadsetClientStateMachine.
+ *
+ * Calls are keyed by their CLCC index and additionally indexed per call
+ * state, so lookups by state do not scan every call. All state changes of
+ * tracked calls must go through {@link #setState} to keep the index valid.
+ *
+ * CLCC responses are staged in reusable buffers between
+ * {@link #beginUpdate} and {@link #finishUpdate}, which then reconciles
+ * them with the tracked calls in place. Calls are only allocated for ids
+ * not seen before.
+ */
+final class HeadsetClientCallTable {
+    // BluetoothHeadsetClientCall.CALL_STATE_ACTIVE .. CALL_STATE_TERMINATED
+    private static final int NUM_STATES = 8;
+
+    private final HashMap<Integer, BluetoothHeadsetClientCall> mCalls =
+            new HashMap<Integer, BluetoothHeadsetClientCall>();
+    private final ArrayList<ArrayList<BluetoothHeadsetClientCall>> mByState =
+            new ArrayList<ArrayList<BluetoothHeadsetClientCall>>(NUM_STATES);
+
+    // CLCC entries received since beginUpdate(), valid while mUpdating
+    private boolean mUpdating;
+    private int mStagedCount;
+    private int[] mStagedIds = new int[4];
+    private int[] mStagedStates = new int[4];
+    private String[] mStagedNumbers = new String[4];
+    private boolean[] mStagedMultiParty = new boolean[4];
+    private boolean[] mStagedOutgoing = new boolean[4];
+
+    HeadsetClientCallTable() {
+        for (int i = 0; i < NUM_STATES; i++) {
+            mByState.add(new ArrayList<BluetoothHeadsetClientCall>(2));
+        }
+    }
+
+    synchronized BluetoothHeadsetClientCall get(int id) {
+        return mCalls.get(id);
+    }
+
+    synchronized boolean containsId(int id) {
+        return mCalls.containsKey(id);
+    }
+
+    synchronized int size() {
+        return mCalls.size();
+    }
+
+    /**
+     * Returns a live view of the tracked calls. Only the state machine
+     * thread may iterate it; other threads use {@link #copyCalls}.
+     */
+    Collection<BluetoothHeadsetClientCall> values() {
+        return mCalls.values();
+    }
+
+    synchronized List<BluetoothHeadsetClientCall> copyCalls() {
+        return new ArrayList<BluetoothHeadsetClientCall>(mCalls.values());
+    }
+
+    synchronized void add(BluetoothHeadsetClientCall c) {
+        BluetoothHeadsetClientCall old = mCalls.put(c.getId(), c);
+        if (old != null) {
+            unindex(old);
+        }
+        index(c);
+    }
+
+    synchronized BluetoothHeadsetClientCall remove(int id) {
+        BluetoothHeadsetClientCall c = mCalls.remove(id);
+        if (c != null) {
+            unindex(c);
+        }
+        return c;
+    }
+
+    synchronized void clear() {
+        mCalls.clear();
+        for (int i = 0; i < NUM_STATES; i++) {
+            mByState.get(i).clear();
+        }
+        mUpdating = false;
+        mStagedCount = 0;
+    }
+
+    /**
+     * Changes the state of a call, moving it between state indexes if it is
+     * tracked. Calls that are no longer tracked are updated as is.
+     */
+    synchronized void setState(BluetoothHeadsetClientCall c, int state) {
+        boolean tracked = mCalls.get(c.getId()) == c;
+        if (tracked) {
+            unindex(c);
+        }
+        c.setState(state);
+        if (tracked) {
+            index(c);
+        }
+    }
+
+    /** Returns the lowest id not used by any tracked call, starting with 1. */
+    synchronized int nextFreeId() {
+        int id = 1;
+        while (mCalls.containsKey(id)) {
+            id++;
+        }
+        return id;
+    }
+
+    /** Returns the oldest call in the first of the given states that has one. */
+    synchronized BluetoothHeadsetClientCall first(int... states) {
+        for (int s : states) {
+            if (s >= 0 && s < NUM_STATES) {
+                ArrayList<BluetoothHeadsetClientCall> calls = mByState.get(s);
+                if (!calls.isEmpty()) {
+                    return calls.get(0);
+                }
+            }
+        }
+        return null;
+    }
+
+    synchronized int count(int state) {
+        if (state < 0 || state >= NUM_STATES) {
+            return 0;
+        }
+        return mByState.get(state).size();
+    }
+
+    boolean isUpdating() {
+        return mUpdating;
+    }
+
+    void beginUpdate() {
+        mUpdating = true;
+        mStagedCount = 0;
+    }
+
+    void cancelUpdate() {
+        mUpdating = false;
+        mStagedCount = 0;
+    }
+
+    /** Stages one CLCC entry. Ignored unless an update is in progress. */
+    void stageUpdate(int id, int state, String number, boolean multiParty,
+            boolean outgoing) {
+        if (!mUpdating) {
+            return;
+        }
+
+        // a repeated id replaces the earlier entry, as the old map did
+        int i = 0;
+        while (i < mStagedCount && mStagedIds[i] != id) {
+            i++;
+        }
+        if (i == mStagedCount) {
+            if (mStagedCount == mStagedIds.length) {
+                grow();
+            }
+            mStagedCount++;
+        }
+
+        mStagedIds[i] = id;
+        mStagedStates[i] = state;
+        mStagedNumbers[i] = number;
+        mStagedMultiParty[i] = multiParty;
+        mStagedOutgoing[i] = outgoing;
+    }
+
+    /**
+     * Reconciles the staged CLCC entries with the tracked calls.
+     *
+     * Calls missing from the response are removed and added to
+     * {@code removed}; the caller terminates them. Calls that are new or
+     * whose state, number or multiparty flag changed are updated in place
+     * and added to {@code changed}. Both lists are cleared first.
+     */
+    synchronized void finishUpdate(BluetoothDevice device,
+            List<BluetoothHeadsetClientCall> changed,
+            List<BluetoothHeadsetClientCall> removed) {
+        changed.clear();
+        removed.clear();
+        mUpdating = false;
+
+        // check if any call was removed
+        for (BluetoothHeadsetClientCall c : mCalls.values()) {
+            if (!isStaged(c.getId())) {
+                removed.add(c);
+            }
+        }
+        for (int i = 0; i < removed.size(); i++) {
+            remove(removed.get(i).getId());
+        }
+
+        // check if any calls changed or new call is present
+        for (int i = 0; i < mStagedCount; i++) {
+            int id = mStagedIds[i];
+            String number = mStagedNumbers[i];
+            BluetoothHeadsetClientCall c = mCalls.get(id);
+
+            if (c == null || c.isOutgoing() != mStagedOutgoing[i]) {
+                // avoid losing number if was not present in clcc
+                if (c != null && "".equals(number)) {
+                    number = c.getNumber();
+                }
+                c = new BluetoothHeadsetClientCall(device, id, mStagedStates[i], number,
+                        mStagedMultiParty[i], mStagedOutgoing[i]);
+                add(c);
+                changed.add(c);
+            } else {
+                boolean updated = false;
+                if (c.getState() != mStagedStates[i]) {
+                    setState(c, mStagedStates[i]);
+                    updated = true;
+                }
+                if (number != null && !number.equals("") && !number.equals(c.getNumber())) {
+                    c.setNumber(number);
+                    updated = true;
+                }
+                if (c.isMultiParty() != mStagedMultiParty[i]) {
+                    c.setMultiParty(mStagedMultiParty[i]);
+                    updated = true;
+                }
+                if (updated) {
+                    changed.add(c);
+                }
+            }
+            mStagedNumbers[i] = null;
+        }
+        mStagedCount = 0;
+    }
+
+    private boolean isStaged(int id) {
+        for (int i = 0; i < mStagedCount; i++) {
+            if (mStagedIds[i] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void grow() {
+        int size = mStagedIds.length * 2;
+        int[] ids = new int[size];
+        int[] states = new int[size];
+        String[] numbers = new String[size];
+        boolean[] multiParty = new boolean[size];
+        boolean[] outgoing = new boolean[size];
+        System.arraycopy(mStagedIds, 0, ids, 0, mStagedCount);
+        System.arraycopy(mStagedStates, 0, states, 0, mStagedCount);
+        System.arraycopy(mStagedNumbers, 0, numbers, 0, mStagedCount);
+        System.arraycopy(mStagedMultiParty, 0, multiParty, 0, mStagedCount);
+        System.arraycopy(mStagedOutgoing, 0, outgoing, 0, mStagedCount);
+        mStagedIds = ids;
+        mStagedStates = states;
+        mStagedNumbers = numbers;
+        mStagedMultiParty = multiParty;
+        mStagedOutgoing = outgoing;
+    }
+
+    private void index(BluetoothHeadsetClientCall c) {
+        int s = c.getState();
+        if (s >= 0 && s < NUM_STATES) {
+            mByState.get(s).add(c);
+        }
+    }
+
+    private void unindex(BluetoothHeadsetClientCall c) {
+        int s = c.getState();
+        if (s < 0 || s >= NUM_STATES) {
+            return;
+        }
+        // by identity, so a call equal to another one is never unindexed in its place
+        ArrayList<BluetoothHeadsetClientCall> calls = mByState.get(s);
+        for (int i = 0; i < calls.size(); i++) {
+            if (calls.get(i) == c) {
+                calls.remove(i);
+                return;
+            }
+        }
+    }
+}
@@ -61,8 +61,6 @@ import com.android.bluetooth.btservice.ProfileService;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -112,8 +110,12 @@ final class HeadsetClientStateMachine extends StateMachine {
 
     private final HeadsetClientService mService;
 
-    private Hashtable<Integer, BluetoothHeadsetClientCall> mCalls;
-    private Hashtable<Integer, BluetoothHeadsetClientCall> mCallsUpdate;
+    private final HeadsetClientCallTable mCalls = new HeadsetClientCallTable();
+    // reused by queryCallsDone() so CLCC polling does not allocate
+    private final ArrayList<BluetoothHeadsetClientCall> mCallsChanged =
+            new ArrayList<BluetoothHeadsetClientCall>();
+    private final ArrayList<BluetoothHeadsetClientCall> mCallsRemoved =
+            new ArrayList<BluetoothHeadsetClientCall>();
     private boolean mQueryCallsSupported;
 
     private int mIndicatorNetworkState;
@@ -179,13 +181,10 @@ final class HeadsetClientStateMachine extends StateMachine {
         ProfileService.println(sb, "mVoiceRecognitionActive: " + mVoiceRecognitionActive);
         ProfileService.println(sb, "mInBandRingtone: " + mInBandRingtone);
         ProfileService.println(sb, "mCalls:");
-        for (BluetoothHeadsetClientCall call : mCalls.values()) {
-            ProfileService.println(sb, "  " + call);
-        }
-        ProfileService.println(sb, "mCallsUpdate:");
-        for (BluetoothHeadsetClientCall call : mCallsUpdate.values()) {
+        for (BluetoothHeadsetClientCall call : mCalls.copyCalls()) {
             ProfileService.println(sb, "  " + call);
         }
+        ProfileService.println(sb, "mCallsUpdating: " + mCalls.isUpdating());
     }
 
     private void clearPendingAction() {
@@ -211,14 +210,11 @@ final class HeadsetClientStateMachine extends StateMachine {
                state == BluetoothHeadsetClientCall.CALL_STATE_ALERTING;
 
         // new call always takes lowest possible id, starting with 1
-        Integer id = 1;
-        while (mCalls.containsKey(id)) {
-            id++;
-        }
+        int id = mCalls.nextFreeId();
 
         BluetoothHeadsetClientCall c = new BluetoothHeadsetClientCall(mCurrentDevice, id, state,
                 number, false, outgoing);
-        mCalls.put(id, c);
+        mCalls.add(c);
 
         sendCallChangedIntent(c);
     }
@@ -226,18 +222,11 @@ final class HeadsetClientStateMachine extends StateMachine {
     private void removeCalls(int... states) {
         Log.d(TAG, "removeFromCalls states:" + Arrays.toString(states));
 
-        Iterator<Hashtable.Entry<Integer, BluetoothHeadsetClientCall>> it;
-
-        it = mCalls.entrySet().iterator();
-        while (it.hasNext()) {
-            BluetoothHeadsetClientCall c = it.next().getValue();
-
-            for (int s : states) {
-                if (c.getState() == s) {
-                    it.remove();
-                    setCallState(c, BluetoothHeadsetClientCall.CALL_STATE_TERMINATED);
-                    break;
-                }
+        for (int s : states) {
+            BluetoothHeadsetClientCall c;
+            while ((c = mCalls.first(s)) != null) {
+                mCalls.remove(c.getId());
+                setCallState(c, BluetoothHeadsetClientCall.CALL_STATE_TERMINATED);
             }
         }
     }
@@ -245,35 +234,23 @@ final class HeadsetClientStateMachine extends StateMachine {
     private void changeCallsState(int old_state, int new_state) {
         Log.d(TAG, "changeStateFromCalls old:" + old_state + " new: " + new_state);
 
-        for (BluetoothHeadsetClientCall c : mCalls.values()) {
-            if (c.getState() == old_state) {
-                setCallState(c, new_state);
-            }
+        if (old_state == new_state) {
+            return;
+        }
+
+        BluetoothHeadsetClientCall c;
+        while ((c = mCalls.first(old_state)) != null) {
+            setCallState(c, new_state);
         }
     }
 
     private BluetoothHeadsetClientCall getCall(int... states) {
         Log.d(TAG, "getFromCallsWithStates states:" + Arrays.toString(states));
-        for (BluetoothHeadsetClientCall c : mCalls.values()) {
-            for (int s : states) {
-                if (c.getState() == s) {
-                    return c;
-                }
-            }
-        }
-
-        return null;
+        return mCalls.first(states);
     }
 
     private int callsInState(int state) {
-        int i = 0;
-        for (BluetoothHeadsetClientCall c : mCalls.values()) {
-            if (c.getState() == state) {
-                i++;
-            }
-        }
-
-        return i;
+        return mCalls.count(state);
     }
 
     private void updateCallsMultiParty() {
@@ -309,7 +286,7 @@ final class HeadsetClientStateMachine extends StateMachine {
                 mAudioManager.abandonAudioFocusForCall();
             }
         }
-        c.setState(state);
+        mCalls.setState(c, state);
         sendCallChangedIntent(c);
     }
 
@@ -813,66 +790,41 @@ final class HeadsetClientStateMachine extends StateMachine {
         clearPendingAction();
 
         // already started
-        if (mCallsUpdate != null) {
+        if (mCalls.isUpdating()) {
             return true;
         }
 
         if (queryCurrentCallsNative()) {
-            mCallsUpdate = new Hashtable<Integer, BluetoothHeadsetClientCall>();
+            mCalls.beginUpdate();
             addQueuedAction(QUERY_CURRENT_CALLS, 0);
             return true;
         }
 
         Log.i(TAG, "updateCallsStart queryCurrentCallsNative failed");
         mQueryCallsSupported = false;
-        mCallsUpdate = null;
+        mCalls.cancelUpdate();
         return false;
     }
 
     private void queryCallsDone() {
         Log.d(TAG, "queryCallsDone");
-        Iterator<Hashtable.Entry<Integer, BluetoothHeadsetClientCall>> it;
 
-        // check if any call was removed
-        it = mCalls.entrySet().iterator();
-        while (it.hasNext()) {
-            Hashtable.Entry<Integer, BluetoothHeadsetClientCall> entry = it.next();
-
-            if (mCallsUpdate.containsKey(entry.getKey())) {
-                continue;
-            }
-
-            Log.d(TAG, "updateCallsDone call removed id:" + entry.getValue().getId());
-            BluetoothHeadsetClientCall c = entry.getValue();
+        mCalls.finishUpdate(mCurrentDevice, mCallsChanged, mCallsRemoved);
 
+        for (int i = 0; i < mCallsRemoved.size(); i++) {
+            BluetoothHeadsetClientCall c = mCallsRemoved.get(i);
+            Log.d(TAG, "updateCallsDone call removed id:" + c.getId());
             setCallState(c, BluetoothHeadsetClientCall.CALL_STATE_TERMINATED);
         }
 
-        /* check if any calls changed or new call is present */
-        it = mCallsUpdate.entrySet().iterator();
-        while (it.hasNext()) {
-            Hashtable.Entry<Integer, BluetoothHeadsetClientCall> entry = it.next();
-
-            if (mCalls.containsKey(entry.getKey())) {
-                // avoid losing number if was not present in clcc
-                if (entry.getValue().getNumber().equals("")) {
-                    entry.getValue().setNumber(mCalls.get(entry.getKey()).getNumber());
-                }
-
-                if (mCalls.get(entry.getKey()).equals(entry.getValue())) {
-                    continue;
-                }
-
-                Log.d(TAG, "updateCallsDone call changed id:" + entry.getValue().getId());
-                sendCallChangedIntent(entry.getValue());
-            } else {
-                Log.d(TAG, "updateCallsDone new call id:" + entry.getValue().getId());
-                sendCallChangedIntent(entry.getValue());
-            }
+        for (int i = 0; i < mCallsChanged.size(); i++) {
+            BluetoothHeadsetClientCall c = mCallsChanged.get(i);
+            Log.d(TAG, "updateCallsDone call changed id:" + c.getId());
+            sendCallChangedIntent(c);
         }
 
-        mCalls = mCallsUpdate;
-        mCallsUpdate = null;
+        mCallsRemoved.clear();
+        mCallsChanged.clear();
 
         if (loopQueryCalls()) {
             Log.d(TAG, "queryCallsDone ambigious calls, starting call query loop");
@@ -884,13 +836,8 @@ final class HeadsetClientStateMachine extends StateMachine {
             boolean outgoing) {
         Log.d(TAG, "queryCallsUpdate: " + id);
 
-        // should not happen
-        if (mCallsUpdate == null) {
-            return;
-        }
-
-        mCallsUpdate.put(id, new BluetoothHeadsetClientCall(mCurrentDevice, id, state, number,
-                multiParty, outgoing));
+        // ignored unless a query is in progress, should not happen
+        mCalls.stageUpdate(id, state, number, multiParty, outgoing);
     }
 
     // helper function for determining if query calls should be looped
@@ -1259,8 +1206,7 @@ final class HeadsetClientStateMachine extends StateMachine {
         mQueuedActions = new LinkedList<Pair<Integer, Object>>();
         clearPendingAction();
 
-        mCalls = new Hashtable<Integer, BluetoothHeadsetClientCall>();
-        mCallsUpdate = null;
+        mCalls.clear();
         mQueryCallsSupported = true;
 
         initializeNative();
@@ -1329,8 +1275,7 @@ final class HeadsetClientStateMachine extends StateMachine {
             mVoiceRecognitionActive = HeadsetClientHalConstants.VR_STATE_STOPPED;
             mInBandRingtone = HeadsetClientHalConstants.IN_BAND_RING_NOT_PROVIDED;
 
-            mCalls = new Hashtable<Integer, BluetoothHeadsetClientCall>();
-            mCallsUpdate = null;
+            mCalls.clear();
             mQueryCallsSupported = true;
 
             mPeerFeatures = 0;
@@ -2836,7 +2781,7 @@ final class HeadsetClientStateMachine extends StateMachine {
             int val2, String arg);
 
     public List<BluetoothHeadsetClientCall> getCurrentCalls() {
-        return new ArrayList<BluetoothHeadsetClientCall>(mCalls.values());
+        return mCalls.copyCalls();
     }
 
     public Bundle getCurrentAgEvents() {
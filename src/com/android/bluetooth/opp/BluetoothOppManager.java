@@ -269,12 +269,11 @@ public class BluetoothOppManager {
             mMimeTypeOfSendingFiles = mimeType;
             mUrisOfSendingFiles = new ArrayList<Uri>();
             mIsHandoverInitiated = isHandover;
+            // Resolve names, sizes and streams on a bounded pool; each transfer
+            // only waits for the metadata of its own file
             for (Uri uri : uris) {
-                BluetoothOppSendFileInfo sendFileInfo =
-                    BluetoothOppSendFileInfo.generateFileInfo(mContext, uri, mimeType);
-                uri = BluetoothOppUtility.generateUri(uri, sendFileInfo);
-                mUrisOfSendingFiles.add(uri);
-                BluetoothOppUtility.putSendFileInfo(uri, sendFileInfo);
+                mUrisOfSendingFiles.add(
+                        BluetoothOppUtility.prefetchSendFileInfo(mContext, uri, mimeType));
             }
             storeApplicationData();
         }
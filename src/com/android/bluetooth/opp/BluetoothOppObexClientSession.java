@@ -492,6 +492,20 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         }
                     }
 
+                    /*
+                     * With Single Response Mode (OBEX over L2CAP) the remote doesn't answer
+                     * each packet, so stream several MTU-sized packets per write and don't
+                     * poll the response code, which would force out a short packet and wait.
+                     */
+                    boolean srmMode = mTransport1.isSrmSupported();
+                    if (srmMode && okToProceed) {
+                        outputBufferSize = BluetoothOppUtility.getTransferBufferSize(true,
+                                mTransport1.getMaxTransmitPacketSize(),
+                                putOperation.getMaxPacketSize());
+                        buffer = new byte[outputBufferSize];
+                        if (V) Log.v(TAG, "SRM send mode, buffer size " + outputBufferSize);
+                    }
+
                     long beginTime = System.currentTimeMillis();
                     while (!mInterrupted && okToProceed && (position != fileInfo.mLength)) {
                         {
@@ -501,16 +515,25 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                             if(readbytesleft < outputBufferSize) {
                                outputBufferSize = (int) readbytesleft;
                             }
-                            readLength = a.read(buffer, 0, outputBufferSize);
+                            if (srmMode) {
+                                readLength = readFully(a, buffer, outputBufferSize);
+                            } else {
+                                readLength = a.read(buffer, 0, outputBufferSize);
+                            }
                             outputStream.write(buffer, 0, readLength);
-                            if (V) Log.v(TAG, "waiting for response code");
-                            /* check remote abort */
-                            responseCode = putOperation.getResponseCode();
-                            if (V) Log.v(TAG, "Response code is " + responseCode);
-                            if (responseCode != ResponseCodes.OBEX_HTTP_CONTINUE
+                            if (!srmMode) {
+                                if (V) Log.v(TAG, "waiting for response code");
+                                /* check remote abort */
+                                responseCode = putOperation.getResponseCode();
+                                if (V) Log.v(TAG, "Response code is " + responseCode);
+                            }
+                            if (!srmMode && responseCode != ResponseCodes.OBEX_HTTP_CONTINUE
                                     && responseCode != ResponseCodes.OBEX_HTTP_OK) {
                                 /* abort happens */
                                 okToProceed = false;
+                            } else if (readLength <= 0) {
+                                Log.e(TAG, "Send file stream ended early at " + position);
+                                okToProceed = false;
                             } else {
                                 position += readLength;
                                 if (V) {
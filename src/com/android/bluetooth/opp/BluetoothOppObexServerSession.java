@@ -38,6 +38,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.lang.Thread;
 
@@ -112,6 +113,13 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
 
     private int position;
 
+    /* the object as offered by the sender, to match interrupted receives */
+    private String mOfferedName;
+
+    private long mOfferedLength;
+
+    private String mSender;
+
     public BluetoothOppObexServerSession(Context context, ObexTransport transport) {
         mContext = context;
         mTransport = transport;
@@ -353,6 +361,10 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
+        mOfferedName = name;
+        mOfferedLength = length;
+        mSender = destination;
+
         ContentValues values = new ContentValues();
 
         values.put(BluetoothShare.FILENAME_HINT, name);
@@ -532,6 +544,14 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
 
         InputStream is = null;
         boolean error = false;
+        /* a link loss leaves the partial file for a later resume */
+        boolean keepPartial = false;
+        long hash = BluetoothOppPartialReceive.ADLER32_INIT;
+        /* bytes from an interrupted receive that are on disk but not yet matched */
+        long resumeLength = fileInfo.mResumeOffset;
+        long skipped = 0;
+        RandomAccessFile partialFile = null;
+        byte[] onDisk = null;
         try {
             is = op.openInputStream();
         } catch (IOException e1) {
@@ -554,11 +574,17 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
         }
 
         if (!error) {
-            int outputBufferSize = op.getMaxPacketSize();
+            int outputBufferSize = BluetoothOppUtility.getTransferBufferSize(
+                    mTransport.isSrmSupported(), mTransport.getMaxReceivePacketSize(),
+                    op.getMaxPacketSize());
             byte[] b = new byte[outputBufferSize];
             int readLength = 0;
             long timestamp = 0;
             try {
+                if (resumeLength > 0) {
+                    partialFile = new RandomAccessFile(fileInfo.mFileName, "r");
+                    onDisk = new byte[outputBufferSize];
+                }
                 beginTime = System.currentTimeMillis();
                 while ((!mInterrupted) && (position != fileInfo.mLength)) {
 
@@ -570,7 +596,26 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                         break;
                     }
 
-                    bos.write(b, 0, readLength);
+                    hash = BluetoothOppPartialReceive.updateAdler32(hash, b, 0, readLength);
+                    int matched = 0;
+                    if (position < resumeLength) {
+                        int overlap = (int) Math.min(readLength, resumeLength - position);
+                        partialFile.seek(position);
+                        partialFile.readFully(onDisk, 0, overlap);
+                        while (matched < overlap && onDisk[matched] == b[matched]) {
+                            matched++;
+                        }
+                        if (matched < overlap) {
+                            /* the object differs from what we kept, drop the rest of it */
+                            if (D) Log.d(TAG, "Partial file differs at " + (position + matched));
+                            resumeLength = position + matched;
+                            fileInfo.mOutputStream.getChannel().truncate(resumeLength);
+                        }
+                        skipped += matched;
+                    }
+                    if (matched < readLength) {
+                        bos.write(b, matched, readLength - matched);
+                    }
                     position += readLength;
 
                     if (V) {
@@ -609,11 +654,20 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                 } else {
                     status = BluetoothShare.STATUS_OBEX_DATA_ERROR;
                 }
-                if (mFileInfo.mFileName != null) {
+                keepPartial = !mInterrupted && Math.max(position, resumeLength)
+                        >= BluetoothOppPartialReceive.MIN_RESUME_LENGTH;
+                if (!keepPartial && mFileInfo.mFileName != null) {
                     new File(mFileInfo.mFileName).delete();
                 }
                 error = true;
             } finally {
+                if (partialFile != null) {
+                    try {
+                        partialFile.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error when closing partial file");
+                    }
+                }
                 if (uiUpdateThread != null) {
                     if (V) Log.v(TAG, "Worker for Updation : Finally Destroying");
                     uiUpdateThread.interrupt ();
@@ -646,15 +700,47 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                 bos.close();
             } catch (IOException e) {
                 Log.e(TAG, "Error when closing stream after send");
+                if (keepPartial) {
+                    new File(fileInfo.mFileName).delete();
+                    keepPartial = false;
+                }
+            }
+        }
+        if (skipped > 0) {
+            if (D) Log.d(TAG, "Skipped writing " + skipped + " bytes kept from a previous receive");
+        }
+        long keptLength = position;
+        if (keepPartial && position < resumeLength) {
+            /* the kept prefix wasn't fully received again, don't lose its tail */
+            try {
+                hash = BluetoothOppPartialReceive.updateAdler32(fileInfo.mFileName, hash,
+                        position, resumeLength);
+                keptLength = resumeLength;
+            } catch (IOException e) {
+                Log.e(TAG, "Error when hashing partial file: " + e);
+                new File(fileInfo.mFileName).delete();
+                keepPartial = false;
             }
         }
+        if (keepPartial && !BluetoothOppPartialReceive.save(mContext, mSender, mOfferedName,
+                mOfferedLength, fileInfo.mFileName, keptLength, hash)) {
+            new File(fileInfo.mFileName).delete();
+        }
         return status;
     }
 
     private BluetoothOppReceiveFileInfo processShareInfo() {
         if (D) Log.d(TAG, "processShareInfo() " + mInfo.mId);
-        BluetoothOppReceiveFileInfo fileInfo = BluetoothOppReceiveFileInfo.generateFileInfo(
-                mContext, mInfo.mId);
+        BluetoothOppReceiveFileInfo fileInfo = null;
+        BluetoothOppPartialReceive partial = BluetoothOppPartialReceive.find(mContext, mSender,
+                mOfferedName, mOfferedLength);
+        if (partial != null) {
+            fileInfo = BluetoothOppReceiveFileInfo.resumeFileInfo(mContext, mInfo.mId,
+                    mOfferedLength, partial);
+        }
+        if (fileInfo == null) {
+            fileInfo = BluetoothOppReceiveFileInfo.generateFileInfo(mContext, mInfo.mId);
+        }
         if (V) {
             Log.v(TAG, "Generate BluetoothOppReceiveFileInfo:");
             Log.v(TAG, "filename  :" + fileInfo.mFileName);
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Properties;
+
+/**
+ * Keeps the partial file of an interrupted inbound OPP transfer together with
+ * a sidecar record (offered name, length, sender, bytes on disk and an
+ * Adler-32 of those bytes), so that when the same object is offered again the
+ * received prefix can be reused instead of being written to disk again.
+ *
+ * OPP has no way to ask the sender to start at an offset, so the sender still
+ * transmits the whole object; the bytes that match what is already on disk
+ * are just not rewritten.
+ *
+ * Records older than a week are swept, with their file if it is untouched,
+ * whenever an object is offered or a partial file is kept.
+ */
+public class BluetoothOppPartialReceive {
+    private static final String TAG = "BtOppPartialReceive";
+    private static final boolean D = Constants.DEBUG;
+    private static final boolean V = Log.isLoggable(Constants.TAG, Log.VERBOSE);
+
+    /** Partial files shorter than this are not worth keeping */
+    static final long MIN_RESUME_LENGTH = 1024 * 1024;
+
+    private static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String SIDECAR_DIR = "opp_partial";
+    private static final String SIDECAR_EXT = ".part";
+
+    private static final String KEY_NAME = "name";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_SENDER = "sender";
+    private static final String KEY_PATH = "path";
+    private static final String KEY_OFFSET = "offset";
+    private static final String KEY_HASH = "adler32";
+    private static final String KEY_TIME = "time";
+
+    private static final int ADLER_MOD = 65521;
+    /* Largest run of bytes before the Adler-32 sums must be reduced */
+    private static final int ADLER_NMAX = 5552;
+
+    /** Initial value of an Adler-32 checksum */
+    static final long ADLER32_INIT = 1;
+
+    /* Paths of all kept partial files, loaded from the records on first use */
+    private static HashSet<String> sKeptPaths;
+
+    /** Absolute path of the partial file */
+    public final String mPath;
+
+    /** Number of verified bytes at the start of the partial file */
+    public final long mOffset;
+
+    private BluetoothOppPartialReceive(String path, long offset) {
+        mPath = path;
+        mOffset = offset;
+    }
+
+    /**
+     * Continue an Adler-32 checksum over buf[off, off + len). Unlike
+     * java.util.zip.Adler32 the running value can be carried across calls and
+     * stored.
+     */
+    static long updateAdler32(long adler, byte[] buf, int off, int len) {
+        long a = adler & 0xffff;
+        long b = (adler >>> 16) & 0xffff;
+        while (len > 0) {
+            int n = Math.min(len, ADLER_NMAX);
+            len -= n;
+            while (n-- > 0) {
+                a += buf[off++] & 0xff;
+                b += a;
+            }
+            a %= ADLER_MOD;
+            b %= ADLER_MOD;
+        }
+        return (b << 16) | a;
+    }
+
+    /**
+     * Look up a kept partial file for an object offered again by the same
+     * sender. The partial file is re-hashed and truncated to its verified
+     * length; a record that doesn't verify is dropped with its file.
+     * @return the partial file, or null if there is nothing to resume
+     */
+    public static BluetoothOppPartialReceive find(Context context, String sender, String name,
+            long length) {
+        sweep(context);
+        if (sender == null || name == null || length < MIN_RESUME_LENGTH) {
+            return null;
+        }
+        File sidecar = sidecarFile(context, sender, name, length);
+        Properties record = load(sidecar);
+        if (record == null) {
+            return null;
+        }
+        String path = record.getProperty(KEY_PATH);
+        long offset = parseLong(record.getProperty(KEY_OFFSET));
+        long hash = parseLong(record.getProperty(KEY_HASH));
+        long time = parseLong(record.getProperty(KEY_TIME));
+
+        if (!sender.equals(record.getProperty(KEY_SENDER))
+                || !name.equals(record.getProperty(KEY_NAME))
+                || length != parseLong(record.getProperty(KEY_LENGTH))
+                || path == null || offset <= 0 || offset >= length
+                || System.currentTimeMillis() - time > MAX_AGE_MS) {
+            if (D) Log.d(TAG, "Dropping stale partial record " + sidecar.getName());
+            discard(context, sidecar, path, offset);
+            return null;
+        }
+
+        if (!new File(path).isFile()) {
+            forget(context, sidecar, path);
+            return null;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(path, "rw");
+            if (file.length() < offset
+                    || hashRange(file, ADLER32_INIT, 0, offset) != hash) {
+                /*
+                 * the file changed since, so it may not be ours anymore; keep it
+                 * and its record until the record expires
+                 */
+                Log.w(TAG, "Partial file " + path + " doesn't match its record");
+                return null;
+            }
+            file.setLength(offset);
+            /* the record is consumed; an interrupted resume writes a new one */
+            forget(context, sidecar, path);
+        } catch (IOException e) {
+            Log.e(TAG, "Error when checking partial file " + path + ": " + e);
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error when closing partial file " + path);
+                }
+            }
+        }
+        if (D) Log.d(TAG, "Resuming " + name + " from " + sender + " at " + offset + " of "
+                + length);
+        return new BluetoothOppPartialReceive(path, offset);
+    }
+
+    /**
+     * Record the partial file of an interrupted receive.
+     * @return true if the record was written and the file should be kept
+     */
+    public static boolean save(Context context, String sender, String name, long length,
+            String path, long offset, long hash) {
+        if (sender == null || name == null || path == null || offset < MIN_RESUME_LENGTH
+                || offset >= length) {
+            return false;
+        }
+        sweep(context);
+        File sidecar = sidecarFile(context, sender, name, length);
+        Properties previous = load(sidecar);
+        if (previous != null && !path.equals(previous.getProperty(KEY_PATH))) {
+            /* a record that didn't verify is replaced, release its file */
+            discard(context, sidecar, previous.getProperty(KEY_PATH),
+                    parseLong(previous.getProperty(KEY_OFFSET)));
+        }
+        File dir = sidecar.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Can't create " + dir.getPath());
+            return false;
+        }
+        Properties record = new Properties();
+        record.setProperty(KEY_NAME, name);
+        record.setProperty(KEY_LENGTH, Long.toString(length));
+        record.setProperty(KEY_SENDER, sender);
+        record.setProperty(KEY_PATH, path);
+        record.setProperty(KEY_OFFSET, Long.toString(offset));
+        record.setProperty(KEY_HASH, Long.toString(hash));
+        record.setProperty(KEY_TIME, Long.toString(System.currentTimeMillis()));
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(sidecar);
+            record.store(out, null);
+        } catch (IOException e) {
+            Log.e(TAG, "Error when writing partial record: " + e);
+            sidecar.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error when closing partial record");
+                }
+            }
+        }
+        synchronized (BluetoothOppPartialReceive.class) {
+            keptPaths(context).add(path);
+        }
+        if (D) Log.d(TAG, "Kept " + offset + " of " + length + " bytes of " + name + " from "
+                + sender);
+        return true;
+    }
+
+    /** Check if a file is a kept partial file, which must not be deleted. */
+    public static synchronized boolean isKept(Context context, String path) {
+        return path != null && keptPaths(context).contains(path);
+    }
+
+    /**
+     * Extend an Adler-32 checksum over bytes [from, to) of a file, e.g. to
+     * cover a kept prefix that was not received again before a new
+     * interruption.
+     */
+    static long updateAdler32(String path, long adler, long from, long to) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            return hashRange(file, adler, from, to);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static long hashRange(RandomAccessFile file, long hash, long from, long to)
+            throws IOException {
+        byte[] buffer = new byte[0x10000];
+        long done = from;
+        file.seek(from);
+        while (done < to) {
+            int n = (int) Math.min(buffer.length, to - done);
+            file.readFully(buffer, 0, n);
+            hash = updateAdler32(hash, buffer, 0, n);
+            done += n;
+        }
+        return hash;
+    }
+
+    /* Drop expired records, going by the age of the record file */
+    private static void sweep(Context context) {
+        File[] sidecars = new File(context.getFilesDir(), SIDECAR_DIR).listFiles();
+        if (sidecars == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File sidecar : sidecars) {
+            if (now - sidecar.lastModified() <= MAX_AGE_MS) {
+                continue;
+            }
+            Properties record = load(sidecar);
+            String path = record != null ? record.getProperty(KEY_PATH) : null;
+            long offset = record != null ? parseLong(record.getProperty(KEY_OFFSET)) : -1;
+            if (D) Log.d(TAG, "Sweeping expired partial record " + sidecar.getName());
+            discard(context, sidecar, path, offset);
+        }
+    }
+
+    /* Must hold the class lock */
+    private static HashSet<String> keptPaths(Context context) {
+        if (sKeptPaths == null) {
+            sKeptPaths = new HashSet<String>();
+            File[] sidecars = new File(context.getFilesDir(), SIDECAR_DIR).listFiles();
+            if (sidecars != null) {
+                for (File sidecar : sidecars) {
+                    Properties record = load(sidecar);
+                    String path = record != null ? record.getProperty(KEY_PATH) : null;
+                    if (path != null) {
+                        sKeptPaths.add(path);
+                    }
+                }
+            }
+        }
+        return sKeptPaths;
+    }
+
+    /* Delete a record; its file is no longer protected */
+    private static void forget(Context context, File sidecar, String path) {
+        sidecar.delete();
+        if (path != null) {
+            synchronized (BluetoothOppPartialReceive.class) {
+                keptPaths(context).remove(path);
+            }
+        }
+    }
+
+    private static File sidecarFile(Context context, String sender, String name, long length) {
+        String key = sender.replace(":", "") + "_"
+                + Integer.toHexString(name.hashCode()) + "_" + length;
+        return new File(new File(context.getFilesDir(), SIDECAR_DIR), key + SIDECAR_EXT);
+    }
+
+    private static Properties load(File sidecar) {
+        if (!sidecar.isFile()) {
+            return null;
+        }
+        Properties record = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(sidecar);
+            record.load(in);
+            return record;
+        } catch (IOException e) {
+            Log.e(TAG, "Error when reading partial record " + sidecar.getName() + ": " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error when closing partial record");
+                }
+            }
+        }
+    }
+
+    /* Drop a record, and its file if it is still exactly as we left it */
+    private static void discard(Context context, File sidecar, String path, long offset) {
+        forget(context, sidecar, path);
+        if (path != null && new File(path).length() == offset) {
+            if (V) Log.v(TAG, "Delete partial file " + path);
+            new File(path).delete();
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -69,6 +69,9 @@ public class BluetoothOppReceiveFileInfo {
 
     public String mData;
 
+    /** bytes already on disk from an interrupted receive of the same object */
+    public long mResumeOffset;
+
     public BluetoothOppReceiveFileInfo(String data, long length, int status) {
         mData = data;
         mStatus = status;
@@ -197,6 +200,33 @@ public class BluetoothOppReceiveFileInfo {
 
     }
 
+    /**
+     * Reuse the partial file of an interrupted receive. The file has already
+     * been truncated to its verified length; new data is appended after it.
+     */
+    public static BluetoothOppReceiveFileInfo resumeFileInfo(Context context, int id,
+            long length, BluetoothOppPartialReceive partial) {
+        if (!safeCanonicalPath(partial.mPath)) {
+            return null;
+        }
+        try {
+            BluetoothOppReceiveFileInfo fileInfo = new BluetoothOppReceiveFileInfo(
+                    partial.mPath, length, new FileOutputStream(partial.mPath, true), 0);
+            fileInfo.mResumeOffset = partial.mOffset;
+
+            String displayName = new File(partial.mPath).getName();
+            if (V) Log.v(Constants.TAG, "Resume display name " + displayName);
+            ContentValues updateValues = new ContentValues();
+            updateValues.put(BluetoothShare.FILENAME_HINT, displayName);
+            context.getContentResolver().update(
+                    Uri.parse(BluetoothShare.CONTENT_URI + "/" + id), updateValues, null, null);
+            return fileInfo;
+        } catch (IOException e) {
+            if (D) Log.e(Constants.TAG, "Error when opening partial file " + partial.mPath);
+            return null;
+        }
+    }
+
     private static boolean safeCanonicalPath(String uniqueFileName) {
         try {
             File receiveFile = new File(uniqueFileName);
@@ -63,6 +63,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import com.android.bluetooth.R;
 import com.android.bluetooth.sdp.SdpManager;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
@@ -108,7 +109,8 @@ public class BluetoothOppService extends Service {
 
     private ArrayList<BluetoothOppBatch> mBatchs;
 
-    private BluetoothOppTransfer mTransfer;
+    /* Runs outbound batches, concurrently across different remote devices */
+    private BluetoothOppTransferScheduler mOutboundScheduler;
 
     private BluetoothOppTransfer mServerTransfer;
 
@@ -162,6 +164,8 @@ public class BluetoothOppService extends Service {
         mL2cSocketListener = new BluetoothOppL2capListener(mAdapter);
         mShares = Lists.newArrayList();
         mBatchs = Lists.newArrayList();
+        mOutboundScheduler = new BluetoothOppTransferScheduler(this,
+                getResources().getInteger(R.integer.opp_max_concurrent_outbound_transfers));
         mObserver = new BluetoothShareContentObserver();
         getContentResolver().registerContentObserver(BluetoothShare.CONTENT_URI, true, mObserver);
         mBatchId = 1;
@@ -251,11 +255,8 @@ public class BluetoothOppService extends Service {
                        mServerTransfer.onBatchCanceled();
                        mServerTransfer =null;
                     }
-                    //Stop Active OUTBOUND Transfer
-                    if(mTransfer != null){
-                       mTransfer.onBatchCanceled();
-                       mTransfer =null;
-                    }
+                    //Stop Active OUTBOUND Transfers
+                    mOutboundScheduler.cancelRunning();
                     synchronized (BluetoothOppService.this) {
                         if (mUpdateThread == null) {
                             stopSelf();
@@ -388,6 +389,9 @@ public class BluetoothOppService extends Service {
         if(mBatchs != null) {
             mBatchs.clear();
         }
+        if (mOutboundScheduler != null) {
+            mOutboundScheduler.clear();
+        }
         if(mShares != null) {
             mShares.clear();
         }
@@ -696,7 +700,7 @@ public class BluetoothOppService extends Service {
                 if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
                     if (V) Log.v(TAG, "Service create new Batch " + newBatch.mId
                                 + " for OUTBOUND info " + info.mId);
-                    mTransfer = new BluetoothOppTransfer(this, mPowerManager, newBatch);
+                    mOutboundScheduler.enqueue(newBatch);
                 } else if (info.mDirection == BluetoothShare.DIRECTION_INBOUND) {
                     if (V) Log.v(TAG, "Service create new Batch " + newBatch.mId
                                 + " for INBOUND info " + info.mId);
@@ -704,10 +708,10 @@ public class BluetoothOppService extends Service {
                             mServerSession);
                 }
 
-                if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND && mTransfer != null) {
+                if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
                     if (V) Log.v(TAG, "Service start transfer new Batch " + newBatch.mId
                                 + " for info " + info.mId);
-                    mTransfer.start();
+                    mOutboundScheduler.schedule(mPowerManager);
                 } else if (info.mDirection == BluetoothShare.DIRECTION_INBOUND
                         && mServerTransfer != null) {
                     if (V) Log.v(TAG, "Service start server transfer new Batch " + newBatch.mId
@@ -729,6 +733,11 @@ public class BluetoothOppService extends Service {
                     mBatchs.add(newBatch);
                     if (V) Log.v(TAG, "Service add new Batch " + newBatch.mId + " for info " +
                             info.mId);
+                    if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
+                        // outbound batches to other devices may run alongside this one
+                        mOutboundScheduler.enqueue(newBatch);
+                        scheduleOutboundBatches();
+                    }
                     if (Constants.USE_TCP_DEBUG && !Constants.USE_TCP_SIMPLE_SERVER) {
                         // only allow  concurrent serverTransfer in debug mode
                         if (info.mDirection == BluetoothShare.DIRECTION_INBOUND) {
@@ -810,15 +819,7 @@ public class BluetoothOppService extends Service {
                     || batch.mStatus == Constants.BATCH_STATUS_FAILED) {
                 if (V) Log.v(TAG, "Batch " + batch.mId + " is finished");
                 if (batch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                    if (mTransfer == null) {
-                        Log.e(TAG, "Unexpected error! mTransfer is null");
-                    } else if (batch.mId == mTransfer.getBatchId()) {
-                        mTransfer.stop();
-                    } else {
-                        Log.e(TAG, "Unexpected error! batch id " + batch.mId
-                                + " doesn't match mTransfer id " + mTransfer.getBatchId());
-                    }
-                    mTransfer = null;
+                    mOutboundScheduler.onBatchFinished(batch);
                 } else {
                     if (mServerTransfer == null) {
                         Log.e(TAG, "Unexpected error! mServerTransfer is null");
@@ -903,37 +904,54 @@ public class BluetoothOppService extends Service {
     private void removeBatch(BluetoothOppBatch batch) {
         if (V) Log.v(TAG, "Remove batch " + batch.mId);
         mBatchs.remove(batch);
-        BluetoothOppBatch nextBatch;
-        if (mBatchs.size() > 0) {
-            for (int i = 0; i < mBatchs.size(); i++) {
-                // we have a running batch
-                nextBatch = mBatchs.get(i);
-                if (nextBatch.mStatus == Constants.BATCH_STATUS_RUNNING) {
-                    return;
-                } else {
-                    // just finish a transfer, start pending outbound transfer
-                    if (nextBatch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                        if (V) Log.v(TAG, "Start pending outbound batch " + nextBatch.mId);
-                        mTransfer = new BluetoothOppTransfer(this, mPowerManager, nextBatch);
-                        mTransfer.start();
-                        return;
-                    } else if (nextBatch.mDirection == BluetoothShare.DIRECTION_INBOUND
-                            && mServerSession != null) {
-                        // have to support pending inbound transfer
-                        // if an outbound transfer and incoming socket happens together
-                        if (V) Log.v(TAG, "Start pending inbound batch " + nextBatch.mId);
-                        mServerTransfer = new BluetoothOppTransfer(this, mPowerManager, nextBatch,
-                                                                   mServerSession);
-                        mServerTransfer.start();
-                        if (nextBatch.getPendingShare().mConfirm ==
-                                BluetoothShare.USER_CONFIRMATION_CONFIRMED) {
-                            mServerTransfer.confirmStatusChanged();
-                        }
-                        return;
-                    }
-                }
+        if (batch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
+            mOutboundScheduler.remove(batch);
+        }
+        if (mServerTransfer != null) {
+            // an inbound transfer holds the link, wait for it to finish
+            return;
+        }
+        for (int i = 0; i < mBatchs.size(); i++) {
+            BluetoothOppBatch nextBatch = mBatchs.get(i);
+            if (nextBatch.mStatus == Constants.BATCH_STATUS_RUNNING
+                    || nextBatch.mDirection != BluetoothShare.DIRECTION_INBOUND) {
+                continue;
+            }
+            if (mServerSession == null || mOutboundScheduler.hasRunningTransfers()) {
+                // keep the pending inbound batch ahead of later outbound ones
+                return;
+            }
+            // have to support pending inbound transfer
+            // if an outbound transfer and incoming socket happens together
+            if (V) Log.v(TAG, "Start pending inbound batch " + nextBatch.mId);
+            mServerTransfer = new BluetoothOppTransfer(this, mPowerManager, nextBatch,
+                                                       mServerSession);
+            mServerTransfer.start();
+            if (nextBatch.getPendingShare().mConfirm ==
+                    BluetoothShare.USER_CONFIRMATION_CONFIRMED) {
+                mServerTransfer.confirmStatusChanged();
+            }
+            return;
+        }
+        scheduleOutboundBatches();
+    }
+
+    /**
+     * Start queued outbound batches on idle devices, unless an inbound batch
+     * is running or waiting for its turn.
+     */
+    private void scheduleOutboundBatches() {
+        if (mServerTransfer != null) {
+            return;
+        }
+        for (int i = 0; i < mBatchs.size(); i++) {
+            BluetoothOppBatch batch = mBatchs.get(i);
+            if (batch.mDirection == BluetoothShare.DIRECTION_INBOUND
+                    && batch.mStatus != Constants.BATCH_STATUS_RUNNING) {
+                return;
             }
         }
+        mOutboundScheduler.schedule(mPowerManager);
     }
 
     private boolean needAction(int arrayPos) {
@@ -311,7 +311,8 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
                 failReason = mCurrentShare.mStatus;
             }
             if (mCurrentShare.mDirection == BluetoothShare.DIRECTION_INBOUND
-                    && mCurrentShare.mFilename != null) {
+                    && mCurrentShare.mFilename != null
+                    && !BluetoothOppPartialReceive.isKept(mContext, mCurrentShare.mFilename)) {
                 new File(mCurrentShare.mFilename).delete();
             }
         }
@@ -339,7 +340,8 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
                         updateValues.put(BluetoothShare.MIMETYPE, fileInfo.mMimetype);
                     }
                 } else {
-                    if (info.mStatus < 200 && info.mFilename != null) {
+                    if (info.mStatus < 200 && info.mFilename != null
+                            && !BluetoothOppPartialReceive.isKept(mContext, info.mFilename)) {
                         new File(info.mFilename).delete();
                     }
                 }
@@ -571,7 +573,7 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
                 /* SDP failed, start rfcomm connect directly */
                 mConnectThread = new SocketConnectThread(mBatch.mDestination, false, false);
                 /* update bd address as sdp could not be started */
-                OolConnManager.setSdpInitiatedAddress(null);
+                OolConnManager.clearSdpInitiatedAddress(mBatch.mDestination);
             } else {
                 /* SDP sucessfully started, start l2cap connect after sdp completes */
                 mConnectThread = new SocketConnectThread(mBatch.mDestination, false, true);
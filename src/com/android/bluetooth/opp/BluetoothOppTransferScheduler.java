@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Schedules outbound OPP batches. Batches to the same remote device are kept
+ * in a per-device FIFO and run one after another, while batches to different
+ * devices may run concurrently up to a configurable limit. Devices are served
+ * round-robin so one device with a long queue can't starve the others.
+ */
+public class BluetoothOppTransferScheduler {
+    private static final String TAG = "BtOppTransferScheduler";
+    private static final boolean V = Log.isLoggable(Constants.TAG, Log.VERBOSE);
+
+    private final Context mContext;
+
+    private final int mMaxConcurrent;
+
+    /* Pending batches per remote address, in round-robin service order */
+    private final LinkedHashMap<String, ArrayDeque<BluetoothOppBatch>> mPendingQueues =
+            new LinkedHashMap<String, ArrayDeque<BluetoothOppBatch>>();
+
+    /* Running transfer per remote address; at most one per device */
+    private final HashMap<String, BluetoothOppTransfer> mRunning =
+            new HashMap<String, BluetoothOppTransfer>();
+
+    public BluetoothOppTransferScheduler(Context context, int maxConcurrent) {
+        mContext = context;
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    /**
+     * Queue an outbound batch behind any other batch for the same device.
+     */
+    public synchronized void enqueue(BluetoothOppBatch batch) {
+        String address = batch.mDestination.getAddress();
+        ArrayDeque<BluetoothOppBatch> queue = mPendingQueues.get(address);
+        if (queue == null) {
+            queue = new ArrayDeque<BluetoothOppBatch>();
+            mPendingQueues.put(address, queue);
+        }
+        queue.add(batch);
+        if (V) Log.v(TAG, "Queued batch " + batch.mId + " for " + address + ", "
+                + queue.size() + " pending for device");
+    }
+
+    /**
+     * Start pending batches on idle devices until the concurrency limit is
+     * reached.
+     * @return the number of transfers started
+     */
+    public synchronized int schedule(PowerManager powerManager) {
+        int started = 0;
+        while (mRunning.size() < mMaxConcurrent) {
+            String address = nextEligibleDevice();
+            if (address == null) {
+                break;
+            }
+            /* move the device to the tail so other devices get the next slot */
+            ArrayDeque<BluetoothOppBatch> queue = mPendingQueues.remove(address);
+            BluetoothOppBatch batch = queue.poll();
+            if (!queue.isEmpty()) {
+                mPendingQueues.put(address, queue);
+            }
+
+            if (V) Log.v(TAG, "Start pending outbound batch " + batch.mId + " to " + address);
+            BluetoothOppTransfer transfer =
+                    new BluetoothOppTransfer(mContext, powerManager, batch);
+            mRunning.put(address, transfer);
+            transfer.start();
+            started++;
+        }
+        return started;
+    }
+
+    private String nextEligibleDevice() {
+        for (Map.Entry<String, ArrayDeque<BluetoothOppBatch>> entry : mPendingQueues.entrySet()) {
+            if (!mRunning.containsKey(entry.getKey()) && !entry.getValue().isEmpty()) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stop the transfer of a batch that reached a final state and release
+     * its device slot.
+     */
+    public synchronized void onBatchFinished(BluetoothOppBatch batch) {
+        String address = batch.mDestination.getAddress();
+        BluetoothOppTransfer transfer = mRunning.get(address);
+        if (transfer == null) {
+            Log.e(TAG, "Unexpected error! no transfer running for batch " + batch.mId);
+        } else if (transfer.getBatchId() == batch.mId) {
+            transfer.stop();
+            mRunning.remove(address);
+        } else {
+            Log.e(TAG, "Unexpected error! batch id " + batch.mId
+                    + " doesn't match running transfer id " + transfer.getBatchId());
+        }
+    }
+
+    /**
+     * Forget a batch, whether it is still queued or its transfer was
+     * already canceled through the batch listener.
+     */
+    public synchronized void remove(BluetoothOppBatch batch) {
+        String address = batch.mDestination.getAddress();
+        BluetoothOppTransfer transfer = mRunning.get(address);
+        if (transfer != null && transfer.getBatchId() == batch.mId) {
+            mRunning.remove(address);
+        }
+        ArrayDeque<BluetoothOppBatch> queue = mPendingQueues.get(address);
+        if (queue != null) {
+            queue.remove(batch);
+            if (queue.isEmpty()) {
+                mPendingQueues.remove(address);
+            }
+        }
+    }
+
+    /** Cancel every running outbound transfer; queued batches stay queued. */
+    public synchronized void cancelRunning() {
+        Iterator<BluetoothOppTransfer> it = mRunning.values().iterator();
+        while (it.hasNext()) {
+            it.next().onBatchCanceled();
+            it.remove();
+        }
+    }
+
+    public synchronized boolean hasRunningTransfers() {
+        return !mRunning.isEmpty();
+    }
+
+    public synchronized void clear() {
+        mPendingQueues.clear();
+        mRunning.clear();
+    }
+}
@@ -47,13 +47,23 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
+import android.os.Process;
 import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.support.v4.content.FileProvider;
 /**
@@ -67,6 +77,20 @@ public class BluetoothOppUtility {
     private static final ConcurrentHashMap<Uri, BluetoothOppSendFileInfo> sSendFileMap
             = new ConcurrentHashMap<Uri, BluetoothOppSendFileInfo>();
 
+    /* Send file infos still being resolved, keyed like sSendFileMap */
+    private static final ConcurrentHashMap<Uri, Future<BluetoothOppSendFileInfo>>
+            sPendingSendFileMap = new ConcurrentHashMap<Uri, Future<BluetoothOppSendFileInfo>>();
+
+    private static final AtomicInteger sSendFileInfoSequence = new AtomicInteger();
+
+    private static final int SEND_FILE_INFO_THREADS = 4;
+
+    private static final long SEND_FILE_INFO_KEEP_ALIVE_SEC = 30;
+
+    private static ThreadPoolExecutor sSendFileInfoExecutor;
+
+    private static final int SRM_MIN_TRANSFER_BUFFER_SIZE = 0x10000;
+
     public static BluetoothOppTransferInfo queryRecord(Context context, Uri uri) {
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
         BluetoothOppTransferInfo info = new BluetoothOppTransferInfo();
@@ -366,15 +390,92 @@ public class BluetoothOppUtility {
         sSendFileMap.put(uri, sendFileInfo);
     }
 
+    /**
+     * Resolve the send file info of a shared uri in the background. The
+     * returned uri is the key for getSendFileInfo(), which waits for this
+     * uri only, so the first file of a large share can start while the
+     * metadata of the later ones is still being resolved.
+     */
+    static Uri prefetchSendFileInfo(final Context context, Uri uri, final String mimeType) {
+        final Uri originalUri = uri;
+        final Uri key = Uri.parse(uri + "@"
+                + Integer.toHexString(sSendFileInfoSequence.incrementAndGet()));
+        FutureTask<BluetoothOppSendFileInfo> task = new FutureTask<BluetoothOppSendFileInfo>(
+                new Callable<BluetoothOppSendFileInfo>() {
+            @Override
+            public BluetoothOppSendFileInfo call() {
+                BluetoothOppSendFileInfo info =
+                        BluetoothOppSendFileInfo.generateFileInfo(context, originalUri, mimeType);
+                synchronized (sPendingSendFileMap) {
+                    if (sPendingSendFileMap.remove(key) != null) {
+                        sSendFileMap.put(key, info);
+                        return info;
+                    }
+                }
+                /* closed while resolving */
+                if (info.mInputStream != null) {
+                    try {
+                        info.mInputStream.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                return info;
+            }
+        });
+        sPendingSendFileMap.put(key, task);
+        getSendFileInfoExecutor().execute(task);
+        if (V) Log.v(TAG, "prefetchSendFileInfo: " + key);
+        return key;
+    }
+
+    private static synchronized ThreadPoolExecutor getSendFileInfoExecutor() {
+        if (sSendFileInfoExecutor == null) {
+            sSendFileInfoExecutor = new ThreadPoolExecutor(SEND_FILE_INFO_THREADS,
+                    SEND_FILE_INFO_THREADS, SEND_FILE_INFO_KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread("BtOpp SendFileInfo") {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+            sSendFileInfoExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sSendFileInfoExecutor;
+    }
+
     static BluetoothOppSendFileInfo getSendFileInfo(Uri uri) {
         if (D) Log.d(TAG, "getSendFileInfo: uri=" + uri);
         BluetoothOppSendFileInfo info = sSendFileMap.get(uri);
+        if (info == null) {
+            Future<BluetoothOppSendFileInfo> pending = sPendingSendFileMap.get(uri);
+            if (pending != null) {
+                try {
+                    info = pending.get();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "getSendFileInfo: interrupted waiting for " + uri);
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "getSendFileInfo: " + e);
+                }
+                info = sSendFileMap.get(uri);
+            }
+        }
         return (info != null) ? info : BluetoothOppSendFileInfo.SEND_FILE_INFO_ERROR;
     }
 
     static void closeSendFileInfo(Uri uri) {
         if (D) Log.d(TAG, "closeSendFileInfo: uri=" + uri);
-        BluetoothOppSendFileInfo info = sSendFileMap.remove(uri);
+        BluetoothOppSendFileInfo info;
+        synchronized (sPendingSendFileMap) {
+            /* a pending prefetch closes its own stream once it sees it was dropped */
+            sPendingSendFileMap.remove(uri);
+            info = sSendFileMap.remove(uri);
+        }
         if (info != null && info.mInputStream != null) {
             try {
                 info.mInputStream.close();
@@ -383,6 +484,23 @@ public class BluetoothOppUtility {
         }
     }
 
+    /**
+     * Size of the file buffer for one read/write round of an OPP transfer.
+     * Without SRM every OBEX packet waits for a response, so one packet body is
+     * read at a time. With SRM the buffer spans the transport MTU (at least
+     * SRM_MIN_TRANSFER_BUFFER_SIZE) rounded up to whole OBEX packet bodies, so
+     * writes stay aligned with the packets the OBEX layer sends.
+     */
+    static int getTransferBufferSize(boolean srmSupported, int transportMtu,
+            int obexPacketSize) {
+        if (!srmSupported || obexPacketSize <= 0) {
+            return obexPacketSize;
+        }
+        int target = Math.max(Math.max(transportMtu, obexPacketSize),
+                SRM_MIN_TRANSFER_BUFFER_SIZE);
+        return ((target + obexPacketSize - 1) / obexPacketSize) * obexPacketSize;
+    }
+
     // Custom class to remove special characters from Intent.toString()
     static class CustomIntent extends Intent {
 
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.util.Log;
+
+import com.android.vcard.VCardComposer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Composes and filters the vCards of a phonebook pull on worker threads
+ * while the OBEX thread sends the ones already done.
+ *
+ * The contact ids are split into chunks that each get their own composer. At
+ * most a few chunks are in flight ahead of the OBEX thread, which takes the
+ * results back in contact order through {@link #next()}.
+ */
+class BluetoothPbapComposePipeline {
+    private static final String TAG = "BluetoothPbapComposePipeline";
+
+    private static final boolean V = Log.isLoggable(BluetoothPbapService.LOG_TAG, Log.VERBOSE);
+
+    private static final int CHUNK_SIZE = 32;
+
+    /* Leave a core to the OBEX thread and the rest of the stack */
+    private static final int THREADS =
+            Math.min(3, Runtime.getRuntime().availableProcessors() - 1);
+
+    private static final int MAX_PENDING_CHUNKS = THREADS * 2;
+
+    private static final long KEEP_ALIVE_SEC = 30;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private final BluetoothPbapVcardManager mManager;
+
+    private final long[] mContactIds;
+
+    private final int mVcardType;
+
+    private final boolean mVcardType21;
+
+    private final byte[] mFilter;
+
+    private final ArrayDeque<Future<ArrayList<String>>> mPending =
+            new ArrayDeque<Future<ArrayList<String>>>();
+
+    private int mNextChunk;
+
+    private ArrayList<String> mCurrent;
+
+    private int mCurrentIndex;
+
+    private volatile boolean mCancelled;
+
+    /** Whether composing count contacts is worth splitting up on this device */
+    static boolean isWorthwhile(int count) {
+        return THREADS > 0 && count >= 2 * CHUNK_SIZE;
+    }
+
+    /**
+     * @param filter the vCard filter to apply, or null for none
+     */
+    BluetoothPbapComposePipeline(BluetoothPbapVcardManager manager, long[] contactIds,
+            int vcardType, boolean vcardType21, byte[] filter) {
+        mManager = manager;
+        mContactIds = contactIds;
+        mVcardType = vcardType;
+        mVcardType21 = vcardType21;
+        mFilter = filter;
+    }
+
+    void start() {
+        if (V) Log.v(TAG, "Composing " + mContactIds.length + " vCards on " + THREADS
+                + " threads");
+        submitChunks();
+    }
+
+    /**
+     * Return the next filtered vCard in contact order, or null once all were
+     * returned or if composing failed or was aborted.
+     */
+    String next() {
+        while (mCurrent == null || mCurrentIndex == mCurrent.size()) {
+            Future<ArrayList<String>> chunk = mPending.poll();
+            if (chunk == null) return null;
+            try {
+                mCurrent = chunk.get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Failed to compose vCards: " + e.getCause());
+                return null;
+            } catch (CancellationException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            mCurrentIndex = 0;
+            submitChunks();
+        }
+        // Drop the reference as soon as the vCard is handed out
+        return mCurrent.set(mCurrentIndex++, null);
+    }
+
+    /** Stop composing; chunks already running finish their current entry */
+    void cancel() {
+        mCancelled = true;
+        for (Future<ArrayList<String>> chunk : mPending) {
+            chunk.cancel(false);
+        }
+        mPending.clear();
+    }
+
+    private void submitChunks() {
+        while (!mCancelled && mPending.size() < MAX_PENDING_CHUNKS
+                && mNextChunk < mContactIds.length) {
+            final int start = mNextChunk;
+            final int end = Math.min(start + CHUNK_SIZE, mContactIds.length);
+            mNextChunk = end;
+            mPending.add(getExecutor().submit(new Callable<ArrayList<String>>() {
+                @Override
+                public ArrayList<String> call() throws Exception {
+                    return composeChunk(start, end);
+                }
+            }));
+        }
+    }
+
+    private ArrayList<String> composeChunk(int start, int end) throws Exception {
+        MatrixCursor contactIdCursor = new MatrixCursor(new String[] {
+            Phone.CONTACT_ID
+        }, end - start);
+        for (int i = start; i < end; i++) {
+            contactIdCursor.addRow(new Long[] {mContactIds[i]});
+        }
+        BluetoothPbapVcardManager.VCardFilter vcardfilter =
+                new BluetoothPbapVcardManager.VCardFilter(mFilter);
+        ArrayList<String> vcards = new ArrayList<String>(end - start);
+        VCardComposer composer = mManager.createPhonebookComposer(mVcardType);
+        try {
+            if (!composer.initWithCallback(contactIdCursor,
+                    new BluetoothPbapVcardManager.EnterpriseRawContactEntitlesInfoCallback())) {
+                throw new IllegalStateException("Composer init failed: "
+                        + composer.getErrorReason());
+            }
+            while (!composer.isAfterLast()) {
+                // A short chunk must never be mistaken for the next contacts
+                if (mCancelled || BluetoothPbapObexServer.sIsAborted) {
+                    throw new CancellationException();
+                }
+                String vcard = composer.createOneEntry();
+                if (vcard == null) {
+                    throw new IllegalStateException("Failed to read a contact. Error reason: "
+                            + composer.getErrorReason());
+                }
+                vcards.add(vcardfilter.apply(vcard, mVcardType21, true));
+            }
+        } finally {
+            composer.terminate();
+        }
+        return vcards;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SEC,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "BluetoothPbapCompose");
+                }
+            });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+}
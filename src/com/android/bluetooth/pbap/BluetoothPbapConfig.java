@@ -26,6 +26,7 @@ import android.util.Log;
 public class BluetoothPbapConfig {
     private static boolean sUseProfileForOwnerVcard=true;
     private static boolean sIncludePhotosInVcard = false;
+    private static long sVcardCacheSize = 0;
     public static void init(Context ctx) {
         Resources r = ctx.getResources();
         if (r != null) {
@@ -39,6 +40,11 @@ public class BluetoothPbapConfig {
             } catch(Exception e) {
                 Log.e("BluetoothPbapConfig","",e);
             }
+            try {
+                sVcardCacheSize = r.getInteger(R.integer.pbap_vcard_cache_size_kb) * 1024L;
+            } catch(Exception e) {
+                Log.e("BluetoothPbapConfig","",e);
+            }
         }
     }
 
@@ -56,4 +62,11 @@ public class BluetoothPbapConfig {
     public static boolean includePhotosInVcard() {
         return sIncludePhotosInVcard;
     }
+
+    /**
+     * Disk budget in bytes for composed vCards kept between pulls, 0 if disabled
+     */
+    public static long getVcardCacheSize() {
+        return sVcardCacheSize;
+    }
 }
@@ -179,7 +179,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
     public static int ORDER_BY_ALPHABETICAL = 1;
 
-    public static boolean sIsAborted = false;
+    public static volatile boolean sIsAborted = false;
 
     private long mDatabaseIdentifierLow = INVALID_VALUE_PARAMETER;
     private long mDatabaseIdentifierHigh = INVALID_VALUE_PARAMETER;
@@ -445,7 +445,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
                                                         FolderVersionCounterbit);
                 appParamValue.needTag = ContentType.INCOMING_CALL_HISTORY;
                 appParamValue.callHistoryVersionCounter =
-                    mVcardManager.getCallHistoryPrimaryFolderVersion(
+                    mService.getVersionJournal().getCallHistoryVersion(
                                               ContentType.INCOMING_CALL_HISTORY);
                 if (D) Log.v(TAG, "download incoming calls request");
             } else if (isNameMatchTarget(name, OCH)) {
@@ -453,7 +453,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
                                                         FolderVersionCounterbit);
                 appParamValue.needTag = ContentType.OUTGOING_CALL_HISTORY;
                 appParamValue.callHistoryVersionCounter =
-                    mVcardManager.getCallHistoryPrimaryFolderVersion(
+                    mService.getVersionJournal().getCallHistoryVersion(
                                               ContentType.OUTGOING_CALL_HISTORY);
                 if (D) Log.v(TAG, "download outgoing calls request");
             } else if (isNameMatchTarget(name, MCH)) {
@@ -461,7 +461,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
                                                         FolderVersionCounterbit);
                 appParamValue.needTag = ContentType.MISSED_CALL_HISTORY;
                 appParamValue.callHistoryVersionCounter =
-                    mVcardManager.getCallHistoryPrimaryFolderVersion(
+                    mService.getVersionJournal().getCallHistoryVersion(
                                                 ContentType.MISSED_CALL_HISTORY);
                 mNeedNewMissedCallsNum = true;
                 if (D) Log.v(TAG, "download missed calls request");
@@ -470,7 +470,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
                                                         FolderVersionCounterbit);
                 appParamValue.needTag = ContentType.COMBINED_CALL_HISTORY;
                 appParamValue.callHistoryVersionCounter =
-                    mVcardManager.getCallHistoryPrimaryFolderVersion(
+                    mService.getVersionJournal().getCallHistoryVersion(
                                               ContentType.COMBINED_CALL_HISTORY);
                 if (D) Log.v(TAG, "download combined calls request");
             } else {
@@ -507,41 +507,15 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
     }
 
     private byte[] getPBPrimaryFolderVersion() {
-        long primaryVcMsb = 0;
-        ByteBuffer pvc = ByteBuffer.allocate(16);
-        pvc.putLong(primaryVcMsb);
-
-        Log.d(TAG,"BluetoothPbapService.primaryVersionCounter is "+
-            BluetoothPbapService.primaryVersionCounter);
-
-        updatePBSecondaryFolderVersion(
-            BluetoothPbapService.primaryVersionCounter);
-        pvc.putLong(BluetoothPbapService.primaryVersionCounter);
-        BluetoothPbapService.primaryVersionCounter = 0;
-        return pvc.array();
+        return mService.getVersionJournal().getPhonebookPrimaryVersion();
     }
 
-    private void updatePBSecondaryFolderVersion(long primaryCounter) {
+    private byte[] getPBSecondaryFolderVersion() {
         if (SystemProperties.getBoolean("ro.bluetooth.pbap.sec", false) == true) {
             Log.d(TAG,"Reset secondary folder version bit for PTS case");
-            BluetoothPbapService.secondaryVersionCounter = 0;
-        } else {
-            BluetoothPbapService.secondaryVersionCounter =
-                BluetoothPbapService.primaryVersionCounter;
+            return new byte[16];
         }
-    }
-
-    private byte[] getPBSecondaryFolderVersion() {
-        long secondaryVcMsb = 0;
-        ByteBuffer svc = ByteBuffer.allocate(16);
-        svc.putLong(secondaryVcMsb);
-
-        Log.d(TAG,"BluetoothPbapService.secondaryVersionCounter is "+
-            BluetoothPbapService.secondaryVersionCounter);
-
-        svc.putLong(BluetoothPbapService.secondaryVersionCounter);
-        BluetoothPbapService.secondaryVersionCounter = 0;
-        return svc.array();
+        return mService.getVersionJournal().getPhonebookSecondaryVersion();
     }
 
     private boolean checkPbapFeatureSupport(long featureBit) {
@@ -804,7 +778,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
         if (D) Log.d(TAG, "itemsFound =" + itemsFound);
 
-        return pushBytes(op, result.toString());
+        return pushBytes(op, result);
     }
 
     private int createList(final int maxListCount, final int listStartOffset, boolean vcard21,
@@ -814,6 +788,22 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         ArrayList<Integer> savedPosList = new ArrayList<>();
         ArrayList<String> nameList = null;
         ArrayList<String> selectedNameList = new ArrayList<String>();
+        // Selector filtered lists are composed per request and cannot be indexed
+        if (!mVcardSelector) {
+            int indexedSize = mVcardManager.searchPhonebookIndex(SIM, mOrderBy,
+                    type.equals("number"), searchValue, savedPosList, selectedNameList);
+            if (indexedSize >= 0) {
+                final int requestSize = indexedSize >= maxListCount ? maxListCount : indexedSize;
+                if (D) Log.d(TAG, "indexed search by " + type + ", requestSize=" + requestSize
+                        + " offset=" + listStartOffset + " found=" + savedPosList.size());
+                for (int j = listStartOffset; j < selectedNameList.size() &&
+                    itemsFound < requestSize; j++) {
+                    itemsFound++;
+                    writeVCardEntry(savedPosList.get(j), selectedNameList.get(j),result);
+                }
+                return itemsFound;
+            }
+        }
         //check if current request is for SIM
         if(SIM) {
              nameList = mVcardManager.getSIMPhonebookNameList(mOrderBy);
@@ -920,7 +910,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
     }
 
     /** Function to send vcard data to client */
-    private final int pushBytes(Operation op, final String vcardString) {
+    private final int pushBytes(Operation op, final CharSequence vcardString) {
         if (vcardString == null) {
             Log.w(TAG, "vcardString is null!");
             return ResponseCodes.OBEX_HTTP_OK;
@@ -930,7 +920,10 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         int pushResult = ResponseCodes.OBEX_HTTP_OK;
         try {
             outputStream = op.openOutputStream();
-            outputStream.write(vcardString.getBytes());
+            BluetoothPbapObexWriter writer =
+                    new BluetoothPbapObexWriter(outputStream, op.getMaxPacketSize());
+            writer.write(vcardString);
+            writer.flush();
             if (V) Log.v(TAG, "Send Data complete!");
         } catch (IOException e) {
             Log.e(TAG, "open/write outputstrem failed" + e.toString());
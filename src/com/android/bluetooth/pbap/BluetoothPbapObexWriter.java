@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes character data to an OBEX operation stream as UTF-8, encoding
+ * directly into a single buffer of the negotiated packet size. The buffer is
+ * only handed to the stream when full, so no per-string byte arrays are
+ * allocated and the body goes out in whole OBEX packets.
+ */
+public class BluetoothPbapObexWriter {
+    /* Smallest buffer that still holds any encoded character */
+    private static final int MIN_BUFFER_SIZE = 4;
+
+    private final OutputStream mOutputStream;
+
+    private final byte[] mBuffer;
+
+    private int mCount;
+
+    /**
+     * @param packetSize the operation's getMaxPacketSize(), which must be read
+     *        after the response headers are set
+     */
+    public BluetoothPbapObexWriter(OutputStream outputStream, int packetSize) {
+        mOutputStream = outputStream;
+        mBuffer = new byte[Math.max(packetSize, MIN_BUFFER_SIZE)];
+    }
+
+    public void write(CharSequence text) throws IOException {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (mBuffer.length - mCount < 4) {
+                flushBuffer();
+            }
+            if (c < 0x80) {
+                mBuffer[mCount++] = (byte) c;
+            } else if (c < 0x800) {
+                mBuffer[mCount++] = (byte) (0xc0 | (c >> 6));
+                mBuffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                mBuffer[mCount++] = (byte) (0xf0 | (codePoint >> 18));
+                mBuffer[mCount++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                mBuffer[mCount++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                mBuffer[mCount++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, replaced like String.getBytes() does
+                mBuffer[mCount++] = (byte) '?';
+            } else {
+                mBuffer[mCount++] = (byte) (0xe0 | (c >> 12));
+                mBuffer[mCount++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                mBuffer[mCount++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /** Hand the buffered bytes to the operation stream */
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            mOutputStream.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.bluetooth.util.DevicePolicyUtils;
+import com.android.bluetooth.util.SimPhonebook;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory index of the phonebook and SIM name lists used to answer vCard
+ * listing searches without re-reading and scanning the whole phonebook on
+ * every request. Each name list keeps a lower cased name prefix trie and an
+ * entry to vCard handle map per sort order; the contacts phonebook also keeps
+ * its numbers keyed by caller ID minimum match.
+ *
+ * The index is only handed out while the PBAP service runs and its content
+ * observers are registered, so a snapshot is never used after the contacts
+ * changed underneath it.
+ */
+public class BluetoothPbapPhonebookIndex {
+    private static final String TAG = "BluetoothPbapPhonebookIndex";
+
+    private static final boolean V = Log.isLoggable(BluetoothPbapService.LOG_TAG, Log.VERBOSE);
+
+    private static final String[] PHONE_NUMBER_PROJECTION = new String[] {
+            Phone.CONTACT_ID, // 0
+            Phone.NUMBER, // 1
+    };
+
+    private static final int CONTACT_ID_COLUMN_INDEX = 0;
+
+    private static final int NUMBER_COLUMN_INDEX = 1;
+
+    private static BluetoothPbapPhonebookIndex sInstance;
+
+    private final Context mContext;
+
+    private final ContentResolver mResolver;
+
+    /* Bumped on every change notification; snapshots of an older generation are stale */
+    private final AtomicInteger mContactsGeneration = new AtomicInteger();
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (V) Log.v(TAG, "Contacts changed, invalidating phonebook index");
+            mContactsGeneration.incrementAndGet();
+        }
+    };
+
+    private Phonebook mContacts;
+
+    private Phonebook mSim;
+
+    private BluetoothPbapPhonebookIndex(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Return the running index, or null when the PBAP service has not started
+     * it and callers have to query the providers directly.
+     */
+    public static synchronized BluetoothPbapPhonebookIndex getInstance() {
+        return sInstance;
+    }
+
+    public static synchronized void start(Context context) {
+        if (sInstance != null) return;
+        BluetoothPbapPhonebookIndex index =
+                new BluetoothPbapPhonebookIndex(context.getApplicationContext());
+        try {
+            index.mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                    index.mContactsObserver);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "SQLite exception: " + e);
+            index.unregisterObservers();
+            return;
+        }
+        sInstance = index;
+    }
+
+    public static synchronized void stop() {
+        if (sInstance == null) return;
+        sInstance.unregisterObservers();
+        sInstance = null;
+    }
+
+    private void unregisterObservers() {
+        try {
+            mResolver.unregisterContentObserver(mContactsObserver);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Illegal state exception, content observer is not registered");
+        }
+    }
+
+    /**
+     * The SIM provider does not reliably notify changes, so the shared SIM
+     * phonebook is also re-read whenever a new PBAP session starts.
+     */
+    public void invalidateSim() {
+        SimPhonebook.getInstance(mContext).invalidate();
+    }
+
+    /** Same result as {@link BluetoothPbapVcardManager#getContactNamesByNumber} */
+    public ArrayList<String> getContactNamesByNumber(BluetoothPbapVcardManager manager,
+            String phoneNumber) {
+        Phonebook contacts = getContacts(manager);
+        if (TextUtils.isEmpty(phoneNumber)) {
+            return new ArrayList<String>(contacts.byIndex.entries);
+        }
+        ArrayList<String> nameList = new ArrayList<String>();
+        String minMatch = PhoneNumberUtils.toCallerIDMinMatch(phoneNumber);
+        ArrayList<NumberEntry> candidates =
+                minMatch != null ? contacts.numbersByMinMatch.get(minMatch) : null;
+        if (candidates == null) return nameList;
+
+        // Sorted by contact id, like the PhoneLookup query it replaces.
+        TreeSet<Long> contactIds = new TreeSet<Long>();
+        for (NumberEntry candidate : candidates) {
+            if (PhoneNumberUtils.compare(candidate.number, phoneNumber)) {
+                contactIds.add(candidate.contactId);
+            }
+        }
+        for (Long contactId : contactIds) {
+            String entry = contacts.entryByContactId.get(contactId);
+            if (entry != null) {
+                if (V) Log.v(TAG, "got name " + entry + " by number " + phoneNumber);
+                nameList.add(entry);
+            }
+        }
+        return nameList;
+    }
+
+    /** Same result as {@link BluetoothPbapVcardManager#getSIMContactNamesByNumber} */
+    public ArrayList<String> getSIMContactNamesByNumber(BluetoothPbapVcardManager manager,
+            String phoneNumber) {
+        Phonebook sim = getSim();
+        return BluetoothPbapVcardManager.matchSIMNamesByNumber(sim.simNames, sim.simNumbers,
+                phoneNumber);
+    }
+
+    /**
+     * Collect the handles and names of the entries whose name starts with
+     * searchValue, ignoring case, in handle order.
+     *
+     * @return the size of the searched name list, including the owner entry
+     */
+    public int searchByName(BluetoothPbapVcardManager manager, boolean sim, int orderByWhat,
+            String searchValue, ArrayList<Integer> handles, ArrayList<String> names) {
+        NameIndex nameIndex = getNameIndex(manager, sim, orderByWhat);
+        if (searchValue == null) return nameIndex.entries.size() + 1;
+
+        String prefix = searchValue.trim().toLowerCase();
+        String owner = stripContactId(getOwnerName(manager, sim));
+        if (owner.toLowerCase().startsWith(prefix)) {
+            handles.add(0);
+            names.add(owner);
+        }
+        TrieNode node = nameIndex.trie.find(prefix);
+        if (node != null) {
+            for (int i = 0; i < node.count; i++) {
+                int handle = node.handles[i];
+                handles.add(handle);
+                names.add(stripContactId(nameIndex.entries.get(handle - 1)));
+            }
+        }
+        return nameIndex.entries.size() + 1;
+    }
+
+    /**
+     * Collect the handles and names of the entries matching phoneNumber, in the
+     * order the number lookup returned them.
+     *
+     * @return the size of the searched name list, including the owner entry
+     */
+    public int searchByNumber(BluetoothPbapVcardManager manager, boolean sim, int orderByWhat,
+            String phoneNumber, ArrayList<Integer> handles, ArrayList<String> names) {
+        NameIndex nameIndex = getNameIndex(manager, sim, orderByWhat);
+        ArrayList<String> matches = sim ? getSIMContactNamesByNumber(manager, phoneNumber)
+                : getContactNamesByNumber(manager, phoneNumber);
+        String owner = getOwnerName(manager, sim);
+        for (String match : matches) {
+            String compareValue = match.trim();
+            if (owner.equals(compareValue)) {
+                handles.add(0);
+                names.add(stripContactId(owner));
+            }
+            ArrayList<Integer> entryHandles = nameIndex.handlesByEntry.get(compareValue);
+            if (entryHandles == null) continue;
+            for (Integer handle : entryHandles) {
+                handles.add(handle);
+                names.add(stripContactId(compareValue));
+            }
+        }
+        return nameIndex.entries.size() + 1;
+    }
+
+    private static String getOwnerName(BluetoothPbapVcardManager manager, boolean sim) {
+        return sim ? BluetoothPbapService.getLocalPhoneName() : manager.getOwnerName();
+    }
+
+    private NameIndex getNameIndex(BluetoothPbapVcardManager manager, boolean sim,
+            int orderByWhat) {
+        Phonebook phonebook = sim ? getSim() : getContacts(manager);
+        return orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL
+                ? phonebook.byAlpha : phonebook.byIndex;
+    }
+
+    private synchronized Phonebook getContacts(BluetoothPbapVcardManager manager) {
+        final int generation = mContactsGeneration.get();
+        if (mContacts != null && mContacts.generation == generation) return mContacts;
+
+        long start = System.currentTimeMillis();
+        Phonebook contacts = new Phonebook(generation,
+                manager.queryPhonebookNameList(BluetoothPbapObexServer.ORDER_BY_INDEXED),
+                manager.queryPhonebookNameList(BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL));
+        for (String entry : contacts.byIndex.entries) {
+            try {
+                contacts.entryByContactId.put(
+                        Long.parseLong(entry.substring(entry.lastIndexOf(',') + 1)), entry);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Unexpected phonebook entry " + entry);
+            }
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(DevicePolicyUtils.getEnterprisePhoneUri(mContext),
+                    PHONE_NUMBER_PROJECTION, null, null, Phone.CONTACT_ID);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    String number = cursor.getString(NUMBER_COLUMN_INDEX);
+                    String minMatch = PhoneNumberUtils.toCallerIDMinMatch(number);
+                    if (minMatch == null) continue;
+                    ArrayList<NumberEntry> entries = contacts.numbersByMinMatch.get(minMatch);
+                    if (entries == null) {
+                        entries = new ArrayList<NumberEntry>(1);
+                        contacts.numbersByMinMatch.put(minMatch, entries);
+                    }
+                    entries.add(new NumberEntry(cursor.getLong(CONTACT_ID_COLUMN_INDEX), number));
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "SQLite exception while indexing phone numbers: " + e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (V) Log.v(TAG, "Indexed " + contacts.byIndex.entries.size() + " contacts in "
+                + (System.currentTimeMillis() - start) + " ms");
+        mContacts = contacts;
+        return contacts;
+    }
+
+    /* Rebuilt whenever the shared SIM phonebook hands out a new snapshot */
+    private synchronized Phonebook getSim() {
+        SimPhonebook.Snapshot snapshot = SimPhonebook.getInstance(mContext).getSnapshot();
+        if (mSim != null && mSim.simSnapshot == snapshot) return mSim;
+
+        ArrayList<String> numbers = new ArrayList<String>(snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            numbers.add(snapshot.getNumber(i));
+        }
+        Phonebook sim = new Phonebook(0, snapshot.getDisplayNames(false),
+                snapshot.getDisplayNames(true));
+        sim.simSnapshot = snapshot;
+        sim.simNames = sim.byIndex.entries;
+        sim.simNumbers = numbers;
+        if (V) Log.v(TAG, "Indexed " + snapshot.size() + " SIM contacts");
+        mSim = sim;
+        return sim;
+    }
+
+    /* Name lists carry "name,contactId" entries for the contacts phonebook */
+    private static String stripContactId(String entry) {
+        int comma = entry.lastIndexOf(',');
+        return comma >= 0 ? entry.substring(0, comma) : entry;
+    }
+
+    private static final class Phonebook {
+        final int generation;
+        final NameIndex byIndex;
+        final NameIndex byAlpha;
+
+        /* Contacts phonebook only */
+        final HashMap<String, ArrayList<NumberEntry>> numbersByMinMatch =
+                new HashMap<String, ArrayList<NumberEntry>>();
+        final HashMap<Long, String> entryByContactId = new HashMap<Long, String>();
+
+        /* SIM phonebook only, in SIM order */
+        SimPhonebook.Snapshot simSnapshot;
+        ArrayList<String> simNames;
+        ArrayList<String> simNumbers;
+
+        Phonebook(int generation, ArrayList<String> byIndexEntries,
+                ArrayList<String> byAlphaEntries) {
+            this.generation = generation;
+            byIndex = new NameIndex(byIndexEntries);
+            byAlpha = new NameIndex(byAlphaEntries);
+        }
+    }
+
+    private static final class NumberEntry {
+        final long contactId;
+        final String number;
+
+        NumberEntry(long contactId, String number) {
+            this.contactId = contactId;
+            this.number = number;
+        }
+    }
+
+    /* One name list without the owner entry; the vCard handle of entries[i] is i + 1 */
+    private static final class NameIndex {
+        final ArrayList<String> entries;
+        final TrieNode trie = new TrieNode();
+        final HashMap<String, ArrayList<Integer>> handlesByEntry;
+
+        NameIndex(ArrayList<String> entries) {
+            this.entries = entries;
+            handlesByEntry = new HashMap<String, ArrayList<Integer>>(entries.size() * 2);
+            final int size = entries.size();
+            for (int i = 0; i < size; i++) {
+                final int handle = i + 1;
+                String entry = entries.get(i);
+                trie.insert(stripContactId(entry).toLowerCase(), handle);
+                ArrayList<Integer> handles = handlesByEntry.get(entry);
+                if (handles == null) {
+                    handles = new ArrayList<Integer>(1);
+                    handlesByEntry.put(entry, handles);
+                }
+                handles.add(handle);
+            }
+        }
+    }
+
+    /* Every node holds the handles, in ascending order, of the names with its prefix */
+    private static final class TrieNode {
+        SparseArray<TrieNode> children;
+        int[] handles = new int[1];
+        int count;
+
+        void insert(String name, int handle) {
+            TrieNode node = this;
+            node.add(handle);
+            final int length = name.length();
+            for (int i = 0; i < length; i++) {
+                final char c = name.charAt(i);
+                if (node.children == null) {
+                    node.children = new SparseArray<TrieNode>(1);
+                }
+                TrieNode child = node.children.get(c);
+                if (child == null) {
+                    child = new TrieNode();
+                    node.children.put(c, child);
+                }
+                child.add(handle);
+                node = child;
+            }
+        }
+
+        TrieNode find(String prefix) {
+            TrieNode node = this;
+            final int length = prefix.length();
+            for (int i = 0; i < length && node != null; i++) {
+                node = node.children != null ? node.children.get(prefix.charAt(i)) : null;
+            }
+            return node;
+        }
+
+        private void add(int handle) {
+            if (count == handles.length) {
+                int[] grown = new int[count * 2];
+                System.arraycopy(handles, 0, grown, 0, count);
+                handles = grown;
+            }
+            handles[count++] = handle;
+        }
+    }
+}
@@ -17,29 +17,15 @@
 package com.android.bluetooth.pbap;
 
 import com.android.bluetooth.R;
+import com.android.bluetooth.util.SimPhonebook;
 
-import android.content.ContentResolver;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import com.android.vcard.VCardBuilder;
 import com.android.vcard.VCardConfig;
 import com.android.vcard.VCardConstants;
 import com.android.vcard.VCardUtils;
-import android.provider.CallLog;
-import android.provider.CallLog.Calls;
 import android.text.TextUtils;
-import android.text.format.Time;
-import android.util.Log;
-import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.CommonDataKinds;
-import android.provider.ContactsContract.CommonDataKinds.Phone;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Collections;
-import java.util.Comparator;
 
 /**
  * VCard composer especially for Call Log used in Bluetooth.
@@ -62,55 +48,27 @@ public class BluetoothPbapSIMvCardComposer {
 
     private static final String NO_ERROR = "No error";
 
-    private final String SIM_URI = "content://icc/adn";
-
-    private static final String[] SIM_PROJECTION = new String[] {
-                Contacts.DISPLAY_NAME,
-                CommonDataKinds.Phone.NUMBER,
-                CommonDataKinds.Phone.TYPE,
-                CommonDataKinds.Phone.LABEL};
-
-    private static final int NAME_COLUMN_INDEX = 0;
-    private static final int NUMBER_COLUMN_INDEX = 1;
-    private static final int NUMBERTYPE_COLUMN_INDEX = 2;
-    private static final int NUMBERLABEL_COLUMN_INDEX = 3;
-
-
     private final Context mContext;
-    private ContentResolver mContentResolver;
-    private Cursor mCursor;
-    private boolean mTerminateIsCalled;
+    private SimPhonebook.Snapshot mSnapshot;
+    private int mPosition;
     private String mErrorReason = NO_ERROR;
     public BluetoothPbapSIMvCardComposer(final Context context) {
         mContext = context;
-        mContentResolver = context.getContentResolver();
     }
 
     public boolean init(final Uri contentUri, final String selection,
             final String[] selectionArgs, final String sortOrder) {
-            final Uri myUri = Uri.parse(SIM_URI);
-        if (!myUri.equals(contentUri)) {
-
+        if (!SimPhonebook.SIM_URI.equals(contentUri)) {
             mErrorReason = FAILURE_REASON_UNSUPPORTED_URI;
             return false;
         }
 
-        mCursor = mContentResolver.query(
-                contentUri, SIM_PROJECTION, null, null,sortOrder); //checkpoint Figure out if we can apply selection, projection and sort order.
-
-        if (mCursor == null) {
-            mErrorReason = FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO;
-            return false;
-        }
-        if (mCursor.getCount() == 0 || !mCursor.moveToFirst()) {
-            try {
-                mCursor.close();
-            } catch (SQLiteException e) {
-                Log.e(TAG, "SQLiteException on Cursor#close(): " + e.getMessage());
-            } finally {
-                mErrorReason = FAILURE_REASON_NO_ENTRY;
-                mCursor = null;
-            }
+        // The SIM is read once and shared, so repeated requests don't hit the ICC
+        mSnapshot = SimPhonebook.getInstance(mContext).getSnapshot();
+        mPosition = 0;
+        if (mSnapshot.size() == 0) {
+            mErrorReason = FAILURE_REASON_NO_ENTRY;
+            mSnapshot = null;
             return false;
         }
 
@@ -119,14 +77,14 @@ public class BluetoothPbapSIMvCardComposer {
 
 
     public String createOneEntry(boolean vcardVer21) {
-        if (mCursor == null || mCursor.isAfterLast()) {
+        if (mSnapshot == null || isAfterLast()) {
             mErrorReason = FAILURE_REASON_NOT_INITIALIZED;
             return null;
         }
         try {
             return createOnevCardEntryInternal(vcardVer21);
         } finally {
-            mCursor.moveToNext();
+            mPosition++;
         }
     }
 
@@ -135,22 +93,22 @@ public class BluetoothPbapSIMvCardComposer {
                 VCardConfig.VCARD_TYPE_V30_GENERIC) |
                 VCardConfig.FLAG_REFRAIN_PHONE_NUMBER_FORMATTING;
         final VCardBuilder builder = new VCardBuilder(vcardType);
-        String name = mCursor.getString(NAME_COLUMN_INDEX);
+        String name = mSnapshot.getName(mPosition);
         if (TextUtils.isEmpty(name)) {
-            name = mCursor.getString(NUMBER_COLUMN_INDEX);
+            name = mSnapshot.getNumber(mPosition);
         }
         final boolean needCharset = !(VCardUtils.containsOnlyPrintableAscii(name));
         builder.appendLine(VCardConstants.PROPERTY_FN, name, needCharset, false);
         builder.appendLine(VCardConstants.PROPERTY_N, name, needCharset, false);
 
-        String number = mCursor.getString(NUMBER_COLUMN_INDEX);
+        String number = mSnapshot.getNumber(mPosition);
         if (number.equals("-1")) {
             number = mContext.getString(R.string.unknownNumber);
         }
 
         // checkpoint Figure out what are the type and label
-        final int type = mCursor.getInt(NUMBERTYPE_COLUMN_INDEX);
-        String label = mCursor.getString(NUMBERLABEL_COLUMN_INDEX);
+        final int type = mSnapshot.getType(mPosition);
+        String label = mSnapshot.getLabel(mPosition);
         if (TextUtils.isEmpty(label)) {
             label = Integer.toString(type);
         }
@@ -159,48 +117,32 @@ public class BluetoothPbapSIMvCardComposer {
     }
 
     public void terminate() {
-        if (mCursor != null) {
-            try {
-                mCursor.close();
-            } catch (SQLiteException e) {
-                Log.e(TAG, "SQLiteException on Cursor#close(): " + e.getMessage());
-            }
-            mCursor = null;
-        }
-
-        mTerminateIsCalled = true;
-    }
-
-    @Override
-    public void finalize() {
-        if (!mTerminateIsCalled) {
-            terminate();
-        }
+        mSnapshot = null;
     }
 
     public int getCount() {
-        if (mCursor == null) {
+        if (mSnapshot == null) {
             return 0;
         }
-        return mCursor.getCount();
+        return mSnapshot.size();
     }
 
     public boolean isAfterLast() {
-        if (mCursor == null) {
+        if (mSnapshot == null) {
             return false;
         }
-        return mCursor.isAfterLast();
+        return mPosition >= mSnapshot.size();
     }
 
     public void moveToPosition(final int position, boolean sortalpha){
-        if(mCursor == null) {
+        if(mSnapshot == null) {
             return;
         }
         if(sortalpha) {
             setpositionbyalpha(position);
             return;
         }
-        mCursor.moveToPosition(position);
+        mPosition = position;
     }
 
     public String getErrorReason() {
@@ -208,35 +150,14 @@ public class BluetoothPbapSIMvCardComposer {
     }
 
     public void setpositionbyalpha(int position){
-        if(mCursor == null) {
+        if(mSnapshot == null) {
             return;
         }
-        ArrayList<String> nameList = new ArrayList<String>();
-        for (mCursor.moveToFirst(); !mCursor.isAfterLast(); mCursor
-                        .moveToNext()) {
-            String name = mCursor.getString(NAME_COLUMN_INDEX);
-            if (TextUtils.isEmpty(name)) {
-                name = mContext.getString(android.R.string.unknownName);
-            }
-            nameList.add(name);
-        }
-
-        Collections.sort(nameList, new Comparator <String> ()
-                                 {@Override
-                                  public int compare(String str1, String str2){
-                                      return str1.compareToIgnoreCase(str2);
-                                 }
-        });
-
-        for (mCursor.moveToFirst(); !mCursor.isAfterLast(); mCursor
-                        .moveToNext()) {
-            if(mCursor.getString(NAME_COLUMN_INDEX).equals(nameList.get(position))) {
-              break;
-            }
-
+        if (position < 0 || position >= mSnapshot.size()) {
+            mPosition = mSnapshot.size();
+            return;
         }
+        mPosition = mSnapshot.getIndexByName(position);
     }
 
 }
-
-
@@ -49,8 +49,6 @@ import android.bluetooth.BluetoothUuid;
 import android.content.Context;
 import android.content.ContentResolver;
 import android.content.Intent;
-import android.database.ContentObserver;
-import android.database.sqlite.SQLiteException;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -62,20 +60,19 @@ import android.os.ServiceManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
-import java.util.Calendar;
-import java.util.concurrent.atomic.AtomicLong;
 
 import com.android.bluetooth.ObexServerSockets;
 import com.android.bluetooth.BluetoothObexTransport;
 import com.android.bluetooth.IObexConnectionHandler;
 import com.android.bluetooth.sdp.SdpManager;
 import com.android.bluetooth.Utils;
-import com.android.bluetooth.util.DevicePolicyUtils;
 
 import com.android.bluetooth.R;
 import com.android.bluetooth.btservice.AdapterService;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import javax.obex.ServerSession;
 
@@ -210,8 +207,6 @@ public class BluetoothPbapService extends Service implements IObexConnectionHand
 
     private boolean mIsWaitingAuthorization = false;
 
-    private static  AtomicLong mDbIndetifier = new AtomicLong();
-
     private PbapServiceMessageHandler mSessionStatusHandler;
 
     // package and class name to which we send intent to check phone book access permission
@@ -219,21 +214,10 @@ public class BluetoothPbapService extends Service implements IObexConnectionHand
     private static final String ACCESS_AUTHORITY_CLASS =
         "com.android.settings.bluetooth.BluetoothPermissionRequest";
 
-    private ContentObserver contactChangeObserver;
-    public static long primaryVersionCounter = 0;
-    public static long secondaryVersionCounter = 0;
+    private BluetoothPbapVersionJournal mVersionJournal;
 
     public BluetoothPbapService() {
         mState = BluetoothPbap.STATE_DISCONNECTED;
-        contactChangeObserver = new ContentObserver(null) {
-            @Override
-            public void onChange(boolean selfChange) {
-                Log.d(TAG,"**************onChange on contact uri ************");
-                primaryVersionCounter = primaryVersionCounter + 1;
-            }
-        };
-
-
     }
 
     @Override
@@ -258,17 +242,12 @@ public class BluetoothPbapService extends Service implements IObexConnectionHand
                         .obtainMessage(START_LISTENER));
             }
         }
-        // Register observer on contact to update version counter
-        try {
-            if (DEBUG) Log.d(TAG,"Registering observer");
-            getContentResolver().registerContentObserver(
-               DevicePolicyUtils.getEnterprisePhoneUri(this), false, contactChangeObserver);
-        } catch (SQLiteException e) {
-            Log.e(TAG, "SQLite exception: " + e);
-        } catch (IllegalStateException e) {
-            Log.e(TAG, "Illegal state exception, content observer is already registered");
+        BluetoothPbapPhonebookIndex.start(this);
+        // Track contact and call log changes to maintain the folder version counters
+        if (mVersionJournal == null) {
+            mVersionJournal = new BluetoothPbapVersionJournal(this);
         }
-
+        mVersionJournal.start();
     }
 
     @Override
@@ -401,14 +380,10 @@ public class BluetoothPbapService extends Service implements IObexConnectionHand
     public void onDestroy() {
         if (DEBUG) Log.d(TAG, "Pbap Service onDestroy");
 
-        try {
-            if (DEBUG) Log.d(TAG,"Unregistering observer");
-                getContentResolver().unregisterContentObserver(contactChangeObserver);
-        } catch (SQLiteException e) {
-            Log.e(TAG, "SQLite exception: " + e);
-        } catch (IllegalStateException e) {
-            Log.e(TAG, "Illegal state exception, content observer is not registered");
+        if (mVersionJournal != null) {
+            mVersionJournal.stop();
         }
+        BluetoothPbapPhonebookIndex.stop();
 
         super.onDestroy();
         setState(BluetoothPbap.STATE_DISCONNECTED, BluetoothPbap.RESULT_CANCELED);
@@ -460,18 +435,25 @@ public class BluetoothPbapService extends Service implements IObexConnectionHand
                     mServerSockets.getL2capPsm(), SDP_PBAP_SERVER_VERSION,
                         SDP_PBAP_SUPPORTED_REPOSITORIES, SDP_PBAP_SUPPORTED_FEATURES);
 
-            // Here we might have changed crucial data, hence reset DB identifier
-            updateDbIdentifier();
             if(DEBUG) Log.d(TAG, "Creating new SDP record for PBAP server with handle: " + mSdpHandle);
         }
     }
 
-    private void updateDbIdentifier(){
-        mDbIndetifier.set(Calendar.getInstance().getTime().getTime());
+    public long getDbIdentifier() {
+        return mVersionJournal.getDatabaseIdentifier();
+    }
+
+    public BluetoothPbapVersionJournal getVersionJournal() {
+        return mVersionJournal;
     }
 
-    public long getDbIdentifier() {
-        return mDbIndetifier.get();
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        StringBuilder sb = new StringBuilder();
+        if (mVersionJournal != null) {
+            mVersionJournal.dump(sb);
+        }
+        writer.print(sb.toString());
     }
 
     public int getConnType() {
@@ -653,6 +635,10 @@ public class BluetoothPbapService extends Service implements IObexConnectionHand
             }
         }
 
+        BluetoothPbapPhonebookIndex index = BluetoothPbapPhonebookIndex.getInstance();
+        if (index != null) {
+            index.invalidateSim();
+        }
         mPbapServer = new BluetoothPbapObexServer(mSessionStatusHandler, this, this);
         synchronized (this) {
             mAuth = new BluetoothPbapAuthenticator(mSessionStatusHandler);
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Disk cache of composed and filtered phonebook vCards, so repeated pulls by
+ * the same PCE only recompose the contacts that changed since.
+ *
+ * Entries live in one directory per bucket, a bucket being a vCard type and
+ * filter combination, as files named {@code <contactId>_<lastUpdated>} where
+ * lastUpdated is the contact's CONTACT_LAST_UPDATED_TIMESTAMP. A contact that
+ * changed therefore simply misses and replaces its old file. The total size
+ * is kept under the configured budget by evicting least recently used files.
+ */
+public class BluetoothPbapVcardCache {
+    private static final String TAG = "BluetoothPbapVcardCache";
+
+    private static final boolean V = Log.isLoggable(BluetoothPbapService.LOG_TAG, Log.VERBOSE);
+
+    private static final String CACHE_DIR = "pbap_vcards";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static BluetoothPbapVcardCache sInstance;
+
+    private final File mRoot;
+
+    private final long mBudget;
+
+    /* Size of each cached file keyed by "bucket/name", least recently used first */
+    private final LinkedHashMap<String, Long> mLru = new LinkedHashMap<String, Long>(64, 0.75f,
+            true);
+
+    /* Current file name of each cached contact keyed by "bucket/contactId" */
+    private final HashMap<String, String> mNameByContact = new HashMap<String, String>();
+
+    private long mSize;
+
+    private BluetoothPbapVcardCache(File root, long budget) {
+        mRoot = root;
+        mBudget = budget;
+        load();
+    }
+
+    /**
+     * Return the process wide cache, or null when caching is disabled by a
+     * zero size budget.
+     */
+    public static synchronized BluetoothPbapVcardCache getInstance(Context context) {
+        if (sInstance == null) {
+            long budget = BluetoothPbapConfig.getVcardCacheSize();
+            if (budget <= 0) return null;
+            sInstance = new BluetoothPbapVcardCache(new File(context.getCacheDir(), CACHE_DIR),
+                    budget);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Name of the bucket holding the vCards composed with vcardType and
+     * filtered with filter, null meaning no filter.
+     */
+    public static String getBucket(int vcardType, byte[] filter) {
+        StringBuilder bucket = new StringBuilder(Integer.toHexString(vcardType)).append('_');
+        if (filter == null) {
+            bucket.append("all");
+        } else {
+            for (byte b : filter) {
+                bucket.append(String.format("%02x", b));
+            }
+        }
+        return bucket.toString();
+    }
+
+    public synchronized boolean contains(String bucket, long contactId, long lastUpdated) {
+        return mLru.containsKey(bucket + "/" + getName(contactId, lastUpdated));
+    }
+
+    /** Return the cached vCard, or null if it is not cached or cannot be read */
+    public synchronized String get(String bucket, long contactId, long lastUpdated) {
+        final String key = bucket + "/" + getName(contactId, lastUpdated);
+        if (mLru.get(key) == null) return null;
+
+        File file = new File(mRoot, key);
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) throw new IOException("Truncated cache file " + key);
+                offset += read;
+            }
+            return new String(data, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cached vCard " + key + ": " + e);
+            remove(key);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    public synchronized void put(String bucket, long contactId, long lastUpdated, String vcard) {
+        final String name = getName(contactId, lastUpdated);
+        final String contactKey = bucket + "/" + contactId;
+        String previous = mNameByContact.get(contactKey);
+        if (previous != null) {
+            remove(bucket + "/" + previous);
+        }
+
+        byte[] data = vcard.getBytes(StandardCharsets.UTF_8);
+        if (data.length > mBudget) return;
+
+        File dir = new File(mRoot, bucket);
+        File tmp = new File(dir, name + TMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                Log.w(TAG, "Unable to create " + dir);
+                return;
+            }
+            out = new FileOutputStream(tmp);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(new File(dir, name))) {
+                Log.w(TAG, "Unable to store cached vCard " + name);
+                tmp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write cached vCard " + name + ": " + e);
+            tmp.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        mLru.put(bucket + "/" + name, (long) data.length);
+        mNameByContact.put(contactKey, name);
+        mSize += data.length;
+        trim();
+    }
+
+    public synchronized void clear() {
+        for (String key : new ArrayList<String>(mLru.keySet())) {
+            remove(key);
+        }
+    }
+
+    private static String getName(long contactId, long lastUpdated) {
+        return contactId + "_" + lastUpdated;
+    }
+
+    private void remove(String key) {
+        Long size = mLru.remove(key);
+        if (size != null) {
+            mSize -= size;
+        }
+        int slash = key.indexOf('/');
+        int underscore = key.lastIndexOf('_');
+        if (slash > 0 && underscore > slash) {
+            String contactKey = key.substring(0, underscore);
+            if (key.substring(slash + 1).equals(mNameByContact.get(contactKey))) {
+                mNameByContact.remove(contactKey);
+            }
+        }
+        new File(mRoot, key).delete();
+    }
+
+    private void trim() {
+        while (mSize > mBudget && !mLru.isEmpty()) {
+            String eldest = mLru.keySet().iterator().next();
+            if (V) Log.v(TAG, "Evicting " + eldest);
+            remove(eldest);
+        }
+    }
+
+    /* Rebuild the index from the files left by earlier runs, oldest first */
+    private void load() {
+        File[] buckets = mRoot.listFiles();
+        if (buckets == null) return;
+        ArrayList<File> files = new ArrayList<File>();
+        for (File bucket : buckets) {
+            File[] entries = bucket.listFiles();
+            if (entries == null) continue;
+            files.addAll(Arrays.asList(entries));
+        }
+        final HashMap<File, Long> modified = new HashMap<File, Long>();
+        for (File file : files) {
+            modified.put(file, file.lastModified());
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(modified.get(lhs), modified.get(rhs));
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            String bucket = file.getParentFile().getName();
+            int underscore = name.indexOf('_');
+            if (name.endsWith(TMP_SUFFIX) || underscore <= 0) {
+                file.delete();
+                continue;
+            }
+            String contactKey = bucket + "/" + name.substring(0, underscore);
+            String previous = mNameByContact.put(contactKey, name);
+            if (previous != null) {
+                remove(bucket + "/" + previous);
+                mNameByContact.put(contactKey, name);
+            }
+            mLru.put(bucket + "/" + name, file.length());
+            mSize += file.length();
+        }
+        trim();
+        if (V) Log.v(TAG, "Loaded " + mLru.size() + " cached vCards, " + mSize + " bytes");
+    }
+}
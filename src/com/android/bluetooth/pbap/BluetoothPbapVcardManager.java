@@ -51,9 +51,9 @@ import android.provider.ContactsContract.RawContactsEntity;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
-import java.nio.ByteBuffer;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import com.android.bluetooth.R;
 import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
@@ -62,6 +62,7 @@ import com.android.vcard.VCardPhoneNumberTranslationCallback;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 
 import javax.obex.ServerOperation;
@@ -70,6 +71,7 @@ import javax.obex.ResponseCodes;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.util.DevicePolicyUtils;
+import com.android.bluetooth.util.SimPhonebook;
 
 public class BluetoothPbapVcardManager {
     private static final String TAG = "BluetoothPbapVcardManager";
@@ -92,14 +94,8 @@ public class BluetoothPbapVcardManager {
 
     private final int CONN_TYPE_1_2 = 3;
 
-    static final String[] SIM_PROJECTION = new String[] {
-            Contacts.DISPLAY_NAME,
-            CommonDataKinds.Phone.NUMBER,
-    };
     private static final int PHONE_NUMBER_COLUMN_INDEX = 3;
 
-    private static final int SIM_NAME_COLUMN_INDEX = 0;
-    private static final int SIM_NUMBER_COLUMN_INDEX = 1;
     static final String SORT_ORDER_PHONE_NUMBER = CommonDataKinds.Phone.NUMBER + " ASC";
 
     static final String[] PHONES_CONTACTS_PROJECTION = new String[] {
@@ -107,6 +103,11 @@ public class BluetoothPbapVcardManager {
             Phone.DISPLAY_NAME, // 1
     };
 
+    static final String[] CONTACTS_LAST_UPDATED_PROJECTION = new String[] {
+            Contacts._ID, // 0
+            Contacts.CONTACT_LAST_UPDATED_TIMESTAMP, // 1
+    };
+
     static final String[] PHONE_LOOKUP_PROJECTION = new String[] {
             PhoneLookup._ID, PhoneLookup.DISPLAY_NAME
     };
@@ -115,8 +116,6 @@ public class BluetoothPbapVcardManager {
 
     static final int CONTACTS_NAME_COLUMN_INDEX = 1;
 
-    static long LAST_FETCHED_TIME_STAMP;
-
     // call histories use dynamic handles, and handles should order by date; the
     // most recently one should be the first handle. In table "calls", _id and
     // date are consistent in ordering, to implement simply, we sort by _id
@@ -130,7 +129,6 @@ public class BluetoothPbapVcardManager {
     public BluetoothPbapVcardManager(final Context context) {
         mContext = context;
         mResolver = mContext.getContentResolver();
-        LAST_FETCHED_TIME_STAMP = System.currentTimeMillis();
     }
 
     /**
@@ -211,20 +209,7 @@ public class BluetoothPbapVcardManager {
     }
 
     public final int getSIMContactsSize() {
-        final Uri myUri = Uri.parse(SIM_URI);
-        int size = 0;
-        Cursor contactCursor = null;
-        try {
-            contactCursor = mResolver.query(myUri, SIM_PROJECTION, null,null, null);
-            if (contactCursor != null) {
-                size = contactCursor.getCount() +1;  //always has the 0.vcf
-            }
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-            }
-        }
-        return size;
+        return SimPhonebook.getInstance(mContext).getSnapshot().size() + 1; //always has the 0.vcf
     }
 
     public final int getCallHistorySize(final int type) {
@@ -295,46 +280,37 @@ public class BluetoothPbapVcardManager {
         ArrayList<String> nameList = new ArrayList<String>();
         nameList.add(BluetoothPbapService.getLocalPhoneName());
         //Since owner card should always be 0.vcf, maintaing a separate list to avoid sorting
-        ArrayList<String> allnames = new ArrayList<String>();
-        final Uri myUri = Uri.parse(SIM_URI);
-        Cursor contactCursor = null;
-        try {
-            contactCursor = mResolver.query(myUri, SIM_PROJECTION, null,null,null);
-            if (contactCursor != null) {
-                for (contactCursor.moveToFirst(); !contactCursor.isAfterLast(); contactCursor
-                        .moveToNext()) {
-                    String name = contactCursor.getString(SIM_NAME_COLUMN_INDEX);
-                    if (TextUtils.isEmpty(name)) {
-                        name = mContext.getString(android.R.string.unknownName);
-                    }
-                    allnames.add(name);
-                }
-            }
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-            }
-        }
-        if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_INDEXED) {
-                if (V) Log.v(TAG, "getPhonebookNameList, order by index");
-        } else if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
-                if (V) Log.v(TAG, "getPhonebookNameList, order by alpha");
-                Collections.sort(allnames, new Comparator <String> ()
-                                 {@Override
-                                  public int compare(String str1, String str2){
-                                      return str1.compareToIgnoreCase(str2);
-                                  }
-                 });
-        }
-
-        nameList.addAll(allnames);
+        if (V) Log.v(TAG, "getSIMPhonebookNameList, order " + orderByWhat);
+        nameList.addAll(SimPhonebook.getInstance(mContext).getSnapshot().getDisplayNames(
+                orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL));
         return nameList;
 
     }
 
+    /**
+     * Read the names, and optionally the numbers, of all SIM contacts in SIM
+     * order. Empty names are replaced by the default unknown name.
+     */
+    final void querySIMPhonebook(ArrayList<String> names, ArrayList<String> numbers) {
+        SimPhonebook.Snapshot snapshot = SimPhonebook.getInstance(mContext).getSnapshot();
+        names.addAll(snapshot.getDisplayNames(false));
+        if (numbers != null) {
+            final int size = snapshot.size();
+            for (int i = 0; i < size; i++) {
+                numbers.add(snapshot.getNumber(i));
+            }
+        }
+    }
+
     public final ArrayList<String> getPhonebookNameList(final int orderByWhat) {
         ArrayList<String> nameList = new ArrayList<String>();
-        //Owner vCard enhancement. Use "ME" profile if configured
+        nameList.add(getOwnerName());
+        nameList.addAll(queryPhonebookNameList(orderByWhat));
+        return nameList;
+    }
+
+    //Owner vCard enhancement. Use "ME" profile if configured
+    final String getOwnerName() {
         String ownerName = null;
         if (BluetoothPbapConfig.useProfileForOwnerVcard()) {
             ownerName = BluetoothPbapUtils.getProfileName(mContext);
@@ -342,9 +318,15 @@ public class BluetoothPbapVcardManager {
         if (ownerName == null || ownerName.length()==0) {
             ownerName = BluetoothPbapService.getLocalPhoneName();
         }
-        nameList.add(ownerName);
-        //End enhancement
+        return ownerName;
+    }
 
+    /**
+     * Read the "name,contactId" entries of all contacts with a phone number,
+     * without the owner entry, in the requested order.
+     */
+    final ArrayList<String> queryPhonebookNameList(final int orderByWhat) {
+        ArrayList<String> nameList = new ArrayList<String>();
         final Uri myUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
         Cursor contactCursor = null;
         try {
@@ -405,16 +387,7 @@ public class BluetoothPbapVcardManager {
                 }
         });
 
-        //Owner vCard enhancement. Use "ME" profile if configured
-        String ownerName = null;
-        if (BluetoothPbapConfig.useProfileForOwnerVcard()) {
-            ownerName = BluetoothPbapUtils.getProfileName(mContext);
-        }
-        if (ownerName == null || ownerName.length()==0) {
-            ownerName = BluetoothPbapService.getLocalPhoneName();
-        }
-        nameList.add(ownerName);
-        //End enhancement
+        nameList.add(getOwnerName());
 
         final Uri myUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
         Cursor contactCursor = null;
@@ -469,45 +442,57 @@ public class BluetoothPbapVcardManager {
         return nameList;
     }
 
+    /**
+     * Search a phonebook name list for a vCard listing through the phonebook
+     * index, collecting the matching handles and names.
+     *
+     * @return the size of the searched name list, or -1 when the index is not
+     *         running and the caller has to search the name list itself
+     */
+    public final int searchPhonebookIndex(boolean sim, int orderByWhat, boolean byNumber,
+            String searchValue, ArrayList<Integer> handles, ArrayList<String> names) {
+        BluetoothPbapPhonebookIndex index = BluetoothPbapPhonebookIndex.getInstance();
+        if (index == null) return -1;
+        if (byNumber) {
+            return index.searchByNumber(this, sim, orderByWhat, searchValue, handles, names);
+        }
+        return index.searchByName(this, sim, orderByWhat, searchValue, handles, names);
+    }
+
     public final ArrayList<String> getSIMContactNamesByNumber(final String phoneNumber) {
+        BluetoothPbapPhonebookIndex index = BluetoothPbapPhonebookIndex.getInstance();
+        if (index != null) {
+            return index.getSIMContactNamesByNumber(this, phoneNumber);
+        }
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<String> numbers = new ArrayList<String>();
+        querySIMPhonebook(names, numbers);
+        return matchSIMNamesByNumber(names, numbers, phoneNumber);
+    }
+
+    /**
+     * Names of the SIM contacts whose number ends with phoneNumber, followed by
+     * the names of those whose number only starts with it.
+     */
+    static ArrayList<String> matchSIMNamesByNumber(ArrayList<String> names,
+            ArrayList<String> numbers, final String phoneNumber) {
         ArrayList<String> nameList = new ArrayList<String>();
         ArrayList<String> startNameList = new ArrayList<String>();
-        Cursor contactCursor = null;
-        final Uri uri = Uri.parse(SIM_URI);
-
-        try {
-            contactCursor = mResolver.query(uri, SIM_PROJECTION, null, null, null);
-
-            if (contactCursor != null) {
-                for (contactCursor.moveToFirst(); !contactCursor.isAfterLast(); contactCursor
-                        .moveToNext()) {
-                    String number = contactCursor.getString(SIM_NUMBER_COLUMN_INDEX);
-                    if (number == null) {
-                        if (V) Log.v(TAG, "number is null");
-                        continue;
-                    }
-
-                    if (V) Log.v(TAG, "number: " + number + " phoneNumber:" + phoneNumber);
-                    if ((number.endsWith(phoneNumber)) || (number.startsWith(phoneNumber))) {
-                        String name = contactCursor.getString(SIM_NAME_COLUMN_INDEX);
-                        if (TextUtils.isEmpty(name)) {
-                            name = mContext.getString(android.R.string.unknownName);
-                        }
-                        if (V) Log.v(TAG, "got name " + name + " by number " + phoneNumber);
-
-                        if (number.endsWith(phoneNumber)) {
-                            if (V) Log.v(TAG, "Adding to end name list");
-                            nameList.add(name);
-                        } else {
-                            if (V) Log.v(TAG, "Adding to start name list");
-                            startNameList.add(name);
-                        }
-                    }
-                }
+        final int size = names.size();
+        for (int i = 0; i < size; i++) {
+            String number = numbers.get(i);
+            if (number == null) {
+                if (V) Log.v(TAG, "number is null");
+                continue;
             }
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
+
+            if (V) Log.v(TAG, "number: " + number + " phoneNumber:" + phoneNumber);
+            if (number.endsWith(phoneNumber)) {
+                if (V) Log.v(TAG, "Adding to end name list");
+                nameList.add(names.get(i));
+            } else if (number.startsWith(phoneNumber)) {
+                if (V) Log.v(TAG, "Adding to start name list");
+                startNameList.add(names.get(i));
             }
         }
         int startListSize = startNameList.size();
@@ -519,7 +504,12 @@ public class BluetoothPbapVcardManager {
 
         return nameList;
     }
+
     public final ArrayList<String> getContactNamesByNumber(final String phoneNumber) {
+        BluetoothPbapPhonebookIndex index = BluetoothPbapPhonebookIndex.getInstance();
+        if (index != null) {
+            return index.getContactNamesByNumber(this, phoneNumber);
+        }
         ArrayList<String> nameList = new ArrayList<String>();
         ArrayList<String> tempNameList = new ArrayList<String>();
 
@@ -568,43 +558,6 @@ public class BluetoothPbapVcardManager {
         return nameList;
     }
 
-    public byte[] getCallHistoryPrimaryFolderVersion(final int type) {
-        final Uri myUri = CallLog.Calls.CONTENT_URI;
-        String selection = BluetoothPbapObexServer.createSelectionPara(type);
-        selection = selection + " AND date >= " + LAST_FETCHED_TIME_STAMP;
-
-        Log.d(TAG,"LAST_FETCHED_TIME_STAMP is "+LAST_FETCHED_TIME_STAMP);
-        Cursor callCursor = null;
-        long count = 0;
-        long primaryVcMsb = 0;
-        ArrayList<String> list = new ArrayList<String>();
-        try {
-            callCursor = mResolver.query(myUri, null, selection, null,
-                    null);
-            while ( callCursor  != null && callCursor.moveToNext()) {
-                count = count +1;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "exception while fetching callHistory pvc");
-        } finally {
-            if (callCursor != null) {
-                callCursor.close();
-                callCursor = null;
-            }
-        }
-
-        LAST_FETCHED_TIME_STAMP = System.currentTimeMillis();
-        Log.d(TAG,"getCallHistoryPrimaryFolderVersion count is "+ count
-                +" type is " + type);
-        ByteBuffer pvc = ByteBuffer.allocate(16);
-        pvc.putLong(primaryVcMsb);
-        Log.d(TAG,"BluetoothPbapService.primaryVersionCounter is "+
-        BluetoothPbapService.primaryVersionCounter);
-        pvc.putLong(count);
-        return pvc.array();
-    }
-
-
     public final int composeAndSendCallLogVcards(final int type, Operation op,
             final int startPoint, final int endPoint, final boolean vcardType21,
             boolean ignorefilter, byte[] filter) {
@@ -784,6 +737,7 @@ public class BluetoothPbapVcardManager {
         final Uri myUri = Uri.parse(SIM_URI);
         BluetoothPbapSIMvCardComposer composer = null;
         HandlerForStringBuffer buffer = null;
+        boolean flushed = true;
             try {
                 composer = new BluetoothPbapSIMvCardComposer(mContext);
                 buffer = new HandlerForStringBuffer(op, ownerVCard);
@@ -812,9 +766,12 @@ public class BluetoothPbapVcardManager {
                     composer.terminate();
                 }
                 if (buffer != null) {
-                    buffer.onTerminate();
+                    flushed = buffer.onTerminate();
                 }
             }
+            if (!flushed) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
 
         return ResponseCodes.OBEX_HTTP_OK;
     }
@@ -913,7 +870,7 @@ public class BluetoothPbapVcardManager {
     /**
      * Handler enterprise contact id in VCardComposer
      */
-    private static class EnterpriseRawContactEntitlesInfoCallback implements
+    static class EnterpriseRawContactEntitlesInfoCallback implements
             VCardComposer.RawContactEntitlesInfoCallback {
         @Override
         public VCardComposer.RawContactEntitlesInfo getRawContactEntitlesInfo(long contactId) {
@@ -936,6 +893,7 @@ public class BluetoothPbapVcardManager {
 
         BluetoothPbapSIMvCardComposer composer = null;
         HandlerForStringBuffer buffer = null;
+        boolean flushed = true;
             try {
                 composer = new BluetoothPbapSIMvCardComposer(mContext);
                 buffer = new HandlerForStringBuffer(op, ownerVCard);
@@ -966,9 +924,12 @@ public class BluetoothPbapVcardManager {
                     composer.terminate();
                 }
                 if (buffer != null) {
-                    buffer.onTerminate();
+                    flushed = buffer.onTerminate();
                 }
             }
+            if (!flushed) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
 
         return ResponseCodes.OBEX_HTTP_OK;
     }
@@ -980,9 +941,11 @@ public class BluetoothPbapVcardManager {
         if (V) timestamp = System.currentTimeMillis();
 
         VCardComposer composer = null;
+        BluetoothPbapComposePipeline pipeline = null;
         VCardFilter vcardfilter = new VCardFilter(ignorefilter ? null : filter);
 
         HandlerForStringBuffer buffer = null;
+        boolean flushed = true;
         try {
             // Currently only support Generic Vcard 2.1 and 3.0
             int vcardType;
@@ -995,53 +958,99 @@ public class BluetoothPbapVcardManager {
                 vcardType |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
             }
 
-            // Enhancement: customize Vcard based on preferences/settings and
-            // input from caller
-            composer = BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType, null);
-            // End enhancement
+            // Contacts unchanged since an earlier pull are streamed from the vCard cache and
+            // only the others go through the composer, which sees them in the same order.
+            BluetoothPbapVcardCache cache = BluetoothPbapVcardCache.getInstance(mContext);
+            String bucket = null;
+            HashMap<Long, Long> lastUpdated = null;
+            boolean[] cachedRows = null;
+            Cursor composeCursor = contactIdCursor;
+            if (cache != null && contactIdCursor.getCount() > 0) {
+                bucket = BluetoothPbapVcardCache.getBucket(getComposedVCardType(vcardType),
+                        ignorefilter ? null : filter);
+                lastUpdated = getContactsLastUpdated(contactIdCursor);
+                cachedRows = new boolean[contactIdCursor.getCount()];
+                composeCursor = filterUncachedContacts(contactIdCursor, cache, bucket,
+                        lastUpdated, cachedRows);
+            }
 
-            // BT does want PAUSE/WAIT conversion while it doesn't want the
-            // other formatting
-            // done by vCard library by default.
-            composer.setPhoneNumberTranslationCallback(new VCardPhoneNumberTranslationCallback() {
-                public String onValueReceived(String rawValue, int type, String label,
-                        boolean isPrimary) {
-                    // 'p' and 'w' are the standard characters for pause and
-                    // wait
-                    // (see RFC 3601)
-                    // so use those when exporting phone numbers via vCard.
-                    String numberWithControlSequence = rawValue
-                            .replace(PhoneNumberUtils.PAUSE, 'p').replace(PhoneNumberUtils.WAIT,
-                                    'w');
-                    return numberWithControlSequence;
-                }
-            });
             buffer = new HandlerForStringBuffer(op, ownerVCard);
             Log.v(TAG, "contactIdCursor size: " + contactIdCursor.getCount());
-            if (!composer.initWithCallback(contactIdCursor,
-                    new EnterpriseRawContactEntitlesInfoCallback())
-                    || !buffer.onInit(mContext)) {
+            if (BluetoothPbapComposePipeline.isWorthwhile(composeCursor.getCount())) {
+                // Large pulls are composed on worker threads while this thread sends
+                pipeline = new BluetoothPbapComposePipeline(this, getContactIds(composeCursor),
+                        vcardType, vcardType21, ignorefilter ? null : filter);
+                pipeline.start();
+            } else if (cachedRows != null && composeCursor.getCount() == 0) {
+                if (V) Log.v(TAG, "All vCards are cached");
+            } else {
+                composer = createPhonebookComposer(vcardType);
+                if (!composer.initWithCallback(composeCursor,
+                        new EnterpriseRawContactEntitlesInfoCallback())) {
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+            }
+            if (!buffer.onInit(mContext)) {
                 return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
             }
 
-            while (!composer.isAfterLast()) {
+            // Walk the contact ids unless the composer alone produces every entry
+            final boolean perContact = cachedRows != null || pipeline != null;
+            final int idColumn = contactIdCursor.getColumnIndex(Phone.CONTACT_ID);
+            if (perContact) contactIdCursor.moveToPosition(-1);
+            while (perContact ? contactIdCursor.moveToNext() : !composer.isAfterLast()) {
                 if (BluetoothPbapObexServer.sIsAborted) {
                     ((ServerOperation) op).isAborted = true;
                     BluetoothPbapObexServer.sIsAborted = false;
                     break;
                 }
-                String vcard = composer.createOneEntry();
-                if (vcard == null) {
-                    Log.e(TAG,
-                            "Failed to read a contact. Error reason: " + composer.getErrorReason());
-                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                String vcard = null;
+                long contactId = -1;
+                Long updated = null;
+                if (cachedRows != null) {
+                    contactId = contactIdCursor.getLong(idColumn);
+                    updated = lastUpdated.get(contactId);
+                    if (cachedRows[contactIdCursor.getPosition()]) {
+                        vcard = cache.get(bucket, contactId, updated);
+                        if (vcard == null) {
+                            // Evicted since it was looked up, compose it on its own
+                            vcard = composeOneContact(contactId, vcardType);
+                            if (vcard == null) return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                            vcard = vcardfilter.apply(vcard, vcardType21, true);
+                            cache.put(bucket, contactId, updated, vcard);
+                        }
+                    }
                 }
-                if (V) Log.v(TAG, "vCard from composer: " + vcard);
+                if (vcard == null && pipeline != null) {
+                    vcard = pipeline.next();
+                    if (vcard == null) {
+                        if (BluetoothPbapObexServer.sIsAborted) {
+                            ((ServerOperation) op).isAborted = true;
+                            BluetoothPbapObexServer.sIsAborted = false;
+                            break;
+                        }
+                        return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                    }
+                    if (updated != null) {
+                        cache.put(bucket, contactId, updated, vcard);
+                    }
+                } else if (vcard == null) {
+                    vcard = composer.createOneEntry();
+                    if (vcard == null) {
+                        Log.e(TAG,
+                            "Failed to read a contact. Error reason: " + composer.getErrorReason());
+                        return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                    }
+                    if (V) Log.v(TAG, "vCard from composer: " + vcard);
 
-                vcard = vcardfilter.apply(vcard, vcardType21);
-                vcard = StripTelephoneNumber(vcard);
+                    vcard = vcardfilter.apply(vcard, vcardType21, true);
 
-                if (V) Log.v(TAG, "vCard after cleanup: " + vcard);
+                    if (V) Log.v(TAG, "vCard after cleanup: " + vcard);
+
+                    if (updated != null) {
+                        cache.put(bucket, contactId, updated, vcard);
+                    }
+                }
 
                 if (!buffer.onEntryCreated(vcard)) {
                     // onEntryCreate() already emits error.
@@ -1049,13 +1058,19 @@ public class BluetoothPbapVcardManager {
                 }
             }
         } finally {
+            if (pipeline != null) {
+                pipeline.cancel();
+            }
             if (composer != null) {
                 composer.terminate();
             }
             if (buffer != null) {
-                buffer.onTerminate();
+                flushed = buffer.onTerminate();
             }
         }
+        if (!flushed) {
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
 
         if (V) Log.v(TAG, "Total vcard composing and sending out takes "
                     + (System.currentTimeMillis() - timestamp) + " ms");
@@ -1063,6 +1078,133 @@ public class BluetoothPbapVcardManager {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    private static long[] getContactIds(Cursor contactIdCursor) {
+        final int idColumn = contactIdCursor.getColumnIndex(Phone.CONTACT_ID);
+        long[] contactIds = new long[contactIdCursor.getCount()];
+        contactIdCursor.moveToPosition(-1);
+        while (contactIdCursor.moveToNext()) {
+            contactIds[contactIdCursor.getPosition()] = contactIdCursor.getLong(idColumn);
+        }
+        return contactIds;
+    }
+
+    /* Also used by BluetoothPbapComposePipeline workers, one composer each */
+    VCardComposer createPhonebookComposer(int vcardType) {
+        // Enhancement: customize Vcard based on preferences/settings and
+        // input from caller
+        VCardComposer composer =
+                BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType, null);
+        // End enhancement
+
+        // BT does want PAUSE/WAIT conversion while it doesn't want the
+        // other formatting
+        // done by vCard library by default.
+        composer.setPhoneNumberTranslationCallback(new VCardPhoneNumberTranslationCallback() {
+            public String onValueReceived(String rawValue, int type, String label,
+                    boolean isPrimary) {
+                // 'p' and 'w' are the standard characters for pause and
+                // wait
+                // (see RFC 3601)
+                // so use those when exporting phone numbers via vCard.
+                String numberWithControlSequence = rawValue
+                        .replace(PhoneNumberUtils.PAUSE, 'p').replace(PhoneNumberUtils.WAIT,
+                                'w');
+                return numberWithControlSequence;
+            }
+        });
+        return composer;
+    }
+
+    /* The vCard type createFilteredVCardComposer() ends up composing with */
+    private static int getComposedVCardType(int vcardType) {
+        if (!BluetoothPbapConfig.includePhotosInVcard()) {
+            vcardType |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
+        }
+        return vcardType;
+    }
+
+    private String composeOneContact(long contactId, int vcardType) {
+        MatrixCursor contactIdCursor = new MatrixCursor(new String[] {
+            Phone.CONTACT_ID
+        });
+        contactIdCursor.addRow(new Long[] {contactId});
+        VCardComposer composer = createPhonebookComposer(vcardType);
+        try {
+            if (!composer.initWithCallback(contactIdCursor,
+                    new EnterpriseRawContactEntitlesInfoCallback())) {
+                return null;
+            }
+            String vcard = composer.createOneEntry();
+            if (vcard == null) {
+                Log.e(TAG, "Failed to read a contact. Error reason: " + composer.getErrorReason());
+            }
+            return vcard;
+        } finally {
+            composer.terminate();
+        }
+    }
+
+    /**
+     * Look up CONTACT_LAST_UPDATED_TIMESTAMP of the contacts in contactIdCursor.
+     * Contacts that are not found, such as enterprise ones, are left out and
+     * never cached.
+     */
+    private HashMap<Long, Long> getContactsLastUpdated(Cursor contactIdCursor) {
+        HashMap<Long, Long> lastUpdated = new HashMap<Long, Long>(contactIdCursor.getCount() * 2);
+        final int idColumn = contactIdCursor.getColumnIndex(Phone.CONTACT_ID);
+        StringBuilder selection = new StringBuilder(Contacts._ID).append(" IN (");
+        contactIdCursor.moveToPosition(-1);
+        while (contactIdCursor.moveToNext()) {
+            if (contactIdCursor.getPosition() > 0) selection.append(',');
+            selection.append(contactIdCursor.getLong(idColumn));
+        }
+        selection.append(')');
+
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(Contacts.CONTENT_URI, CONTACTS_LAST_UPDATED_PROJECTION,
+                    selection.toString(), null, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    lastUpdated.put(cursor.getLong(0), cursor.getLong(1));
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Exception while getting contacts last updated time", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return lastUpdated;
+    }
+
+    /**
+     * Mark the rows of contactIdCursor whose vCard is cached in cachedRows and
+     * return a cursor of the remaining contact ids, in the same order.
+     */
+    private static Cursor filterUncachedContacts(Cursor contactIdCursor,
+            BluetoothPbapVcardCache cache, String bucket, HashMap<Long, Long> lastUpdated,
+            boolean[] cachedRows) {
+        final int idColumn = contactIdCursor.getColumnIndex(Phone.CONTACT_ID);
+        final MatrixCursor uncached = new MatrixCursor(new String[] {
+            Phone.CONTACT_ID
+        });
+        contactIdCursor.moveToPosition(-1);
+        while (contactIdCursor.moveToNext()) {
+            long contactId = contactIdCursor.getLong(idColumn);
+            Long updated = lastUpdated.get(contactId);
+            if (updated != null && cache.contains(bucket, contactId, updated)) {
+                cachedRows[contactIdCursor.getPosition()] = true;
+            } else {
+                uncached.addRow(new Long[] {contactId});
+            }
+        }
+        if (V) Log.v(TAG, "Composing " + uncached.getCount() + " of "
+                + contactIdCursor.getCount() + " vCards");
+        return uncached;
+    }
+
     public final int composeContactsAndSendSelectedVCards(Operation op, final Cursor
         contactIdCursor, final boolean vcardType21, String ownerVCard, int needSendBody, int pbSize,
             boolean ignorefilter, byte[] filter, byte[] selector, String vcardselectorop,
@@ -1075,6 +1217,7 @@ public class BluetoothPbapVcardManager {
         PropertySelector vcardselector = new PropertySelector(selector);
 
         HandlerForStringBuffer buffer = null;
+        boolean flushed = true;
 
         try {
             // Currently only support Generic Vcard 2.1 and 3.0
@@ -1141,8 +1284,7 @@ public class BluetoothPbapVcardManager {
                 Log.e(TAG, "vcard selector check pass");
 
                 if(needSendBody == NEED_SEND_BODY){
-                    vcard = vcardfilter.apply(vcard, vcardType21);
-                    vcard = StripTelephoneNumber(vcard);
+                    vcard = vcardfilter.apply(vcard, vcardType21, true);
 
                     if (V) Log.v(TAG, "vCard after cleanup: " + vcard);
 
@@ -1160,9 +1302,12 @@ public class BluetoothPbapVcardManager {
                 composer.terminate();
             }
             if (buffer != null) {
-                buffer.onTerminate();
+                flushed = buffer.onTerminate();
             }
         }
+        if (!flushed) {
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
 
         if (V) Log.v(TAG, "Total vcard composing and sending out takes "
                     + (System.currentTimeMillis() - timestamp) + " ms");
@@ -1178,6 +1323,7 @@ public class BluetoothPbapVcardManager {
 
         BluetoothPbapCallLogComposer composer = null;
         HandlerForStringBuffer buffer = null;
+        boolean flushed = true;
         try {
 
             composer = new BluetoothPbapCallLogComposer(mContext);
@@ -1211,9 +1357,12 @@ public class BluetoothPbapVcardManager {
                 composer.terminate();
             }
             if (buffer != null) {
-                buffer.onTerminate();
+                flushed = buffer.onTerminate();
             }
         }
+        if (!flushed) {
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
 
         if (V) Log.v(TAG, "Total vcard composing and sending out takes "
                 + (System.currentTimeMillis() - timestamp) + " ms");
@@ -1228,6 +1377,7 @@ public class BluetoothPbapVcardManager {
 
         BluetoothPbapCallLogComposer composer = null;
         HandlerForStringBuffer buffer = null;
+        boolean flushed = true;
 
         try {
 
@@ -1280,9 +1430,12 @@ public class BluetoothPbapVcardManager {
                 composer.terminate();
             }
             if (buffer != null) {
-                buffer.onTerminate();
+                flushed = buffer.onTerminate();
             }
         }
+        if (!flushed) {
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
 
         if (V) Log.v(TAG, "Total vcard composing and sending out takes "
                 + (System.currentTimeMillis() - timestamp) + " ms");
@@ -1290,22 +1443,7 @@ public class BluetoothPbapVcardManager {
     }
 
     public String StripTelephoneNumber (String vCard){
-        String attr [] = vCard.split(System.getProperty("line.separator"));
-        String Vcard = "";
-            for (int i=0; i < attr.length; i++) {
-                if(attr[i].startsWith("TEL")) {
-                    attr[i] = attr[i].replace("(", "");
-                    attr[i] = attr[i].replace(")", "");
-                    attr[i] = attr[i].replace("-", "");
-                    attr[i] = attr[i].replace(" ", "");
-                }
-            }
-
-            for (int i=0; i < attr.length; i++) {
-                if(!attr[i].equals("")){
-                    Vcard = Vcard.concat(attr[i] + "\n");
-                }
-            }
+        String Vcard = new VCardFilter(null).apply(vCard, false, true);
         if (V) Log.v(TAG, "Vcard with stripped telephone no.: " + Vcard);
         return Vcard;
     }
@@ -1319,6 +1457,8 @@ public class BluetoothPbapVcardManager {
 
         private OutputStream outputStream;
 
+        private BluetoothPbapObexWriter writer;
+
         private String phoneOwnVCard = null;
 
         public HandlerForStringBuffer(Operation op, String ownerVCard) {
@@ -1333,7 +1473,7 @@ public class BluetoothPbapVcardManager {
         private boolean write(String vCard) {
             try {
                 if (vCard != null) {
-                    outputStream.write(vCard.getBytes());
+                    writer.write(vCard);
                     return true;
                 }
             } catch (IOException e) {
@@ -1345,6 +1485,7 @@ public class BluetoothPbapVcardManager {
         public boolean onInit(Context context) {
             try {
                 outputStream = operation.openOutputStream();
+                writer = new BluetoothPbapObexWriter(outputStream, operation.getMaxPacketSize());
                 if (phoneOwnVCard != null) {
                     return write(phoneOwnVCard);
                 }
@@ -1359,12 +1500,26 @@ public class BluetoothPbapVcardManager {
             return write(vcard);
         }
 
-        public void onTerminate() {
+        /**
+         * Send what the writer still holds and close the stream.
+         * @return false if the held data could not be sent
+         */
+        public boolean onTerminate() {
+            boolean flushed = true;
+            if (writer != null) {
+                try {
+                    writer.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "flush outputstrem failed" + e.toString());
+                    flushed = false;
+                }
+            }
             if (!BluetoothPbapObexServer.closeStream(outputStream, operation)) {
                 if (V) Log.v(TAG, "CloseStream failed!");
             } else {
                 if (V) Log.v(TAG, "CloseStream ok!");
             }
+            return flushed;
         }
     }
 
@@ -1397,8 +1552,33 @@ public class BluetoothPbapVcardManager {
         }
 
         private static final String SEPARATOR = System.getProperty("line.separator");
+        private static final String TEL_PROP = "TEL";
+
+        /* Filter bits by the first character of their property name */
+        private static final FilterBit[][] BITS_BY_FIRST_CHAR = new FilterBit[128][];
+        static {
+            for (FilterBit bit : FilterBit.values()) {
+                char c = bit.prop.charAt(0);
+                FilterBit[] bits = BITS_BY_FIRST_CHAR[c];
+                if (bits == null) {
+                    bits = new FilterBit[] { bit };
+                } else {
+                    bits = Arrays.copyOf(bits, bits.length + 1);
+                    bits[bits.length - 1] = bit;
+                }
+                BITS_BY_FIRST_CHAR[c] = bits;
+            }
+        }
+
         private final byte[] filter;
 
+        /* isFilteredIn() per FilterBit ordinal, for vCard 2.1 and 3.0 */
+        private final boolean[] filteredIn21;
+        private final boolean[] filteredIn30;
+
+        /* Reused across entries of one pull */
+        private final StringBuilder mOut = new StringBuilder(1024);
+
         //This function returns true if the attributes needs to be included in the filtered vcard.
         private boolean isFilteredIn(FilterBit bit, boolean vCardType21) {
             final int offset = (bit.pos / 8) + 1;
@@ -1409,8 +1589,15 @@ public class BluetoothPbapVcardManager {
             return ((filter[filter.length - offset] >> bit_pos) & 0x01) != 0;
         }
 
-        VCardFilter(byte[] filter) {
+        public VCardFilter(byte[] filter) {
             this.filter = filter;
+            FilterBit[] bits = FilterBit.values();
+            filteredIn21 = new boolean[bits.length];
+            filteredIn30 = new boolean[bits.length];
+            for (FilterBit bit : bits) {
+                filteredIn21[bit.ordinal()] = isFilteredIn(bit, true);
+                filteredIn30[bit.ordinal()] = isFilteredIn(bit, false);
+            }
         }
 
         public boolean isPhotoEnabled() {
@@ -1418,43 +1605,85 @@ public class BluetoothPbapVcardManager {
         }
 
         public String apply(String vCard, boolean vCardType21){
-            if (filter == null) return vCard;
-            String lines[] = vCard.split(SEPARATOR);
-            StringBuilder filteredVCard = new StringBuilder();
-            boolean filteredIn = false;
+            return apply(vCard, vCardType21, false);
+        }
 
-            for (String line : lines) {
-                // Check whether the current property is changing (ignoring multi-line properties)
-                // and determine if the current property is filtered in.
-                if (!Character.isWhitespace(line.charAt(0)) && !line.startsWith("=")) {
-                    String currentProp = line.split("[;:]")[0];
-                    filteredIn = true;
+        /**
+         * Filter the properties of a composed vCard and optionally strip the
+         * formatting characters from TEL lines, in one pass over the vCard.
+         * With stripTelephoneNumber, empty lines are dropped and lines end with
+         * "\n", as StripTelephoneNumber() does.
+         */
+        public String apply(String vCard, boolean vCardType21, boolean stripTelephoneNumber) {
+            if (filter == null && !stripTelephoneNumber) return vCard;
+            final boolean[] filteredInBits = vCardType21 ? filteredIn21 : filteredIn30;
+            final String lineEnd = stripTelephoneNumber ? "\n" : SEPARATOR;
+            final int length = vCard.length();
+            final StringBuilder out = mOut;
+            out.setLength(0);
+            boolean filteredIn = false;
 
-                    for (FilterBit bit : FilterBit.values()) {
-                        if (bit.prop.equals(currentProp)) {
-                            if (V) Log.v(TAG, "Checking filter values for " + currentProp);
-                            filteredIn = isFilteredIn(bit, vCardType21);
-                            break;
+            int start = 0;
+            while (start < length) {
+                int end = vCard.indexOf(SEPARATOR, start);
+                if (end < 0) end = length;
+                if (end > start) {
+                    char first = vCard.charAt(start);
+                    // Check whether the current property is changing (ignoring multi-line
+                    // properties) and determine if the current property is filtered in.
+                    if (!Character.isWhitespace(first) && first != '=') {
+                        int propEnd = start;
+                        while (propEnd < end) {
+                            char c = vCard.charAt(propEnd);
+                            if (c == ';' || c == ':') break;
+                            propEnd++;
                         }
+                        filteredIn = isPropertyFilteredIn(vCard, start, propEnd - start,
+                                filteredInBits);
                     }
 
-                    // Since PBAP does not have filter bits for IM and SIP,
-                    // exclude them by default. Easiest way is to exclude all
-                    // X- fields, except date time....
-                    if (currentProp.startsWith("X-")) {
-                        if (!(filteredIn && currentProp.equals("X-IRMC-CALL-DATETIME")))
-                            filteredIn = false;
+                    // Build filtered vCard
+                    if (filteredIn) {
+                        if (stripTelephoneNumber && vCard.startsWith(TEL_PROP, start)) {
+                            for (int i = start; i < end; i++) {
+                                char c = vCard.charAt(i);
+                                if (c != '(' && c != ')' && c != '-' && c != ' ') out.append(c);
+                            }
+                        } else {
+                            out.append(vCard, start, end);
+                        }
+                        out.append(lineEnd);
                     }
                 }
-
-                // Build filtered vCard
-                if (filteredIn) {
-                    if (V) Log.v(TAG, "Appending" + line + " to the filtered vcard");
-                    filteredVCard.append(line + SEPARATOR);
+                start = end + SEPARATOR.length();
+            }
+            return out.toString();
+        }
+
+        private boolean isPropertyFilteredIn(String vCard, int start, int length,
+                boolean[] filteredInBits) {
+            if (filter == null) return true;
+            boolean filteredIn = true;
+            boolean isDateTime = false;
+            char first = length > 0 ? vCard.charAt(start) : 0;
+            FilterBit[] bits = first < BITS_BY_FIRST_CHAR.length ? BITS_BY_FIRST_CHAR[first] : null;
+            if (bits != null) {
+                for (FilterBit bit : bits) {
+                    if (bit.prop.length() == length
+                            && vCard.regionMatches(start, bit.prop, 0, length)) {
+                        filteredIn = filteredInBits[bit.ordinal()];
+                        isDateTime = bit == FilterBit.DATETIME;
+                        break;
+                    }
                 }
             }
-
-            return filteredVCard.toString();
+            // Since PBAP does not have filter bits for IM and SIP,
+            // exclude them by default. Easiest way is to exclude all
+            // X- fields, except date time....
+            if (length >= 2 && first == 'X' && vCard.charAt(start + 1) == '-' && !isDateTime) {
+                filteredIn = false;
+            }
+            return filteredIn;
         }
     }
 
@@ -1598,6 +1827,7 @@ public class BluetoothPbapVcardManager {
         final int contactIdColumn = cursor.getColumnIndex(Data.CONTACT_ID);
         final int idColumn = cursor.getColumnIndex(Data._ID);
         final int nameColumn = cursor.getColumnIndex(Data.DISPLAY_NAME);
+        HashSet<String> distinct = new HashSet<String>(resultList);
         cursor.moveToPosition(-1);
         while (cursor.moveToNext()) {
             final long contactId = cursor.getLong(contactIdColumn != -1 ? contactIdColumn : idColumn);
@@ -1607,7 +1837,7 @@ public class BluetoothPbapVcardManager {
             }
 
             String newString = displayName + "," + contactId;
-            if (!resultList.contains(newString)) {
+            if (distinct.add(newString)) {
                 resultList.add(newString);
             }
         }
@@ -0,0 +1,513 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keeps the PBAP folder version counters and database identifier across
+ * sessions and reboots so a PCE can tell whether it needs to resync.
+ *
+ * The journal persists a snapshot of every contact's last updated time and a
+ * hash of the properties the secondary version counter covers (N, FN, TEL
+ * and EMAIL), plus the newest call log id. Change notifications and each
+ * counter read diff the providers against that snapshot:
+ * <ul>
+ * <li>any contact change bumps the primary counter,</li>
+ * <li>name, number or email changes, additions and deletions bump the
+ *     secondary counter,</li>
+ * <li>deletions, and additions that do not sort last, shift the contact id
+ *     ordered vCard handles and so renew the database identifier,</li>
+ * <li>new calls bump the counter of their call history folder and of cch,
+ *     removed calls bump all call history counters.</li>
+ * </ul>
+ */
+public class BluetoothPbapVersionJournal {
+    private static final String TAG = "BluetoothPbapVersionJournal";
+
+    private static final boolean V = Log.isLoggable(BluetoothPbapService.LOG_TAG, Log.VERBOSE);
+
+    private static final String JOURNAL_FILE = "pbap_version_journal";
+
+    private static final int JOURNAL_FORMAT = 1;
+
+    private static final int MAX_EVENTS = 64;
+
+    private static final long SYNC_DELAY_MS = 500;
+
+    private static final int MSG_SYNC = 1;
+
+    private static final String[] CONTACTS_PROJECTION = new String[] {
+            Contacts._ID, // 0
+            Contacts.CONTACT_LAST_UPDATED_TIMESTAMP, // 1
+    };
+
+    private static final String[] DATA_PROJECTION = new String[] {
+            Data.CONTACT_ID, // 0
+            Data.MIMETYPE, // 1
+            Data.DATA1, // 2
+    };
+
+    private static final String SECONDARY_MIMETYPES_SELECTION = Data.MIMETYPE + " IN ('"
+            + StructuredName.CONTENT_ITEM_TYPE + "','" + Phone.CONTENT_ITEM_TYPE + "','"
+            + Email.CONTENT_ITEM_TYPE + "')";
+
+    private static final String[] CALLS_PROJECTION = new String[] {
+            Calls._ID, // 0
+            Calls.TYPE, // 1
+    };
+
+    /* Call history folders, indexed by ContentType - INCOMING_CALL_HISTORY */
+    private static final int[] CALL_HISTORY_TYPES = new int[] {
+            BluetoothPbapObexServer.ContentType.INCOMING_CALL_HISTORY,
+            BluetoothPbapObexServer.ContentType.OUTGOING_CALL_HISTORY,
+            BluetoothPbapObexServer.ContentType.MISSED_CALL_HISTORY,
+            BluetoothPbapObexServer.ContentType.COMBINED_CALL_HISTORY,
+    };
+
+    private final Context mContext;
+
+    private final ContentResolver mResolver;
+
+    private final File mFile;
+
+    private HandlerThread mThread;
+
+    private Handler mHandler;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mDirty = true;
+            // Coalesce the notification bursts of a contact edit or sync
+            if (mHandler != null && !mHandler.hasMessages(MSG_SYNC)) {
+                mHandler.sendEmptyMessageDelayed(MSG_SYNC, SYNC_DELAY_MS);
+            }
+        }
+    };
+
+    private volatile boolean mDirty = true;
+
+    private long mDatabaseIdentifier;
+
+    private long mPrimaryVersion;
+
+    private long mSecondaryVersion;
+
+    private final long[] mCallHistoryVersions = new long[CALL_HISTORY_TYPES.length];
+
+    private long mLastCallId = -1;
+
+    private int mCallCount;
+
+    /* Last updated time and secondary property hash by contact id */
+    private HashMap<Long, long[]> mContacts = new HashMap<Long, long[]>();
+
+    private final LinkedList<String> mEvents = new LinkedList<String>();
+
+    public BluetoothPbapVersionJournal(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mFile = new File(context.getFilesDir(), JOURNAL_FILE);
+    }
+
+    public synchronized void start() {
+        if (mThread != null) return;
+        if (!load()) {
+            mDatabaseIdentifier = System.currentTimeMillis();
+            addEvent("new database identifier " + mDatabaseIdentifier);
+        }
+        mDirty = true;
+        mThread = new HandlerThread("BluetoothPbapVersionJournal");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_SYNC) sync();
+            }
+        };
+        try {
+            mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true, mObserver);
+            mResolver.registerContentObserver(Calls.CONTENT_URI, true, mObserver);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to register content observer: " + e);
+        }
+        // Catch up with changes made while the service was not running
+        mHandler.sendEmptyMessage(MSG_SYNC);
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) return;
+        try {
+            mResolver.unregisterContentObserver(mObserver);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Illegal state exception, content observer is not registered");
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+    }
+
+    public synchronized long getDatabaseIdentifier() {
+        sync();
+        return mDatabaseIdentifier;
+    }
+
+    public synchronized byte[] getPhonebookPrimaryVersion() {
+        sync();
+        return toVersionCounter(mPrimaryVersion);
+    }
+
+    public synchronized byte[] getPhonebookSecondaryVersion() {
+        sync();
+        return toVersionCounter(mSecondaryVersion);
+    }
+
+    /** Version counter of the call history folder of ContentType type */
+    public synchronized byte[] getCallHistoryVersion(int type) {
+        sync();
+        for (int i = 0; i < CALL_HISTORY_TYPES.length; i++) {
+            if (CALL_HISTORY_TYPES[i] == type) return toVersionCounter(mCallHistoryVersions[i]);
+        }
+        return toVersionCounter(0);
+    }
+
+    /* 128 bit counter, the upper 64 bits stay zero */
+    private static byte[] toVersionCounter(long version) {
+        ByteBuffer counter = ByteBuffer.allocate(16);
+        counter.putLong(0);
+        counter.putLong(version);
+        return counter.array();
+    }
+
+    private synchronized void sync() {
+        if (!mDirty) return;
+        mDirty = false;
+        long start = System.currentTimeMillis();
+        boolean changed = syncContacts();
+        changed |= syncCallLog();
+        if (changed) save();
+        if (V) Log.v(TAG, "Journal sync took " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private boolean syncContacts() {
+        HashMap<Long, Long> lastUpdated = new HashMap<Long, Long>();
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(Contacts.CONTENT_URI, CONTACTS_PROJECTION, null, null, null);
+            if (cursor == null) return false;
+            while (cursor.moveToNext()) {
+                lastUpdated.put(cursor.getLong(0), cursor.getLong(1));
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to read contacts: " + e);
+            return false;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+
+        long maxKnownId = -1;
+        int removed = 0;
+        for (Long contactId : mContacts.keySet()) {
+            if (contactId > maxKnownId) maxKnownId = contactId;
+            if (!lastUpdated.containsKey(contactId)) removed++;
+        }
+        ArrayList<Long> touched = new ArrayList<Long>();
+        int added = 0;
+        boolean insertedBeforeEnd = false;
+        for (Map.Entry<Long, Long> entry : lastUpdated.entrySet()) {
+            long[] known = mContacts.get(entry.getKey());
+            if (known == null) {
+                added++;
+                if (entry.getKey() < maxKnownId) insertedBeforeEnd = true;
+                touched.add(entry.getKey());
+            } else if (known[0] != entry.getValue()) {
+                touched.add(entry.getKey());
+            }
+        }
+        if (removed == 0 && touched.isEmpty()) return false;
+
+        HashMap<Long, Long> hashes = getSecondaryHashes(touched);
+        int secondaryChanges = 0;
+        HashMap<Long, long[]> contacts = new HashMap<Long, long[]>(lastUpdated.size() * 2);
+        for (Map.Entry<Long, Long> entry : lastUpdated.entrySet()) {
+            long[] known = mContacts.get(entry.getKey());
+            if (known != null && known[0] == entry.getValue()) {
+                contacts.put(entry.getKey(), known);
+                continue;
+            }
+            Long hash = hashes.get(entry.getKey());
+            long secondaryHash = hash != null ? hash : 0;
+            if (known != null && known[1] != secondaryHash) secondaryChanges++;
+            contacts.put(entry.getKey(), new long[] {entry.getValue(), secondaryHash});
+        }
+        mContacts = contacts;
+
+        mPrimaryVersion++;
+        if (added > 0 || removed > 0 || secondaryChanges > 0) {
+            mSecondaryVersion++;
+        }
+        addEvent("contacts: " + touched.size() + " changed (" + added + " new), " + removed
+                + " removed, " + secondaryChanges + " secondary; primary=" + mPrimaryVersion
+                + " secondary=" + mSecondaryVersion);
+        if (removed > 0 || insertedBeforeEnd) {
+            mDatabaseIdentifier = System.currentTimeMillis();
+            addEvent("handles shifted, new database identifier " + mDatabaseIdentifier);
+        }
+        return true;
+    }
+
+    /* Order independent hash of the name, number and email rows of each contact */
+    private HashMap<Long, Long> getSecondaryHashes(ArrayList<Long> contactIds) {
+        HashMap<Long, Long> hashes = new HashMap<Long, Long>(contactIds.size() * 2);
+        if (contactIds.isEmpty()) return hashes;
+        StringBuilder selection = new StringBuilder(SECONDARY_MIMETYPES_SELECTION);
+        selection.append(" AND ").append(Data.CONTACT_ID).append(" IN (");
+        for (int i = 0; i < contactIds.size(); i++) {
+            if (i > 0) selection.append(',');
+            selection.append(contactIds.get(i));
+        }
+        selection.append(')');
+
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(Data.CONTENT_URI, DATA_PROJECTION, selection.toString(),
+                    null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                long contactId = cursor.getLong(0);
+                long rowHash = 31L * String.valueOf(cursor.getString(1)).hashCode()
+                        + String.valueOf(cursor.getString(2)).hashCode();
+                Long hash = hashes.get(contactId);
+                hashes.put(contactId, (hash != null ? hash : 0) + rowHash * rowHash);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to read contact data: " + e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        return hashes;
+    }
+
+    private boolean syncCallLog() {
+        Cursor cursor = null;
+        int count;
+        ArrayList<Integer> newCallTypes = new ArrayList<Integer>();
+        long lastCallId = mLastCallId;
+        try {
+            cursor = mResolver.query(Calls.CONTENT_URI, CALLS_PROJECTION, null, null,
+                    Calls._ID + " ASC");
+            if (cursor == null) return false;
+            count = cursor.getCount();
+            // Only the calls added since the last sync need to be looked at
+            if (mLastCallId >= 0 && cursor.moveToLast()) {
+                while (cursor.getLong(0) > mLastCallId) {
+                    newCallTypes.add(cursor.getInt(1));
+                    if (!cursor.moveToPrevious()) break;
+                }
+            }
+            if (cursor.moveToLast()) lastCallId = cursor.getLong(0);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to read call log: " + e);
+            return false;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+
+        if (mLastCallId < 0) {
+            // First sync, nothing to compare against yet
+            mLastCallId = lastCallId;
+            mCallCount = count;
+            return true;
+        }
+        boolean removed = count != mCallCount + newCallTypes.size();
+        if (newCallTypes.isEmpty() && !removed) return false;
+
+        for (int type : newCallTypes) {
+            int folder = -1;
+            switch (type) {
+                case Calls.INCOMING_TYPE:
+                    folder = 0;
+                    break;
+                case Calls.OUTGOING_TYPE:
+                    folder = 1;
+                    break;
+                case Calls.MISSED_TYPE:
+                    folder = 2;
+                    break;
+            }
+            if (folder >= 0) mCallHistoryVersions[folder]++;
+        }
+        if (removed) {
+            for (int i = 0; i < mCallHistoryVersions.length - 1; i++) {
+                mCallHistoryVersions[i]++;
+            }
+        }
+        mCallHistoryVersions[mCallHistoryVersions.length - 1]++;
+        mLastCallId = lastCallId;
+        mCallCount = count;
+        addEvent("call log: " + newCallTypes.size() + " new" + (removed ? ", calls removed" : "")
+                + "; ich=" + mCallHistoryVersions[0] + " och=" + mCallHistoryVersions[1]
+                + " mch=" + mCallHistoryVersions[2] + " cch=" + mCallHistoryVersions[3]);
+        return true;
+    }
+
+    private void addEvent(String event) {
+        if (V) Log.v(TAG, event);
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+        mEvents.addLast(format.format(new Date()) + " " + event);
+        if (mEvents.size() > MAX_EVENTS) mEvents.removeFirst();
+    }
+
+    private boolean load() {
+        if (!mFile.exists()) return false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != JOURNAL_FORMAT) return false;
+            mDatabaseIdentifier = in.readLong();
+            mPrimaryVersion = in.readLong();
+            mSecondaryVersion = in.readLong();
+            for (int i = 0; i < mCallHistoryVersions.length; i++) {
+                mCallHistoryVersions[i] = in.readLong();
+            }
+            mLastCallId = in.readLong();
+            mCallCount = in.readInt();
+            int size = in.readInt();
+            HashMap<Long, long[]> contacts = new HashMap<Long, long[]>(size * 2);
+            for (int i = 0; i < size; i++) {
+                contacts.put(in.readLong(), new long[] {in.readLong(), in.readLong()});
+            }
+            mContacts = contacts;
+            addEvent("loaded " + size + " contacts, database identifier " + mDatabaseIdentifier
+                    + " primary=" + mPrimaryVersion + " secondary=" + mSecondaryVersion);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load version journal: " + e);
+            mContacts = new HashMap<Long, long[]>();
+            mLastCallId = -1;
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private void save() {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(JOURNAL_FORMAT);
+            out.writeLong(mDatabaseIdentifier);
+            out.writeLong(mPrimaryVersion);
+            out.writeLong(mSecondaryVersion);
+            for (long version : mCallHistoryVersions) {
+                out.writeLong(version);
+            }
+            out.writeLong(mLastCallId);
+            out.writeInt(mCallCount);
+            out.writeInt(mContacts.size());
+            for (Map.Entry<Long, long[]> entry : mContacts.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue()[0]);
+                out.writeLong(entry.getValue()[1]);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "Unable to replace version journal");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save version journal: " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    public synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "PBAP version journal:");
+        ProfileService.println(sb, "  databaseIdentifier: " + mDatabaseIdentifier);
+        ProfileService.println(sb, "  primaryVersion: " + mPrimaryVersion
+                + " secondaryVersion: " + mSecondaryVersion);
+        ProfileService.println(sb, "  ich: " + mCallHistoryVersions[0]
+                + " och: " + mCallHistoryVersions[1] + " mch: " + mCallHistoryVersions[2]
+                + " cch: " + mCallHistoryVersions[3]);
+        ProfileService.println(sb, "  contacts: " + mContacts.size() + " lastCallId: "
+                + mLastCallId + " callCount: " + mCallCount + " dirty: " + mDirty);
+        for (String event : mEvents) {
+            ProfileService.println(sb, "  " + event);
+        }
+    }
+}
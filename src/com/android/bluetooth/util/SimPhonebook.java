@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.telephony.TelephonyIntents;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cached copy of the SIM (ICC ADN) phonebook shared by the PBAP SIM1 folder
+ * and the HFP "SM" phonebook.
+ *
+ * Reading the ADN records takes hundreds of milliseconds, so they are read
+ * once into an immutable {@link Snapshot} that is reused until the SIM state
+ * changes, the provider reports a change or a user calls {@link #invalidate}.
+ */
+public final class SimPhonebook {
+    private static final String TAG = "SimPhonebook";
+
+    private static final boolean V = Log.isLoggable(TAG, Log.VERBOSE);
+
+    public static final Uri SIM_URI = Uri.parse("content://icc/adn");
+
+    private static final String[] SIM_PROJECTION = new String[] {
+            Contacts.DISPLAY_NAME, // 0
+            Phone.NUMBER, // 1
+            Phone.TYPE, // 2
+            Phone.LABEL, // 3
+    };
+
+    private static final int NAME_COLUMN_INDEX = 0;
+
+    private static final int NUMBER_COLUMN_INDEX = 1;
+
+    private static final int TYPE_COLUMN_INDEX = 2;
+
+    private static final int LABEL_COLUMN_INDEX = 3;
+
+    private static SimPhonebook sInstance;
+
+    private final Context mContext;
+
+    /* Bumped on every invalidation; a snapshot of an older generation is stale */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final BroadcastReceiver mSimStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (V) Log.v(TAG, "SIM state changed: " + intent.getExtras());
+            invalidate();
+        }
+    };
+
+    private final ContentObserver mSimObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (V) Log.v(TAG, "SIM contacts changed");
+            invalidate();
+        }
+    };
+
+    private Snapshot mSnapshot;
+
+    private SimPhonebook(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized SimPhonebook getInstance(Context context) {
+        if (sInstance == null) {
+            SimPhonebook simPhonebook = new SimPhonebook(context.getApplicationContext());
+            simPhonebook.mContext.registerReceiver(simPhonebook.mSimStateReceiver,
+                    new IntentFilter(TelephonyIntents.ACTION_SIM_STATE_CHANGED));
+            try {
+                simPhonebook.mContext.getContentResolver().registerContentObserver(SIM_URI,
+                        true, simPhonebook.mSimObserver);
+            } catch (SQLiteException e) {
+                Log.e(TAG, "SQLite exception: " + e);
+            }
+            sInstance = simPhonebook;
+        }
+        return sInstance;
+    }
+
+    /**
+     * Drop the cached records. The ICC provider does not reliably notify
+     * changes, so users may also call this when a new session starts.
+     */
+    public void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    /** Return the current records, reading the SIM only if they changed */
+    public synchronized Snapshot getSnapshot() {
+        final int generation = mGeneration.get();
+        if (mSnapshot != null && mSnapshot.mGeneration == generation) return mSnapshot;
+
+        long start = System.currentTimeMillis();
+        Snapshot snapshot = new Snapshot(generation,
+                mContext.getString(android.R.string.unknownName));
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(SIM_URI, SIM_PROJECTION, null, null,
+                    null);
+            if (cursor != null) {
+                final int columns = cursor.getColumnCount();
+                while (cursor.moveToNext()) {
+                    snapshot.mNames.add(cursor.getString(NAME_COLUMN_INDEX));
+                    snapshot.mNumbers.add(cursor.getString(NUMBER_COLUMN_INDEX));
+                    snapshot.mTypes.add(columns > TYPE_COLUMN_INDEX
+                            ? cursor.getInt(TYPE_COLUMN_INDEX) : Phone.TYPE_MOBILE);
+                    snapshot.mLabels.add(columns > LABEL_COLUMN_INDEX
+                            ? cursor.getString(LABEL_COLUMN_INDEX) : null);
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "SQLite exception while reading SIM contacts: " + e);
+        } catch (IllegalArgumentException e) {
+            // Thrown by the ICC provider while the SIM is absent or not ready
+            Log.e(TAG, "Failed to read SIM contacts: " + e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        snapshot.sortByName();
+        if (V) Log.v(TAG, "Read " + snapshot.size() + " SIM contacts in "
+                + (System.currentTimeMillis() - start) + " ms");
+        mSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * The ADN records of the SIM at one point in time, in SIM order. Indexes
+     * are 0 based; use {@link #getIndexByName} to walk them in name order.
+     */
+    public static final class Snapshot {
+        private final int mGeneration;
+        private final String mUnknownName;
+        private final ArrayList<String> mNames = new ArrayList<String>();
+        private final ArrayList<String> mNumbers = new ArrayList<String>();
+        private final ArrayList<Integer> mTypes = new ArrayList<Integer>();
+        private final ArrayList<String> mLabels = new ArrayList<String>();
+        private int[] mIndexByName;
+
+        private Snapshot(int generation, String unknownName) {
+            mGeneration = generation;
+            mUnknownName = unknownName;
+        }
+
+        /* Stable, so entries with the same name keep their SIM order */
+        private void sortByName() {
+            final int size = mNames.size();
+            ArrayList<Integer> order = new ArrayList<Integer>(size);
+            for (int i = 0; i < size; i++) {
+                order.add(i);
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer index1, Integer index2) {
+                    return getDisplayName(index1).compareToIgnoreCase(getDisplayName(index2));
+                }
+            });
+            mIndexByName = new int[size];
+            for (int i = 0; i < size; i++) {
+                mIndexByName[i] = order.get(i);
+            }
+        }
+
+        public int size() {
+            return mNames.size();
+        }
+
+        /** The name as stored on the SIM, which may be empty */
+        public String getName(int index) {
+            return mNames.get(index);
+        }
+
+        /** The name, or the default unknown name if the SIM has none */
+        public String getDisplayName(int index) {
+            String name = mNames.get(index);
+            return TextUtils.isEmpty(name) ? mUnknownName : name;
+        }
+
+        public String getNumber(int index) {
+            return mNumbers.get(index);
+        }
+
+        public int getType(int index) {
+            return mTypes.get(index);
+        }
+
+        public String getLabel(int index) {
+            return mLabels.get(index);
+        }
+
+        /** The SIM index of the entry at the given position in name order */
+        public int getIndexByName(int position) {
+            return mIndexByName[position];
+        }
+
+        /** Display names in SIM order, or in name order if byName is set */
+        public ArrayList<String> getDisplayNames(boolean byName) {
+            final int size = size();
+            ArrayList<String> names = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                names.add(getDisplayName(byName ? mIndexByName[i] : i));
+            }
+            return names;
+        }
+    }
+}
@@ -76,6 +76,9 @@ public class ObexTest extends AndroidTestCase implements ITestSequenceConfigurat
     private static final ObexTestParams hugeParams =
             new ObexTestParams(2*8092, 0, 100*1024*1024);
 
+    private static final long[] SRM_BENCHMARK_SIZES =
+            { 64*1024, 1024*1024, 8*1024*1024, 32*1024*1024 };
+
     private static final int SMALL_OPERATION_COUNT = 1000;
     private static final int CONNECT_OPERATION_COUNT = 4500;
 
@@ -189,6 +192,63 @@ public class ObexTest extends AndroidTestCase implements ITestSequenceConfigurat
         }
     }
 
+    /**
+     * Throughput benchmark of OBEX PUT with and without Single Response Mode over a local
+     * socket. Without SRM every packet waits for a CONTINUE response, as on RFCOMM; with SRM
+     * the packets are streamed as OPP does over L2CAP. Results are logged - nothing asserted
+     * on the numbers, as they depend on the device.
+     */
+    public void testSrmThroughputBenchmark() {
+        mContext = this.getContext();
+        for (long size : SRM_BENCHMARK_SIZES) {
+            long rfcommTime = runPutBenchmark(size, false);
+            long srmTime = runPutBenchmark(size, true);
+            Log.i(TAG, "PUT of " + size + " bytes: RFCOMM-style " + rfcommTime + " ms ("
+                    + kbytePerSec(size, rfcommTime) + " kbyte/s), SRM " + srmTime + " ms ("
+                    + kbytePerSec(size, srmTime) + " kbyte/s)");
+        }
+    }
+
+    private long runPutBenchmark(long size, boolean useSrm) {
+        long time = -1;
+        try {
+            LocalServerSocket serverSock =
+                    new LocalServerSocket("com.android.bluetooth.tests.srm_bench");
+            LocalSocket clientSock = new LocalSocket();
+            clientSock.connect(serverSock.getLocalSocketAddress());
+            LocalSocket acceptSock = serverSock.accept();
+
+            ObexPipeTransport clientTransport = new ObexPipeTransport(clientSock.getInputStream(),
+                    clientSock.getOutputStream(), useSrm);
+            ObexPipeTransport serverTransport = new ObexPipeTransport(acceptSock.getInputStream(),
+                    acceptSock.getOutputStream(), useSrm);
+
+            TestSequencer sequencer = new TestSequencer(clientTransport, serverTransport, this);
+            SeqStep step;
+            step = sequencer.addStep(OPTYPE.CONNECT, sResponseCodeValidator);
+            step = sequencer.addStep(OPTYPE.PUT, sDataValidator);
+            step.mParams = new ObexTestParams(2*8092, 0, size);
+            step.mUseSrm = useSrm;
+            step = sequencer.addStep(OPTYPE.DISCONNECT, sResponseCodeValidator);
+
+            long start = System.currentTimeMillis();
+            assertTrue(sequencer.run(mContext));
+            time = System.currentTimeMillis() - start;
+
+            clientSock.close();
+            acceptSock.close();
+            serverSock.close();
+        } catch (IOException e) {
+            Log.e(TAG, "IOException", e);
+            fail("PUT benchmark failed for " + size + " bytes, SRM " + useSrm);
+        }
+        return time;
+    }
+
+    private static long kbytePerSec(long bytes, long timeMs) {
+        return timeMs > 0 ? (bytes * 1000 / timeMs) / 1024 : 0;
+    }
+
     /* Create a sequence of put/get operations with different payload sizes */
     private TestSequencer createBtPayloadTestSequence(ObexTransport clientTransport,
             ObexTransport serverTransport)
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.tests.avrcp;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.bluetooth.avrcp.AvrcpBipCoverArtCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class AvrcpBipCoverArtCacheTest extends AndroidTestCase {
+    private static final String TAG = "AvrcpBipCoverArtCacheTest";
+
+    private static final int MEMORY_BYTES = 1024 * 1024;
+    private static final long DISK_BYTES = 4 * 1024 * 1024;
+    private static final int ROUNDS = 20;
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "bip_cover_art_test");
+        newCache().clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        newCache().clear();
+        mDir.delete();
+        super.tearDown();
+    }
+
+    private AvrcpBipCoverArtCache newCache() {
+        return new AvrcpBipCoverArtCache(mDir, MEMORY_BYTES, DISK_BYTES);
+    }
+
+    /* Encodes a 200*200 JPEG, the size of a BIP thumbnail */
+    private static class CountingEncoder implements AvrcpBipCoverArtCache.Encoder {
+        private final int mSeed;
+        int count;
+
+        CountingEncoder(int seed) {
+            mSeed = seed;
+        }
+
+        @Override
+        public boolean encode(File out) throws IOException {
+            count++;
+            Bitmap bm = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+            for (int y = 0; y < 200; y++) {
+                for (int x = 0; x < 200; x++) {
+                    bm.setPixel(x, y, Color.rgb((x + mSeed) & 0xff, y & 0xff, (x * y) & 0xff));
+                }
+            }
+            FileOutputStream stream = new FileOutputStream(out);
+            try {
+                bm.compress(Bitmap.CompressFormat.JPEG, 100, stream);
+            } finally {
+                stream.close();
+            }
+            bm.recycle();
+            return true;
+        }
+    }
+
+    public void testEncodesOncePerKey() {
+        AvrcpBipCoverArtCache cache = newCache();
+        CountingEncoder encoder = new CountingEncoder(0);
+        String key = AvrcpBipCoverArtCache.key(1, 100, "thumb");
+
+        byte[] first = cache.getOrEncode(key, encoder);
+        byte[] second = cache.getOrEncode(key, encoder);
+        assertNotNull(first);
+        assertTrue(Arrays.equals(first, second));
+        assertEquals(1, encoder.count);
+    }
+
+    public void testKeyChangesWithArtVersionAndVariant() {
+        String thumb = AvrcpBipCoverArtCache.key(1, 100, "thumb");
+        assertFalse(thumb.equals(AvrcpBipCoverArtCache.key(1, 101, "thumb")));
+        assertFalse(thumb.equals(AvrcpBipCoverArtCache.key(2, 100, "thumb")));
+        assertFalse(thumb.equals(AvrcpBipCoverArtCache.key(1, 100, "640*480.JPEG")));
+    }
+
+    public void testDiskTierSurvivesNewInstance() {
+        CountingEncoder encoder = new CountingEncoder(0);
+        String key = AvrcpBipCoverArtCache.key(1, 100, "thumb");
+        byte[] data = newCache().getOrEncode(key, encoder);
+
+        byte[] fromDisk = newCache().get(key);
+        assertTrue(Arrays.equals(data, fromDisk));
+        assertEquals(1, encoder.count);
+    }
+
+    public void testFailedEncodeIsNotCached() {
+        AvrcpBipCoverArtCache cache = newCache();
+        String key = AvrcpBipCoverArtCache.key(1, 100, "thumb");
+        assertNull(cache.getOrEncode(key, new AvrcpBipCoverArtCache.Encoder() {
+            @Override
+            public boolean encode(File out) {
+                return false;
+            }
+        }));
+        assertNull(cache.get(key));
+    }
+
+    public void testPrefetchServesRequest() {
+        AvrcpBipCoverArtCache cache = newCache();
+        CountingEncoder encoder = new CountingEncoder(0);
+        String key = AvrcpBipCoverArtCache.key(1, 100, "thumb");
+
+        cache.prefetch(key, encoder);
+        assertNotNull(cache.getOrEncode(key, encoder));
+        assertEquals(1, encoder.count);
+    }
+
+    public void testDiskBudget() {
+        AvrcpBipCoverArtCache cache = new AvrcpBipCoverArtCache(mDir, MEMORY_BYTES, 1);
+        cache.getOrEncode(AvrcpBipCoverArtCache.key(1, 100, "thumb"), new CountingEncoder(1));
+        cache.getOrEncode(AvrcpBipCoverArtCache.key(2, 100, "thumb"), new CountingEncoder(2));
+        String[] files = mDir.list();
+        assertTrue(files == null || files.length <= 1);
+    }
+
+    /* Request latency cold (encode), warm from disk and warm from memory */
+    public void testLatencyColdVsWarm() {
+        long coldNanos = 0;
+        long diskNanos = 0;
+        long memoryNanos = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            String key = AvrcpBipCoverArtCache.key(i, 100, "thumb");
+
+            long start = System.nanoTime();
+            byte[] cold = newCache().getOrEncode(key, new CountingEncoder(i));
+            coldNanos += System.nanoTime() - start;
+
+            AvrcpBipCoverArtCache cache = newCache();
+            start = System.nanoTime();
+            byte[] disk = cache.getOrEncode(key, new CountingEncoder(i));
+            diskNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            byte[] memory = cache.getOrEncode(key, new CountingEncoder(i));
+            memoryNanos += System.nanoTime() - start;
+
+            assertTrue(Arrays.equals(cold, disk));
+            assertTrue(Arrays.equals(cold, memory));
+        }
+        Log.i(TAG, "Thumbnail request over " + ROUNDS + " albums: cold "
+                + coldNanos / ROUNDS / 1000 + " us, disk " + diskNanos / ROUNDS / 1000
+                + " us, memory " + memoryNanos / ROUNDS / 1000 + " us");
+        assertTrue(diskNanos < coldNanos);
+    }
+}
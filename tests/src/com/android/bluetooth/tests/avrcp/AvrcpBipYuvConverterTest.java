@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.tests.avrcp;
+
+import android.graphics.Color;
+import android.graphics.ImageFormat;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.bluetooth.avrcp.AvrcpBipYuvConverter;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class AvrcpBipYuvConverterTest extends AndroidTestCase {
+    private static final String TAG = "AvrcpBipYuvConverterTest";
+
+    private static final int ROUNDS = 20;
+
+    /* The per-pixel converter AvrcpBipRspParser used before */
+    private static final int COEFF1 = 19595;
+    private static final int COEFF2 = 38470;
+    private static final int COEFF3 = 7471;
+    private static final int COEFF4 = -11059;
+    private static final int COEFF5 = -21709;
+    private static final int COEFF6 = 32768;
+    private static final int COEFF7 = 32768;
+    private static final int COEFF8 = -27439;
+    private static final int COEFF9 = -5329;
+
+    private static void legacyRgb2yuv(int rgb, byte[] convArray) {
+        int a = Color.red(rgb);
+        int b = Color.green(rgb);
+        int c = Color.blue(rgb);
+        convArray[0] = (byte) ((COEFF1 * a + COEFF2 * b + COEFF3 * c) >> 16);
+        convArray[1] = (byte) (((COEFF4 * a + COEFF5 * b + COEFF6 * c) >> 16) + 128);
+        convArray[2] = (byte) (((COEFF7 * a + COEFF8 * b + COEFF9 * c) >> 16) + 128);
+    }
+
+    private static byte[] legacyConvertToYuv(int[] rgb, int w, int h) {
+        byte[] convArray = new byte[w * h * ImageFormat.getBitsPerPixel(ImageFormat.YUY2)];
+        byte[] col0 = new byte[3];
+        byte[] co11 = new byte[3];
+        for (int i = 0; i < h; ++i) {
+            for (int j = 0; j < w; j += 2) {
+                int id = i * w + j;
+                legacyRgb2yuv(rgb[id], col0);
+                legacyRgb2yuv(rgb[id + 1], co11);
+                int index = id / 2 * 4;
+                convArray[index] = col0[0];
+                convArray[index + 1] = col0[1];
+                convArray[index + 2] = co11[0];
+                convArray[index + 3] = col0[2];
+            }
+        }
+        return convArray;
+    }
+
+    private static int[] randomPixels(int w, int h) {
+        Random random = new Random(w * 31 + h);
+        int[] pixels = new int[w * h];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        // Channel extremes
+        int[] extremes = {
+            Color.BLACK, Color.WHITE, Color.RED, Color.GREEN, Color.BLUE, Color.TRANSPARENT
+        };
+        System.arraycopy(extremes, 0, pixels, 0, Math.min(extremes.length, pixels.length));
+        return pixels;
+    }
+
+    /* Only the first w*h*2 bytes of the legacy array were ever written */
+    private static void assertSameImage(int w, int h) {
+        int[] pixels = randomPixels(w, h);
+        byte[] legacy = legacyConvertToYuv(pixels, w, h);
+        byte[] yuy2 = AvrcpBipYuvConverter.argbToYuy2(pixels, w, h);
+        assertEquals(w * h * 2, yuy2.length);
+        assertTrue(Arrays.equals(Arrays.copyOf(legacy, yuy2.length), yuy2));
+    }
+
+    public void testMatchesLegacyThumbnail() {
+        assertSameImage(200, 200);
+    }
+
+    public void testMatchesLegacyLarge() {
+        assertSameImage(640, 640);
+    }
+
+    public void testMatchesLegacyNonSquare() {
+        assertSameImage(2, 1);
+        assertSameImage(1280, 2);
+        assertSameImage(8, 1080);
+    }
+
+    public void testRejectsOddWidth() {
+        try {
+            AvrcpBipYuvConverter.argbToYuy2(new int[3 * 2], 3, 2);
+            fail("odd width accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void benchmark(int w, int h) {
+        int[] pixels = randomPixels(w, h);
+        // Warm up both paths before timing them
+        legacyConvertToYuv(pixels, w, h);
+        AvrcpBipYuvConverter.argbToYuy2(pixels, w, h);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            legacyConvertToYuv(pixels, w, h);
+        }
+        long legacyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            AvrcpBipYuvConverter.argbToYuy2(pixels, w, h);
+        }
+        long rowNanos = System.nanoTime() - start;
+
+        Log.i(TAG, "Converted " + w + "*" + h + ": legacy " + legacyNanos / ROUNDS / 1000
+                + " us, rows " + rowNanos / ROUNDS / 1000 + " us");
+    }
+
+    public void testBenchmarkThumbnail() {
+        benchmark(200, 200);
+    }
+
+    public void testBenchmarkLarge() {
+        benchmark(640, 640);
+    }
+}
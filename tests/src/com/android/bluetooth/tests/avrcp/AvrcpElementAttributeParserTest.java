@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.tests.avrcp;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.bluetooth.avrcp.AvrcpElementAttributeParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+public class AvrcpElementAttributeParserTest extends AndroidTestCase {
+    private static final String TAG = "AvrcpElementAttributeParserTest";
+
+    private static final int ROUNDS = 20000;
+    private static final int INVALID = -1;
+
+    private static final int TITLE = 1;
+    private static final int ARTIST_NAME = 2;
+    private static final int ALBUM_NAME = 3;
+    private static final int TRACK_NUMBER = 4;
+    private static final int TOTAL_TRACK_NUMBER = 5;
+    private static final int GENRE = 6;
+    private static final int PLAYING_TIME = 7;
+
+    /*
+     * GetElementAttributes response payloads as handed to
+     * handleGetElementAttributes: the attribute entries that follow the
+     * number of attributes, all with character set 0x006a (UTF-8).
+     */
+    private static final String ALBUM_TRACK_1 = ""
+            + "00000001006a000b537065616b20746f204d6500000002006a000a50696e6b20"
+            + "466c6f796400000003006a0019546865204461726b2053696465206f66207468"
+            + "65204d6f6f6e00000004006a00013100000005006a0002313000000006006a00"
+            + "1050726f677265737369766520526f636b00000007006a00053638303030";
+    private static final String ALBUM_TRACK_2 = ""
+            + "00000001006a00074272656174686500000002006a000a50696e6b20466c6f79"
+            + "6400000003006a0019546865204461726b2053696465206f6620746865204d6f"
+            + "6f6e00000004006a00013200000005006a0002313000000006006a001050726f"
+            + "677265737369766520526f636b00000007006a0006313633303030";
+    private static final String MULTIBYTE_TRACK = ""
+            + "00000001006a000fe5a49ce381abe9a786e38191e3828b00000002006a000759"
+            + "4f41534f424900000003006a000854484520424f4f4b00000004006a00013300"
+            + "000005006a00013800000006006a00054a2d506f7000000007006a0006323631"
+            + "303030";
+    private static final String ACCENTED_TEXT = ""
+            + "00000001006a00095365c3b16f7269746100000002006a000c436166c3a92054"
+            + "616376626100000003006a00025265";
+    /* Title, empty genre, playing time */
+    private static final String EMPTY_GENRE = ""
+            + "00000001006a0005496e74726f00000006006a000000000007006a0005393030"
+            + "3030";
+    /* Track number "A1", total tracks "007", playing time past Integer.MAX_VALUE */
+    private static final String BAD_NUMBERS = ""
+            + "00000004006a0002413100000005006a000330303700000007006a000b393939"
+            + "3939393939393939";
+    /* Title with an invalid UTF-8 sequence */
+    private static final String MALFORMED_TITLE = ""
+            + "00000001006a000b42616420c3282062797465";
+    /* Artist value announced as 12 bytes but cut after 8 */
+    private static final String TRUNCATED = ""
+            + "00000001006a0008436f6d706c65746500000002006a000c437574206f666620";
+
+    private static final String[] CORPUS = {
+        ALBUM_TRACK_1, ALBUM_TRACK_2, MULTIBYTE_TRACK, ACCENTED_TEXT,
+        EMPTY_GENRE, BAD_NUMBERS, MALFORMED_TITLE, TRUNCATED
+    };
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static ByteBuffer response(String hex) {
+        byte[] bytes = fromHex(hex);
+        return ByteBuffer.wrap(bytes, 0, bytes.length);
+    }
+
+    /* How AvrcpControllerService decoded text values before */
+    private static String legacyString(ByteBuffer buffer, int offset, int length) {
+        byte[] value = new byte[length];
+        buffer.position(offset);
+        buffer.get(value, 0, length);
+        return new String(value, Charset.forName("UTF-8"));
+    }
+
+    private static String[] parseAll(AvrcpElementAttributeParser parser, String hex) {
+        String[] values = new String[PLAYING_TIME + 1];
+        parser.reset(response(hex));
+        while (parser.next()) {
+            values[parser.getAttributeId()] = parser.getString();
+        }
+        return values;
+    }
+
+    public void testFullResponse() {
+        AvrcpElementAttributeParser parser = new AvrcpElementAttributeParser();
+        parser.reset(response(ALBUM_TRACK_1));
+
+        assertTrue(parser.next());
+        assertEquals(TITLE, parser.getAttributeId());
+        assertEquals(0x6a, parser.getCharset());
+        assertEquals("Speak to Me", parser.getString());
+        assertTrue(parser.next());
+        assertEquals("Pink Floyd", parser.getString());
+        assertTrue(parser.next());
+        assertEquals("The Dark Side of the Moon", parser.getString());
+        assertTrue(parser.next());
+        assertEquals(TRACK_NUMBER, parser.getAttributeId());
+        assertEquals(1, parser.getInt(INVALID));
+        assertTrue(parser.next());
+        assertEquals(10, parser.getInt(INVALID));
+        assertTrue(parser.next());
+        assertEquals("Progressive Rock", parser.getString());
+        assertTrue(parser.next());
+        assertEquals(PLAYING_TIME, parser.getAttributeId());
+        assertEquals(68000, parser.getInt(INVALID));
+        assertFalse(parser.next());
+    }
+
+    public void testInternsValuesAcrossTracks() {
+        AvrcpElementAttributeParser parser = new AvrcpElementAttributeParser();
+        String[] first = parseAll(parser, ALBUM_TRACK_1);
+        String[] second = parseAll(parser, ALBUM_TRACK_2);
+
+        assertEquals("Breathe", second[TITLE]);
+        assertSame(first[ARTIST_NAME], second[ARTIST_NAME]);
+        assertSame(first[ALBUM_NAME], second[ALBUM_NAME]);
+        assertSame(first[GENRE], second[GENRE]);
+        assertFalse(first[TITLE].equals(second[TITLE]));
+    }
+
+    public void testMultibyteText() {
+        AvrcpElementAttributeParser parser = new AvrcpElementAttributeParser();
+        String[] values = parseAll(parser, MULTIBYTE_TRACK);
+        assertEquals("夜に駆ける", values[TITLE]);
+        assertEquals("YOASOBI", values[ARTIST_NAME]);
+        assertEquals("J-Pop", values[GENRE]);
+
+        values = parseAll(parser, ACCENTED_TEXT);
+        assertEquals("Señorita", values[TITLE]);
+        assertEquals("Café Tacvba", values[ARTIST_NAME]);
+        assertEquals("Re", values[ALBUM_NAME]);
+    }
+
+    public void testEmptyValue() {
+        AvrcpElementAttributeParser parser = new AvrcpElementAttributeParser();
+        parser.reset(response(EMPTY_GENRE));
+        assertTrue(parser.next());
+        assertEquals("Intro", parser.getString());
+        assertTrue(parser.next());
+        assertEquals(GENRE, parser.getAttributeId());
+        assertEquals(0, parser.getValueLength());
+        assertFalse(parser.hasValue());
+        assertNull(parser.getString());
+        assertTrue(parser.next());
+        assertEquals(90000, parser.getInt(INVALID));
+        assertFalse(parser.next());
+    }
+
+    public void testBadNumbers() {
+        AvrcpElementAttributeParser parser = new AvrcpElementAttributeParser();
+        parser.reset(response(BAD_NUMBERS));
+        assertTrue(parser.next());
+        assertEquals(INVALID, parser.getInt(INVALID));
+        assertTrue(parser.next());
+        assertEquals(7, parser.getInt(INVALID));
+        assertTrue(parser.next());
+        assertEquals(INVALID, parser.getInt(INVALID));
+    }
+
+    public void testMalformedText() {
+        ByteBuffer buffer = response(MALFORMED_TITLE);
+        AvrcpElementAttributeParser parser = new AvrcpElementAttributeParser();
+        parser.reset(buffer);
+        assertTrue(parser.next());
+        assertEquals(legacyString(buffer, 8, parser.getValueLength()), parser.getString());
+    }
+
+    public void testTruncatedResponse() {
+        AvrcpElementAttributeParser parser = new AvrcpElementAttributeParser();
+        parser.reset(response(TRUNCATED));
+        assertTrue(parser.next());
+        assertEquals("Complete", parser.getString());
+        assertTrue(parser.next());
+        assertEquals(ARTIST_NAME, parser.getAttributeId());
+        assertFalse(parser.hasValue());
+        assertNull(parser.getString());
+        assertFalse(parser.next());
+    }
+
+    public void testHonoursBufferLimit() {
+        byte[] bytes = fromHex(ALBUM_TRACK_1 + ALBUM_TRACK_2);
+        int length = fromHex(ALBUM_TRACK_1).length;
+        AvrcpElementAttributeParser parser = new AvrcpElementAttributeParser();
+        parser.reset(ByteBuffer.wrap(bytes, 0, length));
+        int entries = 0;
+        while (parser.next()) {
+            parser.getString();
+            entries++;
+        }
+        assertEquals(7, entries);
+    }
+
+    public void testMatchesLegacyDecoding() {
+        AvrcpElementAttributeParser parser = new AvrcpElementAttributeParser();
+        for (String hex : CORPUS) {
+            ByteBuffer buffer = response(hex);
+            parser.reset(buffer);
+            int offset = 0;
+            while (parser.next()) {
+                if (parser.hasValue()) {
+                    assertEquals(legacyString(buffer, offset + 8, parser.getValueLength()),
+                            parser.getString());
+                }
+                offset += 8 + parser.getValueLength();
+            }
+        }
+    }
+
+    public void testDecodeBenchmark() {
+        ByteBuffer[] responses = new ByteBuffer[CORPUS.length];
+        for (int i = 0; i < CORPUS.length; i++) {
+            responses[i] = response(CORPUS[i]);
+        }
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (ByteBuffer buffer : responses) {
+                int offset = 0;
+                while (offset + 8 <= buffer.limit()) {
+                    int length = buffer.getChar(offset + 6);
+                    offset += 8;
+                    if (length > 0 && offset + length <= buffer.limit()) {
+                        legacyString(buffer, offset, length);
+                    }
+                    offset += length;
+                }
+            }
+        }
+        long legacyNs = System.nanoTime() - start;
+
+        AvrcpElementAttributeParser parser = new AvrcpElementAttributeParser();
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (ByteBuffer buffer : responses) {
+                parser.reset(buffer);
+                while (parser.next()) {
+                    parser.getString();
+                }
+            }
+        }
+        long parserNs = System.nanoTime() - start;
+
+        Log.i(TAG, "decode " + ROUNDS + " x " + CORPUS.length + " responses: legacy "
+                + (legacyNs / 1000000) + " ms, parser " + (parserNs / 1000000) + " ms");
+    }
+}
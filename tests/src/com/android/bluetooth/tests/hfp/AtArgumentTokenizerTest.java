@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.tests.hfp;
+
+import android.test.AndroidTestCase;
+
+import com.android.bluetooth.hfp.AtArgumentTokenizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class AtArgumentTokenizerTest extends AndroidTestCase {
+    /* Argument strings in the formats the HFP AT handlers see */
+    private static final String[] ARGS = {
+        "ABCD-1234-0100,7", // +XAPL
+        "2,1,3,2,0", // +IPHONEACCEV
+        "\"BATTERY\",5,10,0,\"A,B\"", // +XEVENT
+        "1,2", // +BIND
+        "2,95", // +BIEV
+        "1,99999999999",
+        "1,100", // +CPBR
+        "\"UTF-8\"", // +CSCS
+        "\"ME\"",
+        "",
+        "1,",
+        ",,",
+        "-5,+5,-,+,5-",
+        "2147483647,2147483648,-2147483648,-2147483649",
+        "9223372036854775807,9223372036854775808,-9223372036854775808",
+        "\"unmatched,quote",
+        "a\"b,c\"d,e",
+        " 1,1 ,0x10,1.5",
+    };
+
+    public void testMatchesLegacyGenerateArgs() {
+        AtArgumentTokenizer tokenizer = new AtArgumentTokenizer();
+        for (String args : ARGS) {
+            Object[] expected = legacyGenerateArgs(args);
+            assertTrue(args, Arrays.equals(expected, tokenizer.reset(args).toObjectArray()));
+            assertEquals(args, expected.length, tokenizer.count());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(args, expected[i] instanceof Integer, tokenizer.isInt(i));
+                if (!(expected[i] instanceof Integer)) {
+                    assertEquals(args, expected[i], tokenizer.getString(i));
+                }
+            }
+        }
+    }
+
+    public void testMatchesLegacyGenerateArgsBiev() {
+        AtArgumentTokenizer tokenizer = new AtArgumentTokenizer();
+        for (String args : ARGS) {
+            Object[] expected = legacyGenerateArgsBiev(args);
+            tokenizer.reset(args);
+            assertEquals(args, expected.length, tokenizer.count());
+            if (expected[0] instanceof Integer) {
+                assertEquals(args, expected[0], tokenizer.getInt(0));
+            } else {
+                assertFalse(args, tokenizer.isInt(0));
+            }
+            for (int i = 1; i < expected.length; i++) {
+                if (expected[i] instanceof Long) {
+                    assertEquals(args, expected[i], tokenizer.getLong(i));
+                } else {
+                    assertFalse(args, tokenizer.isLong(i));
+                    assertEquals(args, expected[i], tokenizer.getString(i));
+                }
+            }
+        }
+    }
+
+    public void testRange() {
+        AtArgumentTokenizer tokenizer = new AtArgumentTokenizer();
+        String command = "+CPBR=1,25;";
+        tokenizer.reset(command, command.indexOf('=') + 1, command.length() - 1);
+        assertEquals(2, tokenizer.count());
+        assertEquals(1, tokenizer.getInt(0));
+        assertEquals(25, tokenizer.getInt(1));
+    }
+
+    public void testCpbrIndexesWithSpaces() {
+        AtArgumentTokenizer tokenizer = new AtArgumentTokenizer();
+        String[] commands = {
+            "+CPBR=1,10", "+CPBR=1, 10", "+CPBR= 1,10", "+CPBR= 1 , 10 ;", "+CPBR=1,10;",
+        };
+        for (String command : commands) {
+            tokenizer.reset(command, command.indexOf('=') + 1, command.length());
+            assertEquals(command, 2, tokenizer.count());
+            assertTrue(command, tokenizer.isTrimmedInt(0));
+            assertTrue(command, tokenizer.isTrimmedInt(1));
+            assertEquals(command, 1, tokenizer.getTrimmedInt(0));
+            assertEquals(command, 10, tokenizer.getTrimmedInt(1));
+            assertEquals(command, legacyCpbrIndex(command, 1),
+                    tokenizer.getTrimmedInt(1));
+        }
+
+        tokenizer.reset("+CPBR= 5;", 6, 9);
+        assertEquals(1, tokenizer.count());
+        assertEquals(5, tokenizer.getTrimmedInt(0));
+
+        // untrimmed parsing is unchanged for other commands
+        tokenizer.reset("1, 10");
+        assertFalse(tokenizer.isInt(1));
+        assertEquals(" 10", tokenizer.getString(1));
+
+        // still invalid, as before
+        for (String args : new String[] {"1 0,2", "1,;", "a,1", " , 1"}) {
+            tokenizer.reset(args);
+            assertFalse(args, tokenizer.isTrimmedInt(0) && tokenizer.isTrimmedInt(1));
+        }
+    }
+
+    public void testCpbrTrailingEmptyIndex() {
+        AtArgumentTokenizer tokenizer = new AtArgumentTokenizer();
+        for (String command : new String[] {"+CPBR=1,", "+CPBR=1,,", "+CPBR= 1 ,"}) {
+            tokenizer.reset(command, command.indexOf('=') + 1, command.length());
+            String[] legacy = command.split("=")[1].split(",");
+            assertEquals(command, legacy.length, tokenizer.countWithoutTrailingEmpty());
+            assertEquals(command, 1, tokenizer.countWithoutTrailingEmpty());
+            assertEquals(command, 1, tokenizer.getTrimmedInt(0));
+            assertEquals(command, legacyCpbrIndex(command, 0), tokenizer.getTrimmedInt(0));
+        }
+
+        // only empty arguments are dropped, as with String.split()
+        assertEquals(2, tokenizer.reset("1, ").countWithoutTrailingEmpty());
+        assertEquals(2, tokenizer.reset("1,;").countWithoutTrailingEmpty());
+        assertEquals(2, tokenizer.reset(",1").countWithoutTrailingEmpty());
+        assertEquals(0, tokenizer.reset(",").countWithoutTrailingEmpty());
+        assertEquals(3, tokenizer.reset("1,,2").countWithoutTrailingEmpty());
+        assertEquals(3, tokenizer.reset("1,,2").count());
+    }
+
+    /* The index parsing AtPhonebook.handleCpbrCommand used before the tokenizer */
+    private static int legacyCpbrIndex(String command, int index) {
+        String[] indices = command.split("=")[1].split(",");
+        return Integer.parseInt(indices[index].replace(';', ' ').trim());
+    }
+
+    public void testUnquotedString() {
+        AtArgumentTokenizer tokenizer = new AtArgumentTokenizer();
+        assertEquals("UTF-8", tokenizer.reset("\"UTF-8\"").getUnquotedString(0));
+        assertEquals("SM", tokenizer.reset(" \"SM\" ").getUnquotedString(0));
+        assertEquals("GSM", tokenizer.reset("GSM").getUnquotedString(0));
+        assertEquals("A,B", tokenizer.reset("\"A,B\",1").getUnquotedString(0));
+    }
+
+    public void testGrowsPastInitialCapacity() {
+        AtArgumentTokenizer tokenizer = new AtArgumentTokenizer();
+        StringBuilder args = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            if (i > 0) args.append(',');
+            args.append(i);
+        }
+        tokenizer.reset(args.toString());
+        assertEquals(40, tokenizer.count());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i, tokenizer.getInt(i));
+        }
+    }
+
+    public void testInvalidAccess() {
+        AtArgumentTokenizer tokenizer = new AtArgumentTokenizer().reset("abc");
+        try {
+            tokenizer.getInt(0);
+            fail("getInt on a string argument");
+        } catch (NumberFormatException expected) {
+        }
+        try {
+            tokenizer.getString(1);
+            fail("getString past the last argument");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    /* The parsing HeadsetStateMachine.generateArgs() did before the tokenizer */
+    private static Object[] legacyGenerateArgs(String input) {
+        int i = 0;
+        int j;
+        ArrayList<Object> out = new ArrayList<Object>();
+        while (i <= input.length()) {
+            j = legacyFindChar(',', input, i);
+
+            String arg = input.substring(i, j);
+            try {
+                out.add(new Integer(arg));
+            } catch (NumberFormatException e) {
+                out.add(arg);
+            }
+
+            i = j + 1; // move past comma
+        }
+        return out.toArray();
+    }
+
+    /* The parsing HeadsetStateMachine.generateArgsBiev() did before the tokenizer */
+    private static Object[] legacyGenerateArgsBiev(String input) {
+        int i = 0;
+        int j;
+        ArrayList<Object> out = new ArrayList<Object>();
+        while (i <= input.length()) {
+            j = legacyFindChar(',', input, i);
+            String arg = input.substring(i, j);
+            try {
+                if (i == 0)
+                    out.add(new Integer(arg));
+                else
+                    out.add(new Long(arg));
+            } catch (NumberFormatException e) {
+                out.add(arg);
+            }
+
+            i = j + 1; // move past comma
+        }
+        return out.toArray();
+    }
+
+    private static int legacyFindChar(char ch, String input, int fromIndex) {
+        for (int i = fromIndex; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == '"') {
+                i = input.indexOf('"', i + 1);
+                if (i == -1) {
+                    return input.length();
+                }
+            } else if (c == ch) {
+                return i;
+            }
+        }
+        return input.length();
+    }
+}
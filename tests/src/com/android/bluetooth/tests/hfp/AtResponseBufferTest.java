@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.tests.hfp;
+
+import android.test.AndroidTestCase;
+
+import com.android.bluetooth.hfp.AtResponseBuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+public class AtResponseBufferTest extends AndroidTestCase {
+    /* A record the way AtPhonebook builds it, with a number of the longest allowed length */
+    private static String record(int index, String name) {
+        return "+CPBR: " + index + ",\"+49151123456789012345678901234\",145,\"" + name + "\""
+                + "\r\n\r\n";
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) sb.append(c);
+        return sb.toString();
+    }
+
+    /* Feed records through the buffer, collecting the responses it would send */
+    private static ArrayList<String> coalesce(AtResponseBuffer buffer, String[] records) {
+        ArrayList<String> responses = new ArrayList<String>();
+        for (String record : records) {
+            String full = buffer.append(record);
+            if (full != null) responses.add(full);
+        }
+        String rest = buffer.flush();
+        if (rest != null) responses.add(rest);
+        return responses;
+    }
+
+    public void testEncodedLength() {
+        String[] samples = {
+            "", "ASCII only", "Müller", "张伟", "��",
+            "😀", // a surrogate pair is two 3 byte sequences in modified UTF-8
+        };
+        int[] expected = { 0, 10, 7, 6, 6, 6 };
+        for (int i = 0; i < samples.length; i++) {
+            assertEquals(samples[i], expected[i], AtResponseBuffer.encodedLength(samples[i]));
+        }
+        // same as standard UTF-8 outside of NUL and supplementary characters
+        String bmp = "+CPBR: 1,\"é中\"";
+        assertEquals(bmp.getBytes(StandardCharsets.UTF_8).length,
+                AtResponseBuffer.encodedLength(bmp));
+        assertEquals(2, AtResponseBuffer.encodedLength("\u0000"));
+    }
+
+    public void testCoalescesAsciiNames() {
+        String[] records = new String[10];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = record(i + 1, repeat('a', 28));
+        }
+        ArrayList<String> responses = coalesce(new AtResponseBuffer(), records);
+        assertTrue(responses.size() < records.length);
+        assertAllFit(responses, records);
+    }
+
+    public void testCoalescesNonAsciiNames() {
+        // CJK names take three bytes per char; so do the U+FFFD chars that
+        // the GSM character set produces for bytes above 0x7F
+        String[] records = new String[10];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = record(i + 1, repeat(i % 2 == 0 ? '张' : '�', 28));
+        }
+        // two such records are about 280 bytes, well under 250 chars
+        assertTrue(records[0].length() + records[1].length() <= 250);
+        assertTrue(AtResponseBuffer.encodedLength(records[0] + records[1])
+                > AtResponseBuffer.MAX_RESPONSE_BYTES);
+
+        ArrayList<String> responses = coalesce(new AtResponseBuffer(), records);
+        assertEquals(records.length, responses.size());
+        assertAllFit(responses, records);
+    }
+
+    public void testMixedNames() {
+        String[] records = {
+            record(1, "Anna"), record(2, "Jürgen Müller"), record(3, repeat('伟', 28)),
+            record(4, "Bob"), record(5, repeat('é', 28)), record(6, "Zoë"),
+        };
+        assertAllFit(coalesce(new AtResponseBuffer(), records), records);
+    }
+
+    public void testOversizedRecordIsSentAlone() {
+        AtResponseBuffer buffer = new AtResponseBuffer(20);
+        assertNull(buffer.append("short\r\n"));
+        String big = repeat('x', 30);
+        assertEquals("short\r\n", buffer.append(big));
+        assertEquals(30, buffer.getEncodedLength());
+        assertEquals(big, buffer.append("next"));
+        assertEquals("next", buffer.flush());
+        assertNull(buffer.flush());
+    }
+
+    /* Every response fits the stack buffer and together they carry all records in order */
+    private static void assertAllFit(ArrayList<String> responses, String[] records) {
+        StringBuilder all = new StringBuilder();
+        for (String response : responses) {
+            assertTrue(response, AtResponseBuffer.encodedLength(response)
+                    <= AtResponseBuffer.MAX_RESPONSE_BYTES);
+            all.append(response);
+        }
+        StringBuilder expected = new StringBuilder();
+        for (String record : records) expected.append(record);
+        assertEquals(expected.toString(), all.toString());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *    * Redistributions of source code must retain the above copyright
+ *      notice, this list of conditions and the following disclaimer.
+ *    * Redistributions in binary form must reproduce the above
+ *      copyright notice, this list of conditions and the following
+ *      disclaimer in the documentation and/or other materials provided
+ *      with the distribution.
+ *    * Neither the name of The Linux Foundation nor the names of its
+ *      contributors may be used to endorse or promote products derived
+ *      from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.tests.pbap;
+
+import android.test.AndroidTestCase;
+
+import com.android.bluetooth.pbap.BluetoothPbapObexWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class BluetoothPbapObexWriterTest extends AndroidTestCase {
+    private static final String TEXT =
+            "BEGIN:VCARD\nFN:J\u00f6rg \u5f20\u4f1f \ud83d\ude00\nEND:VCARD\n";
+
+    public void testEncodesUtf8() throws IOException {
+        for (int packetSize = 4; packetSize < 40; packetSize++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BluetoothPbapObexWriter writer = new BluetoothPbapObexWriter(out, packetSize);
+            writer.write(TEXT);
+            writer.write(new StringBuilder(TEXT));
+            writer.flush();
+
+            byte[] expected = (TEXT + TEXT).getBytes(StandardCharsets.UTF_8);
+            assertTrue("packetSize=" + packetSize, Arrays.equals(expected, out.toByteArray()));
+        }
+    }
+
+    public void testUnpairedSurrogate() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BluetoothPbapObexWriter writer = new BluetoothPbapObexWriter(out, 16);
+        writer.write("a\ud83db");
+        writer.flush();
+
+        assertEquals("a?b", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    public void testWritesWholePackets() throws IOException {
+        final int packetSize = 16;
+        final int[] lastWrite = new int[1];
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                fail("Unexpected single byte write");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                assertTrue(len <= packetSize);
+                lastWrite[0] = len;
+            }
+        };
+        BluetoothPbapObexWriter writer = new BluetoothPbapObexWriter(out, packetSize);
+        for (int i = 0; i < 100; i++) {
+            writer.write("0123456789");
+        }
+        assertTrue(lastWrite[0] >= packetSize - 3);
+    }
+}
@@ -22,6 +22,7 @@ import android.provider.ContactsContract;
 import android.test.AndroidTestCase;
 import android.test.mock.MockContentProvider;
 import android.test.mock.MockContentResolver;
+import android.util.Log;
 
 import com.android.bluetooth.pbap.BluetoothPbapObexServer;
 import com.android.bluetooth.pbap.BluetoothPbapVcardManager;
@@ -31,6 +32,13 @@ import com.android.bluetooth.tests.mock.SimpleMockContentProvider;
 import java.util.ArrayList;
 
 public class BluetoothPhabVcardManagerTest extends AndroidTestCase {
+    private static final String TAG = "BluetoothPhabVcardManagerTest";
+    private static final String SEPARATOR = System.getProperty("line.separator");
+    private static final int BENCHMARK_VCARD_COUNT = 5000;
+
+    /* Filter with only FN (bit 1) and X-IRMC-CALL-DATETIME (bit 28) set */
+    private static final byte[] FN_DATETIME_FILTER =
+            new byte[] {0x00, 0x00, 0x00, 0x00, 0x10, 0x00, 0x00, 0x02};
 
     public void testGetContactNamesByNumber() {
         MatrixCursor mc = new MatrixCursor(
@@ -122,6 +130,126 @@ public class BluetoothPhabVcardManagerTest extends AndroidTestCase {
         assertEquals("D,1", nameList.get(4));
     }
 
+    public void testVCardFilterApply() {
+        String vCard = buildVCard(1);
+        BluetoothPbapVcardManager.VCardFilter filter =
+                new BluetoothPbapVcardManager.VCardFilter(FN_DATETIME_FILTER);
+
+        assertEquals(lines(SEPARATOR, "BEGIN:VCARD", "VERSION:3.0", "FN:Name 1", "N:;Name 1;;;",
+                "TEL;TYPE=CELL:(650) 555-0001", "X-IRMC-CALL-DATETIME:20160101T000001",
+                "END:VCARD"), filter.apply(vCard, false));
+        assertEquals(lines("\n", "BEGIN:VCARD", "VERSION:3.0", "FN:Name 1", "N:;Name 1;;;",
+                "TEL;TYPE=CELL:6505550001", "X-IRMC-CALL-DATETIME:20160101T000001",
+                "END:VCARD"), filter.apply(vCard, false, true));
+        // FN is only checked against the filter for vCard 2.1.
+        assertFalse(new BluetoothPbapVcardManager.VCardFilter(new byte[8])
+                .apply(vCard, true).contains("FN:"));
+    }
+
+    public void testVCardFilterMatchesLegacyFilter() {
+        byte[][] filters = new byte[][] {null, FN_DATETIME_FILTER,
+                new byte[] {0x00, 0x00, 0x00, 0x00, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                        (byte) 0xff}};
+        for (byte[] bits : filters) {
+            BluetoothPbapVcardManager.VCardFilter filter =
+                    new BluetoothPbapVcardManager.VCardFilter(bits);
+            for (int i = 0; i < 50; i++) {
+                String vCard = buildVCard(i);
+                for (boolean vCardType21 : new boolean[] {true, false}) {
+                    assertEquals(legacyStrip(legacyApply(bits, vCard, vCardType21)),
+                            filter.apply(vCard, vCardType21, true));
+                }
+            }
+        }
+    }
+
+    public void testVCardFilterBenchmark() {
+        String[] vCards = new String[BENCHMARK_VCARD_COUNT];
+        for (int i = 0; i < vCards.length; i++) {
+            vCards[i] = buildVCard(i);
+        }
+        BluetoothPbapVcardManager.VCardFilter filter =
+                new BluetoothPbapVcardManager.VCardFilter(FN_DATETIME_FILTER);
+
+        long start = System.nanoTime();
+        for (String vCard : vCards) {
+            legacyStrip(legacyApply(FN_DATETIME_FILTER, vCard, false));
+        }
+        long legacyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (String vCard : vCards) {
+            filter.apply(vCard, false, true);
+        }
+        long streamingNanos = System.nanoTime() - start;
+
+        Log.i(TAG, "Filtered " + vCards.length + " vCards: legacy " + legacyNanos / 1000000
+                + " ms, streaming " + streamingNanos / 1000000 + " ms");
+    }
+
+    private static String buildVCard(int i) {
+        String n = String.format("%04d", i);
+        return lines(SEPARATOR, "BEGIN:VCARD", "VERSION:3.0", "FN:Name " + i,
+                "N:;Name " + i + ";;;", "TEL;TYPE=CELL:(650) 555-" + n,
+                "EMAIL;TYPE=HOME:name" + i + "@example.com",
+                "NOTE:A note that spans", " more than one line",
+                "X-ANDROID-CUSTOM:vnd.android.cursor.item/nickname;N" + i,
+                "X-IRMC-CALL-DATETIME:20160101T00" + n, "END:VCARD");
+    }
+
+    private static String lines(String separator, String... lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append(separator);
+        }
+        return sb.toString();
+    }
+
+    /* The split based filter the streaming VCardFilter replaced */
+    private static String legacyApply(byte[] filter, String vCard, boolean vCardType21) {
+        if (filter == null) return vCard;
+        String[] props = {"FN", "PHOTO", "BDAY", "ADR", "EMAIL", "TITLE", "ORG", "NOTE", "URL",
+                "NICKNAME", "X-IRMC-CALL-DATETIME"};
+        int[] pos = {1, 3, 4, 5, 8, 12, 16, 17, 20, 23, 28};
+        StringBuilder filteredVCard = new StringBuilder();
+        boolean filteredIn = false;
+        for (String line : vCard.split(SEPARATOR)) {
+            if (!Character.isWhitespace(line.charAt(0)) && !line.startsWith("=")) {
+                String currentProp = line.split("[;:]")[0];
+                filteredIn = true;
+                for (int i = 0; i < props.length; i++) {
+                    if (!props[i].equals(currentProp)) continue;
+                    if (!vCardType21 && pos[i] == 1) break;
+                    if (vCardType21 && pos[i] == 23) {
+                        filteredIn = false;
+                        break;
+                    }
+                    int offset = (pos[i] / 8) + 1;
+                    filteredIn = offset >= filter.length
+                            || ((filter[filter.length - offset] >> (pos[i] % 8)) & 0x01) != 0;
+                    break;
+                }
+                if (currentProp.startsWith("X-")
+                        && !(filteredIn && currentProp.equals("X-IRMC-CALL-DATETIME"))) {
+                    filteredIn = false;
+                }
+            }
+            if (filteredIn) filteredVCard.append(line + SEPARATOR);
+        }
+        return filteredVCard.toString();
+    }
+
+    private static String legacyStrip(String vCard) {
+        String Vcard = "";
+        for (String attr : vCard.split(SEPARATOR)) {
+            if (attr.startsWith("TEL")) {
+                attr = attr.replace("(", "").replace(")", "").replace("-", "").replace(" ", "");
+            }
+            if (!attr.equals("")) Vcard = Vcard.concat(attr + "\n");
+        }
+        return Vcard;
+    }
+
     private BluetoothPbapVcardManager createBluetoothPbapVcardManager(Cursor result) {
         MockContentProvider contentProvider = new SimpleMockContentProvider(result);
         MockContentResolver contentResolver = new MockContentResolver();